@@ -0,0 +1,50 @@
+#!/bin/bash
+
+# Measures the cold start of HomeActivity on the connected device:
+# the app is killed before each run, so every start is a cold one.
+# For each run this prints the activity manager's TotalTime and the
+# time to the first map frame logged by StartupTrace.
+#
+# Usage: ./coldstart_benchmark.sh [runs]
+runs=${1:-10}
+package=com.joulespersecond.seattlebusbot
+activity=.HomeActivity
+
+total_times=()
+frame_times=()
+
+stats() {
+	sort -n | awk '
+		{ v[NR] = $1; sum += $1 }
+		END {
+			if (NR == 0) { print "no samples"; exit }
+			if (NR % 2) { median = v[(NR + 1) / 2] }
+			else { median = (v[NR / 2] + v[NR / 2 + 1]) / 2 }
+			printf "min %d ms, median %d ms, mean %d ms (%d runs)\n", v[1], median, sum / NR, NR
+		}'
+}
+
+for ((i = 1; i <= runs; i++)); do
+	adb shell am force-stop $package
+	sleep 2
+	adb logcat -c
+	total=$(adb shell am start -W -n $package/$activity | tr -d '\r' | \
+		sed -n 's/^TotalTime: *//p')
+	# Give the first frame (and the trace) time to show up.
+	sleep 3
+	frame=$(adb logcat -d -s StartupTrace:I | tr -d '\r' | \
+		sed -n 's/.*first frame: *\([0-9-]*\) ms.*/\1/p' | tail -1)
+
+	echo "Run $i: TotalTime ${total:-?} ms, first frame ${frame:-?} ms"
+	[ -n "$total" ] && total_times+=($total)
+	[ -n "$frame" ] && [ "$frame" -ge 0 ] && frame_times+=($frame)
+done
+
+echo
+echo -n "TotalTime:   "
+printf '%s\n' "${total_times[@]}" | grep . | stats
+echo -n "First frame: "
+printf '%s\n' "${frame_times[@]}" | grep . | stats
+echo
+echo "Last trace:"
+adb logcat -d -s StartupTrace:I | tr -d '\r'
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Every in-memory cache in the process, so they can all be dropped
+ * when memory is low (see {@link ObaApi#clearCache()} and
+ * Application.onTrimMemory.)
+ *
+ * Each cache registers with a priority: the caches that are cheapest
+ * to rebuild are dropped first. The registry also keeps the caches
+ * within a budget that depends on the device's memory class, so on
+ * phones with little memory the caches stay small to begin with.
+ *
+ * The registry only keeps weak references to the caches, so a cache
+ * that belongs to a screen doesn't have to unregister.
+ *
+ * @author paulw
+ *
+ */
+public final class CacheRegistry {
+    private static final String TAG = "CacheRegistry";
+
+    /**
+     * Results that can be recomputed without any I/O,
+     * such as search results and formatted text.
+     */
+    public static final int PRIORITY_TRANSIENT = 0;
+    /**
+     * Responses (and their shapes) that would have to be
+     * requested from the server again.
+     */
+    public static final int PRIORITY_NETWORK = 1;
+    /**
+     * Copies of the database that are used all the time.
+     */
+    public static final int PRIORITY_DATABASE = 2;
+
+    // The ComponentCallbacks2 trim levels (API 14 and 16),
+    // which we can't refer to at our target.
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+    public static final int TRIM_MEMORY_MODERATE = 60;
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
+    // A device with this memory class (in MB) or less is a low memory device.
+    private static final int LOW_MEMORY_CLASS = 24;
+    // The caches can use this fraction of the memory class.
+    private static final int BUDGET_DIVISOR = 8;
+
+    public interface Cache {
+        /**
+         * @return An estimate of the memory used by the cache, in bytes.
+         *      This is called often, so it should be cheap.
+         */
+        long estimateSize();
+
+        /**
+         * Drops everything in the cache.
+         */
+        void clear();
+    }
+
+    private static final class Entry {
+        final String name;
+        final int priority;
+        final WeakReference<Cache> cache;
+
+        Entry(String name, int priority, Cache cache) {
+            this.name = name;
+            this.priority = priority;
+            this.cache = new WeakReference<Cache>(cache);
+        }
+    }
+
+    private static final ArrayList<Entry> sEntries = new ArrayList<Entry>();
+    private static int sMemoryClass = 0;
+    private static long sBudget = Long.MAX_VALUE;
+
+    // Cannot be instantiated
+    private CacheRegistry() {
+    }
+
+    /**
+     * Sets the budget from the device's memory class.
+     * This is called from Application.onCreate.
+     */
+    public static synchronized void init(Context context) {
+        ActivityManager am =
+            (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+        sMemoryClass = am.getMemoryClass();
+        sBudget = sMemoryClass * 1024L * 1024L / BUDGET_DIVISOR;
+    }
+
+    /**
+     * @return Whether this device has little memory,
+     *      in which case caches should keep fewer entries.
+     */
+    public static synchronized boolean isLowMemoryDevice() {
+        return sMemoryClass > 0 && sMemoryClass <= LOW_MEMORY_CLASS;
+    }
+
+    /**
+     * Registers a cache. The caller needs to keep a reference to the cache.
+     */
+    public static synchronized void register(String name, int priority, Cache cache) {
+        sEntries.add(new Entry(name, priority, cache));
+    }
+
+    /**
+     * Drops every cache.
+     */
+    public static void clear() {
+        clear(PRIORITY_DATABASE, null);
+    }
+
+    /**
+     * Drops the caches that are cheap enough to rebuild for the trim level
+     * (see ComponentCallbacks2.onTrimMemory.)
+     */
+    public static void trim(int level) {
+        final int priority;
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            priority = PRIORITY_DATABASE;
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            priority = PRIORITY_NETWORK;
+        } else {
+            priority = PRIORITY_TRANSIENT;
+        }
+        clear(priority, null);
+    }
+
+    /**
+     * Called by a cache after it has grown: if the caches are over budget,
+     * the others are dropped (lowest priority first) until they aren't.
+     * This must not be called with the cache's lock held.
+     */
+    public static void onGrow(Cache grown) {
+        long total = 0;
+        final ArrayList<Entry> entries = getEntries();
+        for (Entry entry: entries) {
+            final Cache cache = entry.cache.get();
+            if (cache != null) {
+                total += cache.estimateSize();
+            }
+        }
+        final long budget;
+        synchronized (CacheRegistry.class) {
+            budget = sBudget;
+        }
+        for (int priority = PRIORITY_TRANSIENT;
+                priority <= PRIORITY_DATABASE && total > budget; ++priority) {
+            for (Entry entry: entries) {
+                final Cache cache = entry.cache.get();
+                if (cache != null && cache != grown && entry.priority == priority) {
+                    final long size = cache.estimateSize();
+                    if (size == 0) {
+                        continue;
+                    }
+                    Log.d(TAG, String.format("Over budget, dropping %s (%d bytes)",
+                            entry.name, size));
+                    cache.clear();
+                    total -= size;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The estimated size of every cache, in bytes.
+     */
+    public static long getTotalSize() {
+        long total = 0;
+        for (Entry entry: getEntries()) {
+            final Cache cache = entry.cache.get();
+            if (cache != null) {
+                total += cache.estimateSize();
+            }
+        }
+        return total;
+    }
+
+    public static void dump(PrintWriter pw) {
+        long budget;
+        int memoryClass;
+        synchronized (CacheRegistry.class) {
+            budget = sBudget;
+            memoryClass = sMemoryClass;
+        }
+        pw.println(String.format("Memory class: %d MB%s", memoryClass,
+                isLowMemoryDevice() ? " (low memory)" : ""));
+        long total = 0;
+        for (Entry entry: getEntries()) {
+            final Cache cache = entry.cache.get();
+            if (cache != null) {
+                final long size = cache.estimateSize();
+                total += size;
+                pw.println(String.format("  %s (priority %d): %d bytes",
+                        entry.name, entry.priority, size));
+            }
+        }
+        pw.println(String.format("Total: %d bytes (budget %d)", total, budget));
+    }
+
+    public static String dumpToString() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    private static void clear(int maxPriority, Cache except) {
+        for (Entry entry: getEntries()) {
+            final Cache cache = entry.cache.get();
+            if (cache != null && cache != except && entry.priority <= maxPriority) {
+                cache.clear();
+            }
+        }
+    }
+
+    //
+    // Returns a copy of the live entries, so the caches can be called
+    // without holding our lock (they take their own), and drops the
+    // ones that have been collected.
+    //
+    private static synchronized ArrayList<Entry> getEntries() {
+        final Iterator<Entry> it = sEntries.iterator();
+        while (it.hasNext()) {
+            if (it.next().cache.get() == null) {
+                it.remove();
+            }
+        }
+        return new ArrayList<Entry>(sEntries);
+    }
+}
@@ -70,7 +70,7 @@ public final class ObaApi {
      * Clears the object cache for low memory situations.
      */
     public static final void clearCache() {
-        // TODO: is there anything we can do to clear Jackson cache?
+        CacheRegistry.clear();
     }
 
     public interface SerializationHandler {
@@ -39,18 +39,26 @@ public final class ObaHelp {
     }
 
     public static Reader getUri(URL url) throws IOException {
+        return getUri((HttpURLConnection)url.openConnection());
+    }
+
+    /**
+     * Connects and returns the reader for the response.
+     * The connection can be disconnected from another thread
+     * to cancel the request.
+     */
+    public static Reader getUri(HttpURLConnection conn) throws IOException {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
-            return getUri_Gingerbread(url);
+            return getUri_Gingerbread(conn);
         } else {
-            return getUri_Froyo(url);
+            return getUri_Froyo(conn);
         }
     }
 
     //
     // Gingerbread and above support Gzip natively.
     //
-    private static Reader getUri_Gingerbread(URL url) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+    private static Reader getUri_Gingerbread(HttpURLConnection conn) throws IOException {
         conn.setReadTimeout(30*1000);
         conn.connect();
 
@@ -58,11 +66,10 @@ public final class ObaHelp {
         return new BufferedReader(new InputStreamReader(in), 8*1024);
     }
 
-    private static Reader getUri_Froyo(URL url) throws IOException {
-        //Log.d(TAG, "getUri: " + url.toString());
+    private static Reader getUri_Froyo(HttpURLConnection conn) throws IOException {
+        //Log.d(TAG, "getUri: " + conn.getURL().toString());
 
         boolean useGzip = false;
-        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
         conn.setReadTimeout(30*1000);
         conn.setRequestProperty("Accept-Encoding", "gzip");
         conn.connect();
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.provider;
+
+import android.net.Uri;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the code that uses the database on the main thread, which
+ * should be using ObaDao instead. The provider calls this before each
+ * operation that goes to disk; in debuggable builds, each call site
+ * is logged (with its stack) the first time, and counted.
+ * The counts are shown in the debug screen (DebugMetricsActivity).
+ *
+ * This is our own version of StrictMode's disk checks,
+ * which aren't available before API 9.
+ *
+ * @author paulw
+ *
+ */
+public final class MainThreadIoDetector {
+    private static final String TAG = "MainThreadIo";
+
+    private static final String[] IGNORED_CLASSES = {
+        MainThreadIoDetector.class.getName(),
+        ObaProvider.class.getName(),
+        ObaContract.class.getName(),
+    };
+
+    private static boolean sEnabled = false;
+    // Call site -> number of calls
+    private static final LinkedHashMap<String,Integer> sSites =
+            new LinkedHashMap<String,Integer>();
+
+    // Cannot be instantiated
+    private MainThreadIoDetector() {
+    }
+
+    public static synchronized void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static synchronized boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Records the operation if it's on the main thread.
+     */
+    static void check(String operation, Uri uri) {
+        if (!isEnabled() || Looper.myLooper() != Looper.getMainLooper()) {
+            return;
+        }
+        final Throwable stack = new Throwable();
+        final String site = getCallSite(stack.getStackTrace());
+        final boolean first;
+        synchronized (MainThreadIoDetector.class) {
+            final Integer count = sSites.get(site);
+            first = (count == null);
+            sSites.put(site, first ? 1 : count + 1);
+        }
+        if (first) {
+            Log.w(TAG, operation + " " + uri + " on the main thread at " + site, stack);
+        }
+    }
+
+    public static synchronized void reset() {
+        sSites.clear();
+    }
+
+    public static synchronized void dump(PrintWriter pw) {
+        if (!sEnabled) {
+            pw.println("Disabled");
+            return;
+        }
+        if (sSites.isEmpty()) {
+            pw.println("None");
+            return;
+        }
+        for (Map.Entry<String,Integer> entry: sSites.entrySet()) {
+            pw.println(String.format("  %s: %d", entry.getKey(), entry.getValue()));
+        }
+    }
+
+    public static synchronized String dumpToString() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    //
+    // The first frame of our own code that isn't the provider or the contract
+    // (or, if there isn't one, the first frame outside of them.)
+    //
+    private static String getCallSite(StackTraceElement[] stack) {
+        StackTraceElement fallback = null;
+        for (StackTraceElement element: stack) {
+            final String cls = element.getClassName();
+            if (isIgnored(cls)) {
+                continue;
+            }
+            if (cls.startsWith("com.joulespersecond.")) {
+                return element.toString();
+            }
+            if (fallback == null) {
+                fallback = element;
+            }
+        }
+        return (fallback != null) ? fallback.toString() : "unknown";
+    }
+
+    private static boolean isIgnored(String cls) {
+        for (String ignored: IGNORED_CLASSES) {
+            // (Including their inner classes.)
+            if (cls.equals(ignored) || cls.startsWith(ignored + "$")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -16,14 +16,21 @@
 package com.joulespersecond.oba.provider;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.provider.BaseColumns;
 import android.text.format.Time;
+import android.util.Log;
 
 /**
  * The contract between clients and the ObaProvider.
@@ -34,10 +41,40 @@ import android.text.format.Time;
  *
  */
 public final class ObaContract {
+    private static final String TAG = "ObaContract";
+
     /** The authority portion of the URI for the Oba provider */
     public static final String AUTHORITY = "com.joulespersecond.oba";
+    /** The name of the database file */
+    public static final String DATABASE_NAME = "com.joulespersecond.seattlebusbot.db";
     /** The base URI for the Oba provider */
     public static final Uri AUTHORITY_URI = Uri.parse("content://" + AUTHORITY);
+    /**
+     * The query parameter that, when inserting to a stop or route URI,
+     * marks the row as used by the user.
+     */
+    static final String MARK_AS_USED_PARAM = "mark_used";
+    /**
+     * The query parameter that causes a query to return its query plan
+     * (from EXPLAIN QUERY PLAN) rather than its results. This is only
+     * intended for testing, and is ignored unless the app is debuggable.
+     */
+    public static final String EXPLAIN_PARAM = "explain";
+    /**
+     * The query parameter of a change notification URI that lists the
+     * IDs of the rows that changed.
+     */
+    static final String CHANGED_ID_PARAM = "changed";
+    /**
+     * The URI path used to ask the provider to write the buffered
+     * stop and route usage.
+     */
+    static final String USAGE_PATH = "usage";
+    /**
+     * The URI path used to ask the provider to analyze and compact
+     * the database.
+     */
+    static final String MAINTENANCE_PATH = "maintenance";
 
     protected interface StopsColumns {
         /**
@@ -105,6 +142,16 @@ public final class ObaContract {
          * </P>
          */
         public static final String URL = "url";
+
+        /**
+         * The last time the route was seen in its agency's list of routes
+         * (see RouteCatalogTask), or NULL if it's only known because
+         * the user has seen it.
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String CATALOG_TIME = "catalog_time";
     }
 
     protected interface StopRouteKeyColumns {
@@ -206,6 +253,48 @@ public final class ObaContract {
          * </P>
          */
         public static final String STATE = "state";
+
+        /**
+         * The time in milliseconds of the next poll of the alert's arrival.
+         * This is null until the alert is first polled.
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String NEXT_POLL = "next_poll";
+
+        /**
+         * The number of times the alert's arrival has been polled.
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String POLL_COUNT = "poll_count";
+
+        /**
+         * The distance along the trip of the alert's stop, in meters.
+         * This is null if the vehicle is not being tracked.
+         * <P>
+         * Type: REAL
+         * </P>
+         */
+        public static final String STOP_DISTANCE = "stop_distance";
+
+        /**
+         * The last known distance along the trip of the vehicle, in meters.
+         * <P>
+         * Type: REAL
+         * </P>
+         */
+        public static final String VEHICLE_DISTANCE = "vehicle_distance";
+
+        /**
+         * The time in milliseconds the vehicle was at VEHICLE_DISTANCE.
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String VEHICLE_TIME = "vehicle_time";
     }
 
     protected interface UserColumns {
@@ -264,40 +353,56 @@ public final class ObaContract {
         public static final String CONTENT_TYPE = "vnd.android.cursor.item/com.joulespersecond.oba.stop";
         public static final String CONTENT_DIR_TYPE = "vnd.android.dir/com.joulespersecond.oba.stop";
 
+        /** The URI path portion for searching this table */
+        public static final String SEARCH_PATH = "stops_search";
+        /**
+         * The content:// style URI for searching this table.
+         * Use {@link #buildSearchUri(String)} to add the search text.
+         */
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(
+                AUTHORITY_URI, SEARCH_PATH);
+
+        /**
+         * Returns the URI to search the locally known stops for the text.
+         * Each word in the text matches the start of any word in the
+         * name, code, or user name, and the results are ordered by use count.
+         *
+         * @param text The search text.
+         * @return The search URI.
+         */
+        public static Uri buildSearchUri(String text) {
+            return Uri.withAppendedPath(SEARCH_URI, Uri.encode(text));
+        }
+
+        /**
+         * Inserts the stop, or updates it if it already exists.
+         * This is done in a single statement by the provider.
+         * If the stop is marked as used, the provider buffers the write
+         * (see {@link ObaContract#flushUsage(Context)}).
+         *
+         * @param context The context.
+         * @param id The stop ID.
+         * @param values The values to set.
+         * @param markAsUsed Whether to increment the use count and update
+         *      the access time.
+         * @return The URI of the stop.
+         */
         public static Uri insertOrUpdate(Context context,
                 String id,
                 ContentValues values,
                 boolean markAsUsed) {
             ContentResolver cr = context.getContentResolver();
+            return cr.insert(buildUri(id, markAsUsed), values);
+        }
+
+        static Uri buildUri(String id, boolean markAsUsed) {
             final Uri uri = Uri.withAppendedPath(CONTENT_URI, id);
-            Cursor c = cr.query(uri, new String[] { USE_COUNT }, null, null,
-                    null);
-            Uri result;
-            if (c != null && c.getCount() > 0) {
-                // Update
-                if (markAsUsed) {
-                    c.moveToFirst();
-                    int count = c.getInt(0);
-                    values.put(USE_COUNT, count + 1);
-                    values.put(ACCESS_TIME, System.currentTimeMillis());
-                }
-                cr.update(uri, values, null, null);
-                result = uri;
-            } else {
-                // Insert
-                if (markAsUsed) {
-                    values.put(USE_COUNT, 1);
-                    values.put(ACCESS_TIME, System.currentTimeMillis());
-                } else {
-                    values.put(USE_COUNT, 0);
-                }
-                values.put(_ID, id);
-                result = cr.insert(CONTENT_URI, values);
-            }
-            if (c != null) {
-                c.close();
+            if (markAsUsed) {
+                return uri.buildUpon()
+                        .appendQueryParameter(MARK_AS_USED_PARAM, "1")
+                        .build();
             }
-            return result;
+            return uri;
         }
 
         public static boolean markAsFavorite(Context context,
@@ -333,40 +438,56 @@ public final class ObaContract {
         public static final String CONTENT_TYPE = "vnd.android.cursor.item/com.joulespersecond.oba.route";
         public static final String CONTENT_DIR_TYPE = "vnd.android.dir/com.joulespersecond.oba.route";
 
+        /** The URI path portion for searching this table */
+        public static final String SEARCH_PATH = "routes_search";
+        /**
+         * The content:// style URI for searching this table.
+         * Use {@link #buildSearchUri(String)} to add the search text.
+         */
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(
+                AUTHORITY_URI, SEARCH_PATH);
+
+        /**
+         * Returns the URI to search the locally known routes for the text.
+         * Each word in the text matches the start of any word in the
+         * short or long name, and the results are ordered by use count.
+         *
+         * @param text The search text.
+         * @return The search URI.
+         */
+        public static Uri buildSearchUri(String text) {
+            return Uri.withAppendedPath(SEARCH_URI, Uri.encode(text));
+        }
+
+        /**
+         * Inserts the route, or updates it if it already exists.
+         * This is done in a single statement by the provider.
+         * If the route is marked as used, the provider buffers the write
+         * (see {@link ObaContract#flushUsage(Context)}).
+         *
+         * @param context The context.
+         * @param id The route ID.
+         * @param values The values to set.
+         * @param markAsUsed Whether to increment the use count and update
+         *      the access time.
+         * @return The URI of the route.
+         */
         public static Uri insertOrUpdate(Context context,
                 String id,
                 ContentValues values,
                 boolean markAsUsed) {
             ContentResolver cr = context.getContentResolver();
+            return cr.insert(buildUri(id, markAsUsed), values);
+        }
+
+        static Uri buildUri(String id, boolean markAsUsed) {
             final Uri uri = Uri.withAppendedPath(CONTENT_URI, id);
-            Cursor c = cr.query(uri, new String[] { USE_COUNT }, null, null,
-                    null);
-            Uri result;
-            if (c != null && c.getCount() > 0) {
-                // Update
-                if (markAsUsed) {
-                    c.moveToFirst();
-                    int count = c.getInt(0);
-                    values.put(USE_COUNT, count + 1);
-                    values.put(ACCESS_TIME, System.currentTimeMillis());
-                }
-                cr.update(uri, values, null, null);
-                result = uri;
-            } else {
-                // Insert
-                if (markAsUsed) {
-                    values.put(USE_COUNT, 1);
-                    values.put(ACCESS_TIME, System.currentTimeMillis());
-                } else {
-                    values.put(USE_COUNT, 0);
-                }
-                values.put(_ID, id);
-                result = cr.insert(CONTENT_URI, values);
+            if (markAsUsed) {
+                return uri.buildUpon()
+                        .appendQueryParameter(MARK_AS_USED_PARAM, "1")
+                        .build();
             }
-            if (c != null) {
-                c.close();
-            }
-            return result;
+            return uri;
         }
 
         public static boolean markAsUnused(Context context, Uri uri) {
@@ -391,7 +512,8 @@ public final class ObaContract {
 
         public static final String CONTENT_DIR_TYPE = "vnd.android.dir/com.joulespersecond.oba.stoproutefilter";
 
-        private static final String FILTER_WHERE = STOP_ID + "=?";
+        /** The selection for the filter of a stop. */
+        public static final String FILTER_WHERE = STOP_ID + "=?";
 
         /**
          * Gets the filter for the specified Stop ID.
@@ -437,19 +559,22 @@ public final class ObaContract {
                 ArrayList<String> filter) {
             // First, delete any existing rows for this stop.
             // Then, insert all of these rows.
-            // Should we put this in a transaction? We could,
-            // but it's not terribly important.
+            // This is all done in one batch, so it is one transaction
+            // and observers are only notified once.
             final String[] selectionArgs = { stopId };
-            ContentResolver cr = context.getContentResolver();
-            cr.delete(CONTENT_URI, FILTER_WHERE, selectionArgs);
-
-            ContentValues args = new ContentValues();
-            args.put(STOP_ID, stopId);
             final int len = filter.size();
+            ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>(len + 1);
+            ops.add(ContentProviderOperation.newDelete(CONTENT_URI)
+                    .withSelection(FILTER_WHERE, selectionArgs)
+                    .build());
             for (int i = 0; i < len; ++i) {
-                args.put(ROUTE_ID, filter.get(i));
-                cr.insert(CONTENT_URI, args);
+                ops.add(ContentProviderOperation.newInsert(CONTENT_URI)
+                        .withValue(STOP_ID, stopId)
+                        .withValue(ROUTE_ID, filter.get(i))
+                        .build());
             }
+            applyBatch(context.getContentResolver(), ops);
         }
     }
 
@@ -598,11 +723,41 @@ public final class ObaContract {
         public static final int STATE_NOTIFY = 2;
         public static final int STATE_CANCELLED = 3;
 
+        /** The selection for the alert of a trip at a stop and start time. */
+        public static final String FIND_WHERE = String.format("%s=? AND %s=? AND %s=?",
+                TRIP_ID, STOP_ID, START_TIME);
+
         public static final Uri buildUri(int id) {
             return CONTENT_URI.buildUpon().appendPath(String.valueOf(id))
                     .build();
         }
 
+        /**
+         * @return The selection for the alerts that start before the specified time.
+         */
+        public static String getOldSelection(long before) {
+            return START_TIME + " < " + before;
+        }
+
+        /**
+         * @return The selection for the alerts that start by the specified
+         *      time and are scheduled or polling.
+         */
+        public static String getActiveSelection(long startBy) {
+            return String.format("%s <= %d AND %s IN (%d,%d)",
+                    START_TIME, startBy,
+                    STATE, STATE_SCHEDULED, STATE_POLLING);
+        }
+
+        /**
+         * @return The selection for the scheduled alerts that start
+         *      after the specified time.
+         */
+        public static String getNextSelection(long after) {
+            return String.format("%s > %d AND %s=%d",
+                    START_TIME, after, STATE, STATE_SCHEDULED);
+        }
+
         public static Uri insertIfNotExists(Context context,
                 String tripId,
                 String stopId,
@@ -618,8 +773,7 @@ public final class ObaContract {
             Uri result;
             Cursor c = cr.query(CONTENT_URI,
                     new String[] { _ID },
-                    String.format("%s=? AND %s=? AND %s=?",
-                            TRIP_ID, STOP_ID, START_TIME),
+                    FIND_WHERE,
                     new String[] { tripId, stopId, String.valueOf(startTime) },
                     null);
             if (c != null && c.moveToNext()) {
@@ -646,5 +800,141 @@ public final class ObaContract {
             values.put(STATE, state);
             cr.update(uri, values, null, null);
         }
+
+        /**
+         * @return The start time of the first scheduled alert that
+         *      starts after the specified time, or 0 if there isn't one.
+         */
+        public static long getNextStartTime(ContentResolver cr, long after) {
+            Cursor c = cr.query(CONTENT_URI.buildUpon()
+                        .appendQueryParameter("limit", "1").build(),
+                    new String[] { START_TIME },
+                    getNextSelection(after),
+                    null,
+                    START_TIME);
+            long result = 0;
+            if (c != null) {
+                if (c.moveToNext()) {
+                    result = c.getLong(0);
+                }
+                c.close();
+            }
+            return result;
+        }
+
+        public static void setPolled(ContentResolver cr,
+                Uri uri,
+                long nextPoll,
+                int pollCount) {
+            ContentValues values = new ContentValues();
+            values.put(NEXT_POLL, nextPoll);
+            values.put(POLL_COUNT, pollCount);
+            cr.update(uri, values, null, null);
+        }
+    }
+
+    /**
+     * Applies the operations to the provider in a single transaction.
+     *
+     * @param cr
+     *            The content resolver.
+     * @param ops
+     *            The operations to apply.
+     * @return The results of the operations, or null on error.
+     */
+    public static ContentProviderResult[] applyBatch(ContentResolver cr,
+            ArrayList<ContentProviderOperation> ops) {
+        try {
+            return cr.applyBatch(AUTHORITY, ops);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to apply batch: " + e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Unable to apply batch: " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Marking a stop or route as used (in insertOrUpdate) is buffered
+     * by the provider and written in the background every so often.
+     * This asks it to write them now, such as when the user leaves
+     * the screen, and returns without waiting for the write.
+     *
+     * @param context
+     *            The context.
+     */
+    public static void flushUsage(Context context) {
+        ContentResolver cr = context.getContentResolver();
+        cr.update(Uri.withAppendedPath(AUTHORITY_URI, USAGE_PATH),
+                new ContentValues(), null, null);
+    }
+
+    /**
+     * Updates the database statistics (ANALYZE) and compacts it (VACUUM)
+     * if enough of it is unused. This can take a while, and blocks
+     * writes to the database while it's running, so this should only
+     * be done in the background when the user isn't using the app.
+     *
+     * @param context
+     *            The context.
+     * @return true if the database was compacted.
+     */
+    public static boolean maintain(Context context) {
+        ContentResolver cr = context.getContentResolver();
+        return cr.update(Uri.withAppendedPath(AUTHORITY_URI, MAINTENANCE_PATH),
+                new ContentValues(), null, null) > 0;
+    }
+
+    /**
+     * Returns the IDs of the rows that changed from a change notification
+     * URI. The provider notifies either the URI of the row that changed,
+     * or the table URI with the IDs of the rows that changed.
+     * (For trips, the ID is the trip ID and stop ID separated by a '/')
+     *
+     * @param uri
+     *            The URI passed to ContentObserver.onChange.
+     * @return The list of IDs, or null if the rows that changed aren't
+     *         known, in which case the whole table should be considered
+     *         changed.
+     */
+    public static List<String> getChangedIds(Uri uri) {
+        if (uri == null) {
+            return null;
+        }
+        List<String> ids = uri.getQueryParameters(CHANGED_ID_PARAM);
+        if (ids != null && !ids.isEmpty()) {
+            return ids;
+        }
+        final String id = getRowId(uri);
+        if (id != null) {
+            return Collections.singletonList(id);
+        }
+        return null;
+    }
+
+    //
+    // Returns the row ID portion (everything after the table)
+    // of a row URI, or null if this isn't a row URI.
+    //
+    static String getRowId(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        final int len = segments.size();
+        if (len < 2) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(segments.get(1));
+        for (int i = 2; i < len; ++i) {
+            sb.append('/');
+            sb.append(segments.get(i));
+        }
+        return sb.toString();
+    }
+
+    static Uri buildChangedUri(Uri tableUri, List<String> ids) {
+        Uri.Builder builder = tableUri.buildUpon();
+        for (String id: ids) {
+            builder.appendQueryParameter(CHANGED_ID_PARAM, id);
+        }
+        return builder.build();
     }
 }
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.provider;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The ObaContract operations the UI needs, run on a single
+ * background thread so the main thread never waits on the database.
+ *
+ * Since there is only one thread, the operations run in the order
+ * they are submitted: a read sees every write submitted before it.
+ * Results are returned as a Future, and to the callback (if any)
+ * on the main thread. The callback is called even if the screen
+ * that asked for it has gone away, so it needs to check for that.
+ * If the operation fails, the callback gets null.
+ *
+ * @author paulw
+ *
+ */
+public final class ObaDao {
+    private static final String TAG = "ObaDao";
+
+    public interface Callback<T> {
+        /**
+         * Called on the main thread with the result,
+         * or null if the call failed.
+         */
+        void onResult(T result);
+    }
+
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+        }
+    });
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // Cannot be instantiated
+    private ObaDao() {
+    }
+
+    /**
+     * Runs the call on the database thread, and passes the result
+     * to the callback on the main thread.
+     *
+     * @param callback The callback, or null.
+     * @return The future result.
+     */
+    public static <T> Future<T> submit(final Callable<T> call, final Callback<T> callback) {
+        final FutureTask<T> task = new FutureTask<T>(call) {
+            @Override
+            protected void done() {
+                if (callback == null || isCancelled()) {
+                    return;
+                }
+                T value;
+                try {
+                    value = get();
+                } catch (Exception e) {
+                    Log.e(TAG, "Database call failed", e);
+                    // The callback still needs to know, e.g. to undo
+                    // what it showed the user.
+                    value = null;
+                }
+                final T result = value;
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(result);
+                    }
+                });
+            }
+        };
+        sExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Runs the write on the database thread.
+     */
+    public static Future<?> execute(final Runnable write) {
+        return submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+                write.run();
+                return null;
+            }
+        }, null);
+    }
+
+    //
+    // Stops
+    //
+
+    /**
+     * Gets the columns of a single stop.
+     * The result is null if the stop isn't in the database.
+     */
+    public static Future<ContentValues> getStop(Context context,
+            final Uri uri,
+            final String[] projection,
+            Callback<ContentValues> callback) {
+        final ContentResolver cr = context.getContentResolver();
+        return submit(new Callable<ContentValues>() {
+            @Override
+            public ContentValues call() {
+                Cursor c = cr.query(uri, projection, null, null, null);
+                if (c == null) {
+                    return null;
+                }
+                try {
+                    if (!c.moveToFirst()) {
+                        return null;
+                    }
+                    ContentValues values = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(c, values);
+                    return values;
+                } finally {
+                    c.close();
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ObaContract.Stops#insertOrUpdate(Context, String, ContentValues, boolean)
+     */
+    public static Future<?> insertOrUpdateStop(Context context,
+            final String id,
+            final ContentValues values,
+            final boolean markAsUsed) {
+        final Context appContext = context.getApplicationContext();
+        return execute(new Runnable() {
+            @Override
+            public void run() {
+                ObaContract.Stops.insertOrUpdate(appContext, id, values, markAsUsed);
+            }
+        });
+    }
+
+    /**
+     * Sets the user's name for the stop.
+     *
+     * @param name The name, or null to remove it.
+     */
+    public static Future<?> setStopUserName(Context context,
+            final Uri uri,
+            String name) {
+        final ContentResolver cr = context.getContentResolver();
+        final ContentValues values = new ContentValues();
+        if (name == null) {
+            values.putNull(ObaContract.Stops.USER_NAME);
+        } else {
+            values.put(ObaContract.Stops.USER_NAME, name);
+        }
+        return execute(new Runnable() {
+            @Override
+            public void run() {
+                cr.update(uri, values, null, null);
+            }
+        });
+    }
+
+    /**
+     * @see ObaContract.Stops#markAsFavorite(Context, Uri, boolean)
+     */
+    public static Future<Boolean> markStopAsFavorite(Context context,
+            final Uri uri,
+            final boolean favorite,
+            Callback<Boolean> callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return ObaContract.Stops.markAsFavorite(appContext, uri, favorite);
+            }
+        }, callback);
+    }
+
+    //
+    // Routes
+    //
+
+    /**
+     * @see ObaContract.Routes#insertOrUpdate(Context, String, ContentValues, boolean)
+     */
+    public static Future<?> insertOrUpdateRoute(Context context,
+            final String id,
+            final ContentValues values,
+            final boolean markAsUsed) {
+        final Context appContext = context.getApplicationContext();
+        return execute(new Runnable() {
+            @Override
+            public void run() {
+                ObaContract.Routes.insertOrUpdate(appContext, id, values, markAsUsed);
+            }
+        });
+    }
+
+    //
+    // Stop route filters
+    //
+
+    /**
+     * @see ObaContract.StopRouteFilters#get(Context, String)
+     */
+    public static Future<ArrayList<String>> getStopRouteFilter(Context context,
+            final String stopId,
+            Callback<ArrayList<String>> callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(new Callable<ArrayList<String>>() {
+            @Override
+            public ArrayList<String> call() {
+                return ObaContract.StopRouteFilters.get(appContext, stopId);
+            }
+        }, callback);
+    }
+
+    /**
+     * @see ObaContract.StopRouteFilters#set(Context, String, ArrayList)
+     */
+    public static Future<?> setStopRouteFilter(Context context,
+            final String stopId,
+            ArrayList<String> filter) {
+        final Context appContext = context.getApplicationContext();
+        // The caller can keep changing its list.
+        final ArrayList<String> copy = new ArrayList<String>(filter);
+        return execute(new Runnable() {
+            @Override
+            public void run() {
+                ObaContract.StopRouteFilters.set(appContext, stopId, copy);
+            }
+        });
+    }
+}
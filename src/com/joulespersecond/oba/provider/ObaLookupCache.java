@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.provider;
+
+import com.joulespersecond.oba.CacheRegistry;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A read-through cache of the few values from the stops, routes
+ * and trips tables that are looked up by ID over and over again,
+ * mostly by the trip service (route names, reminder times).
+ *
+ * Since the provider holds its change notifications for a short time
+ * before sending them, a lookup right after a write (such as scheduling
+ * right after a reminder is edited) can't wait for them: a table is
+ * dropped as soon as the provider in this process commits a write to it
+ * (see ObaProvider.getWriteGeneration). The notifications still drop
+ * the rows that were changed some other way: only those rows, or the
+ * whole table if the notification doesn't say which rows.
+ */
+public final class ObaLookupCache implements CacheRegistry.Cache {
+    private static ObaLookupCache sInstance;
+    // Rough size of a cached row, in bytes, for the cache's estimate.
+    private static final int ROW_SIZE = 200;
+
+    /**
+     * @return The cache shared by the whole process.
+     */
+    public static synchronized ObaLookupCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ObaLookupCache(context.getApplicationContext()
+                    .getContentResolver());
+            sInstance.register();
+            CacheRegistry.register("ObaLookupCache",
+                    CacheRegistry.PRIORITY_DATABASE, sInstance);
+        }
+        return sInstance;
+    }
+
+    private final ContentResolver mResolver;
+    private final Table mStops;
+    private final Table mRoutes;
+    private final Table mTrips;
+
+    /**
+     * Creates a cache that isn't registered for change notifications.
+     * This is only intended for testing, use {@link #get(Context)}.
+     */
+    public ObaLookupCache(ContentResolver cr) {
+        mResolver = cr;
+        mStops = new Table(ObaContract.Stops.CONTENT_URI, ObaContract.Stops.PATH,
+                ObaContract.Stops.NAME);
+        mRoutes = new Table(ObaContract.Routes.CONTENT_URI, ObaContract.Routes.PATH,
+                ObaContract.Routes.SHORTNAME);
+        mTrips = new Table(ObaContract.Trips.CONTENT_URI, ObaContract.Trips.PATH,
+                ObaContract.Trips.REMINDER,
+                ObaContract.Trips.ROUTE_ID);
+    }
+
+    private void register() {
+        mStops.register();
+        mRoutes.register();
+        mTrips.register();
+    }
+
+    /**
+     * @return The name of the stop, or an empty string if it isn't known.
+     */
+    public String getStopName(String stopId) {
+        return getString(mStops.get(stopId), ObaContract.Stops.NAME);
+    }
+
+    /**
+     * @return The short name of the route, or an empty string if it isn't known.
+     */
+    public String getRouteShortName(String routeId) {
+        return getString(mRoutes.get(routeId), ObaContract.Routes.SHORTNAME);
+    }
+
+    /**
+     * @return The route ID of the trip, or an empty string if there is no trip.
+     */
+    public String getTripRouteId(String tripId, String stopId) {
+        return getString(mTrips.get(tripId + "/" + stopId), ObaContract.Trips.ROUTE_ID);
+    }
+
+    /**
+     * @return The reminder time, in minutes, or null if there is no trip.
+     */
+    public Integer getTripReminder(String tripId, String stopId) {
+        final ContentValues values = mTrips.get(tripId + "/" + stopId);
+        return (values != null) ? values.getAsInteger(ObaContract.Trips.REMINDER) : null;
+    }
+
+    /**
+     * Drops the rows in the change notification URI from the cache.
+     *
+     * @param uri The URI passed to ContentObserver.onChange,
+     *      or the table URI to drop the whole table.
+     */
+    public void invalidate(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()) {
+            clear();
+            return;
+        }
+        final String table = segments.get(0);
+        if (ObaContract.Stops.PATH.equals(table)) {
+            mStops.invalidate(uri);
+        } else if (ObaContract.Routes.PATH.equals(table)) {
+            mRoutes.invalidate(uri);
+        } else if (ObaContract.Trips.PATH.equals(table)) {
+            mTrips.invalidate(uri);
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        return (mStops.size() + mRoutes.size() + mTrips.size()) * ROW_SIZE;
+    }
+
+    @Override
+    public void clear() {
+        mStops.clear();
+        mRoutes.clear();
+        mTrips.clear();
+    }
+
+    private static String getString(ContentValues values, String column) {
+        if (values != null) {
+            final String result = values.getAsString(column);
+            if (result != null) {
+                return result;
+            }
+        }
+        return "";
+    }
+
+    //
+    // The cached rows of a single table, keyed by the row ID
+    // (see ObaContract.getRowId). Rows that don't exist are cached as well,
+    // since the provider notifies when they are inserted.
+    //
+    private final class Table {
+        private final Uri mUri;
+        private final String mTable;
+        private final String[] mProjection;
+        private final HashMap<String,ContentValues> mRows =
+                new HashMap<String,ContentValues>();
+        // Incremented on every invalidation, so a query that raced
+        // with one doesn't put a stale row back in the cache.
+        private int mGeneration = 0;
+        // The provider's write generation for the table when the rows were read.
+        private int mWriteGeneration;
+
+        Table(Uri uri, String table, String... projection) {
+            mUri = uri;
+            mTable = table;
+            mProjection = projection;
+            mWriteGeneration = ObaProvider.getWriteGeneration(table);
+        }
+
+        void register() {
+            mResolver.registerContentObserver(mUri, true, new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    clear();
+                }
+
+                // API 16 and above call this with the URI that changed.
+                public void onChange(boolean selfChange, Uri uri) {
+                    if (uri != null) {
+                        invalidate(uri);
+                    } else {
+                        clear();
+                    }
+                }
+            });
+        }
+
+        ContentValues get(String id) {
+            int generation;
+            synchronized (this) {
+                final int written = ObaProvider.getWriteGeneration(mTable);
+                if (written != mWriteGeneration) {
+                    mWriteGeneration = written;
+                    clear();
+                } else if (mRows.containsKey(id)) {
+                    return mRows.get(id);
+                }
+                generation = mGeneration;
+            }
+            ContentValues values = null;
+            Cursor c = mResolver.query(Uri.withAppendedPath(mUri, id),
+                    mProjection, null, null, null);
+            if (c != null) {
+                try {
+                    if (c.moveToFirst()) {
+                        values = new ContentValues();
+                        DatabaseUtils.cursorRowToContentValues(c, values);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mRows.put(id, values);
+                }
+            }
+            return values;
+        }
+
+        synchronized void invalidate(Uri uri) {
+            final List<String> ids = ObaContract.getChangedIds(uri);
+            if (ids == null) {
+                clear();
+                return;
+            }
+            ++mGeneration;
+            for (String id: ids) {
+                mRows.remove(id);
+            }
+        }
+
+        synchronized void clear() {
+            ++mGeneration;
+            mRows.clear();
+        }
+
+        synchronized int size() {
+            return mRows.size();
+        }
+    }
+}
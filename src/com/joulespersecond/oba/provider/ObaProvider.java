@@ -16,27 +16,58 @@
 package com.joulespersecond.oba.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.ApplicationInfo;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 public class ObaProvider extends ContentProvider {
+    private static final String TAG = "ObaProvider";
+
+    // The number of write transactions between WAL checkpoints.
+    private static final int CHECKPOINT_INTERVAL = 100;
+    // How long to hold change notifications, to coalesce them.
+    private static final long NOTIFY_DELAY = 100;
+    // The maximum number of changed IDs to send in a notification.
+    private static final int MAX_CHANGED_IDS = 50;
+    // How long to buffer stop and route usage before writing it.
+    private static final long USAGE_FLUSH_DELAY = 30*1000;
+    // Compact the database once this percentage of it is free pages.
+    private static final int VACUUM_THRESHOLD_PERCENT = 25;
+
     private class OpenHelper extends SQLiteOpenHelper {
-        private static final String DATABASE_NAME = "com.joulespersecond.seattlebusbot.db";
-        private static final int DATABASE_VERSION = 16;
+        private static final int DATABASE_VERSION = 21;
 
         public OpenHelper(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            super(context, ObaContract.DATABASE_NAME, null, DATABASE_VERSION);
         }
 
         @Override
@@ -113,6 +144,146 @@ public class ObaProvider extends ContentProvider {
                         "END");
                 ++oldVersion;
             }
+            if (oldVersion == 16) {
+                createIndexes(db);
+                ++oldVersion;
+            }
+            if (oldVersion == 17) {
+                createSearchTables(db);
+                ++oldVersion;
+            }
+            if (oldVersion == 18) {
+                db.execSQL(
+                        "ALTER TABLE " + ObaContract.TripAlerts.PATH +
+                            " ADD COLUMN " + ObaContract.TripAlerts.NEXT_POLL + " INTEGER");
+                db.execSQL(
+                        "ALTER TABLE " + ObaContract.TripAlerts.PATH +
+                            " ADD COLUMN " + ObaContract.TripAlerts.POLL_COUNT + " INTEGER NOT NULL DEFAULT 0");
+                ++oldVersion;
+            }
+            if (oldVersion == 19) {
+                db.execSQL(
+                        "ALTER TABLE " + ObaContract.TripAlerts.PATH +
+                            " ADD COLUMN " + ObaContract.TripAlerts.STOP_DISTANCE + " REAL");
+                db.execSQL(
+                        "ALTER TABLE " + ObaContract.TripAlerts.PATH +
+                            " ADD COLUMN " + ObaContract.TripAlerts.VEHICLE_DISTANCE + " REAL");
+                db.execSQL(
+                        "ALTER TABLE " + ObaContract.TripAlerts.PATH +
+                            " ADD COLUMN " + ObaContract.TripAlerts.VEHICLE_TIME + " INTEGER");
+                ++oldVersion;
+            }
+            if (oldVersion == 20) {
+                db.execSQL(
+                        "ALTER TABLE " + ObaContract.Routes.PATH +
+                            " ADD COLUMN " + ObaContract.Routes.CATALOG_TIME + " INTEGER");
+                ++oldVersion;
+            }
+        }
+
+        //
+        // The full-text search indexes for stops and routes.
+        // These are kept in sync with the stops and routes tables
+        // by triggers, using the rowid of the row as the docid.
+        //
+        private void createSearchTables(SQLiteDatabase db) {
+            createSearchTable(db, ObaContract.Stops.PATH, STOPS_FTS,
+                    ObaContract.Stops.NAME,
+                    ObaContract.Stops.CODE,
+                    ObaContract.Stops.USER_NAME);
+            createSearchTable(db, ObaContract.Routes.PATH, ROUTES_FTS,
+                    ObaContract.Routes.SHORTNAME,
+                    ObaContract.Routes.LONGNAME);
+        }
+
+        private void createSearchTable(SQLiteDatabase db,
+                String table,
+                String ftsTable,
+                String... columns) {
+            final String columnList = TextUtils.join(", ", columns);
+            final String newValues = "new." + TextUtils.join(", new.", columns);
+
+            db.execSQL("DROP TABLE IF EXISTS " + ftsTable);
+            db.execSQL("CREATE VIRTUAL TABLE " + ftsTable +
+                    " USING fts3(" + columnList + ");");
+
+            final String insert = "INSERT INTO " + ftsTable +
+                    " (docid, " + columnList + ") VALUES (new.rowid, " + newValues + ");";
+
+            db.execSQL("DROP TRIGGER IF EXISTS " + ftsTable + "_insert");
+            db.execSQL("CREATE TRIGGER " + ftsTable + "_insert AFTER INSERT ON " + table +
+                    " BEGIN " +
+                        "DELETE FROM " + ftsTable + " WHERE docid=new.rowid;" +
+                        insert +
+                    "END");
+            db.execSQL("DROP TRIGGER IF EXISTS " + ftsTable + "_update");
+            db.execSQL("CREATE TRIGGER " + ftsTable + "_update AFTER UPDATE OF " +
+                    columnList + " ON " + table +
+                    " BEGIN " +
+                        "DELETE FROM " + ftsTable + " WHERE docid=old.rowid;" +
+                        insert +
+                    "END");
+            db.execSQL("DROP TRIGGER IF EXISTS " + ftsTable + "_delete");
+            db.execSQL("CREATE TRIGGER " + ftsTable + "_delete AFTER DELETE ON " + table +
+                    " BEGIN " +
+                        "DELETE FROM " + ftsTable + " WHERE docid=old.rowid;" +
+                    "END");
+
+            db.execSQL("INSERT INTO " + ftsTable + " (docid, " + columnList + ")" +
+                    " SELECT rowid, " + columnList + " FROM " + table);
+        }
+
+        //
+        // Indexes to support the queries that the app actually makes.
+        // Any new query with a selection or sort order should be added
+        // to the QueryPlanTest, which will fail if it needs a table scan.
+        //
+        private void createIndexes(SQLiteDatabase db) {
+            // QueryUtils.newRecentQuery
+            db.execSQL("CREATE INDEX IF NOT EXISTS stops_access_time_idx ON " +
+                    ObaContract.Stops.PATH + " (" +
+                    ObaContract.Stops.ACCESS_TIME + ", " +
+                    ObaContract.Stops.USE_COUNT + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS stops_use_count_idx ON " +
+                    ObaContract.Stops.PATH + " (" +
+                    ObaContract.Stops.USE_COUNT + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS routes_access_time_idx ON " +
+                    ObaContract.Routes.PATH + " (" +
+                    ObaContract.Routes.ACCESS_TIME + ", " +
+                    ObaContract.Routes.USE_COUNT + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS routes_use_count_idx ON " +
+                    ObaContract.Routes.PATH + " (" +
+                    ObaContract.Routes.USE_COUNT + ");");
+            // Starred stops, and the favorite/user name lookup
+            // in UIHelp.StopUserInfoMap
+            db.execSQL("CREATE INDEX IF NOT EXISTS stops_favorite_idx ON " +
+                    ObaContract.Stops.PATH + " (" +
+                    ObaContract.Stops.FAVORITE + ", " +
+                    ObaContract.Stops.USE_COUNT + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS stops_user_name_idx ON " +
+                    ObaContract.Stops.PATH + " (" +
+                    ObaContract.Stops.USER_NAME + ");");
+            // The trips table doesn't have a primary key,
+            // but it's always looked up by trip and stop.
+            db.execSQL("CREATE INDEX IF NOT EXISTS trips_id_idx ON " +
+                    ObaContract.Trips.PATH + " (" +
+                    ObaContract.Trips._ID + ", " +
+                    ObaContract.Trips.STOP_ID + ");");
+            // TripAlerts.insertIfNotExists, and the trip_alerts_cleanup trigger
+            db.execSQL("CREATE INDEX IF NOT EXISTS trip_alerts_trip_idx ON " +
+                    ObaContract.TripAlerts.PATH + " (" +
+                    ObaContract.TripAlerts.TRIP_ID + ", " +
+                    ObaContract.TripAlerts.STOP_ID + ", " +
+                    ObaContract.TripAlerts.START_TIME + ");");
+            // MaintenanceTask.prune, PollerTask
+            db.execSQL("CREATE INDEX IF NOT EXISTS trip_alerts_start_time_idx ON " +
+                    ObaContract.TripAlerts.PATH + " (" +
+                    ObaContract.TripAlerts.START_TIME + ");");
+            // ObaContract.StopRouteFilters
+            db.execSQL("CREATE INDEX IF NOT EXISTS stop_routes_filter_stop_idx ON " +
+                    ObaContract.StopRouteFilters.PATH + " (" +
+                    ObaContract.StopRouteFilters.STOP_ID + ");");
+            db.execSQL("ANALYZE;");
         }
 
         private void bootstrapDatabase(SQLiteDatabase db) {
@@ -150,6 +321,8 @@ public class ObaProvider extends ContentProvider {
         }
 
         private void dropTables(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + STOPS_FTS);
+            db.execSQL("DROP TABLE IF EXISTS " + ROUTES_FTS);
             db.execSQL("DROP TABLE IF EXISTS " + ObaContract.StopRouteFilters.PATH);
             db.execSQL("DROP TABLE IF EXISTS " + ObaContract.Routes.PATH);
             db.execSQL("DROP TABLE IF EXISTS " + ObaContract.Stops.PATH);
@@ -167,12 +340,25 @@ public class ObaProvider extends ContentProvider {
     private static final int TRIP_ALERTS= 7;
     private static final int TRIP_ALERTS_ID = 8;
     private static final int STOP_ROUTE_FILTERS = 9;
+    private static final int STOPS_SEARCH = 10;
+    private static final int ROUTES_SEARCH = 11;
+    private static final int USAGE = 12;
+    private static final int MAINTENANCE = 13;
+
+    private static final String STOPS_FTS = "stops_fts";
+    private static final String ROUTES_FTS = "routes_fts";
 
     private static final UriMatcher sUriMatcher;
     private static final HashMap<String,String> sStopsProjectionMap;
     private static final HashMap<String,String> sRoutesProjectionMap;
     private static final HashMap<String,String> sTripsProjectionMap;
     private static final HashMap<String,String> sTripAlertsProjectionMap;
+    // Table -> the number of writes to it that have been committed
+    // (or buffered). This is updated before the write returns, so
+    // ObaLookupCache can tell it's stale without waiting for the
+    // (delayed) change notifications.
+    private static final HashMap<String,Integer> sWriteGenerations =
+            new HashMap<String,Integer>();
 
     // Insert helpers are useful.
     private DatabaseUtils.InsertHelper mStopsInserter;
@@ -192,6 +378,10 @@ public class ObaProvider extends ContentProvider {
         sUriMatcher.addURI(ObaContract.AUTHORITY, ObaContract.TripAlerts.PATH, TRIP_ALERTS);
         sUriMatcher.addURI(ObaContract.AUTHORITY, ObaContract.TripAlerts.PATH + "/#", TRIP_ALERTS_ID);
         sUriMatcher.addURI(ObaContract.AUTHORITY, ObaContract.StopRouteFilters.PATH, STOP_ROUTE_FILTERS);
+        sUriMatcher.addURI(ObaContract.AUTHORITY, ObaContract.Stops.SEARCH_PATH + "/*", STOPS_SEARCH);
+        sUriMatcher.addURI(ObaContract.AUTHORITY, ObaContract.Routes.SEARCH_PATH + "/*", ROUTES_SEARCH);
+        sUriMatcher.addURI(ObaContract.AUTHORITY, ObaContract.USAGE_PATH, USAGE);
+        sUriMatcher.addURI(ObaContract.AUTHORITY, ObaContract.MAINTENANCE_PATH, MAINTENANCE);
 
         sStopsProjectionMap = new HashMap<String,String>();
         sStopsProjectionMap.put(ObaContract.Stops._ID,      ObaContract.Stops._ID);
@@ -220,6 +410,7 @@ public class ObaProvider extends ContentProvider {
         sRoutesProjectionMap.put(ObaContract.Routes.ACCESS_TIME,ObaContract.Routes.ACCESS_TIME);
         sRoutesProjectionMap.put(ObaContract.Routes.FAVORITE, 	ObaContract.Routes.FAVORITE);
         sRoutesProjectionMap.put(ObaContract.Routes.URL,        ObaContract.Routes.URL);
+        sRoutesProjectionMap.put(ObaContract.Routes.CATALOG_TIME, ObaContract.Routes.CATALOG_TIME);
         sRoutesProjectionMap.put(ObaContract.Routes._COUNT,     "count(*)");
 
         sTripsProjectionMap = new HashMap<String,String>();
@@ -239,15 +430,60 @@ public class ObaProvider extends ContentProvider {
         sTripAlertsProjectionMap.put(ObaContract.TripAlerts.STOP_ID,    ObaContract.TripAlerts.STOP_ID);
         sTripAlertsProjectionMap.put(ObaContract.TripAlerts.START_TIME, ObaContract.TripAlerts.START_TIME);
         sTripAlertsProjectionMap.put(ObaContract.TripAlerts.STATE,      ObaContract.TripAlerts.STATE);
+        sTripAlertsProjectionMap.put(ObaContract.TripAlerts.NEXT_POLL,  ObaContract.TripAlerts.NEXT_POLL);
+        sTripAlertsProjectionMap.put(ObaContract.TripAlerts.POLL_COUNT, ObaContract.TripAlerts.POLL_COUNT);
+        sTripAlertsProjectionMap.put(ObaContract.TripAlerts.STOP_DISTANCE, ObaContract.TripAlerts.STOP_DISTANCE);
+        sTripAlertsProjectionMap.put(ObaContract.TripAlerts.VEHICLE_DISTANCE, ObaContract.TripAlerts.VEHICLE_DISTANCE);
+        sTripAlertsProjectionMap.put(ObaContract.TripAlerts.VEHICLE_TIME, ObaContract.TripAlerts.VEHICLE_TIME);
         sTripAlertsProjectionMap.put(ObaContract.TripAlerts._COUNT,     "count(*)");
     }
 
     private SQLiteDatabase mDb;
+    // The number of queries that are reading from the database.
+    private int mActiveQueries = 0;
     private OpenHelper mOpenHelper;
+    private boolean mWal = false;
+    // Query plans (see ObaContract.EXPLAIN_PARAM) are only
+    // returned by debuggable builds.
+    private boolean mDebuggable = false;
+    // Guarded by 'this', since transactions end on any binder thread.
+    private int mWritesSinceCheckpoint = 0;
+
+    //
+    // The state of the write transaction on the current thread.
+    // Nested transactions (such as the inserts within applyBatch)
+    // share the state of the outermost one, and the notifications
+    // are only sent once it has been committed.
+    //
+    private static final class TransactionState {
+        int depth = 0;
+        boolean failed = false;
+        final LinkedHashSet<Uri> notifications = new LinkedHashSet<Uri>();
+    }
+
+    private final ThreadLocal<TransactionState> mTransaction =
+            new ThreadLocal<TransactionState>();
+
+    // Committed notifications waiting to be sent.
+    private final LinkedHashSet<Uri> mQueuedNotifications = new LinkedHashSet<Uri>();
+    private Handler mNotifyHandler;
+
+    // Stop and route usage that hasn't been written yet.
+    // Reads of the stops and routes tables hold the flush lock,
+    // so they don't see the usage while it is neither pending
+    // nor committed.
+    private final UsageBuffer mUsage = new UsageBuffer();
+    private final Object mFlushLock = new Object();
+    private Timer mFlushTimer;
+    private TimerTask mFlushTask;
 
     @Override
     public boolean onCreate() {
         mOpenHelper = new OpenHelper(getContext());
+        mNotifyHandler = new Handler(Looper.getMainLooper());
+        mDebuggable = (getContext().getApplicationInfo().flags &
+                ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        MainThreadIoDetector.setEnabled(mDebuggable);
         return true;
     }
 
@@ -273,6 +509,10 @@ public class ObaProvider extends ContentProvider {
             return ObaContract.TripAlerts.CONTENT_TYPE;
         case STOP_ROUTE_FILTERS:
             return ObaContract.StopRouteFilters.CONTENT_DIR_TYPE;
+        case STOPS_SEARCH:
+            return ObaContract.Stops.CONTENT_DIR_TYPE;
+        case ROUTES_SEARCH:
+            return ObaContract.Routes.CONTENT_DIR_TYPE;
         default:
             throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -280,56 +520,469 @@ public class ObaProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        final int match = sUriMatcher.match(uri);
+        if ((match == STOPS_ID || match == ROUTES_ID) &&
+                uri.getQueryParameter(ObaContract.MARK_AS_USED_PARAM) != null) {
+            // This is written (and observers notified) later.
+            final Uri result = uri.buildUpon().clearQuery().build();
+            mUsage.add(result, values, System.currentTimeMillis());
+            // Queries will see the buffered values right away.
+            onWritten(Collections.singleton(result));
+            scheduleFlush(USAGE_FLUSH_DELAY);
+            return result;
+        }
+        checkThread("insert", uri);
+        flushUsage(match);
+
         final SQLiteDatabase db = getDatabase();
-        db.beginTransaction();
+        boolean success = false;
+        beginTransaction(db);
         try {
             Uri result = insertInternal(db, uri, values);
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(result);
             db.setTransactionSuccessful();
+            success = true;
             return result;
         }
         finally {
-            db.endTransaction();
+            endTransaction(db, success);
+        }
+    }
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        checkThread("bulkInsert", uri);
+        flushUsage(sUriMatcher.match(uri));
+        final SQLiteDatabase db = getDatabase();
+        boolean success = false;
+        beginTransaction(db);
+        try {
+            final int len = values.length;
+            for (int i = 0; i < len; ++i) {
+                notifyChange(insertInternal(db, uri, values[i]));
+            }
+            db.setTransactionSuccessful();
+            success = true;
+            return len;
+        }
+        finally {
+            endTransaction(db, success);
         }
     }
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
-        final SQLiteDatabase db = getDatabase();
-        return queryInternal(db, uri, projection, selection, selectionArgs, sortOrder);
+        checkThread("query", uri);
+        final int match = sUriMatcher.match(uri);
+        if (match == STOPS_ID || match == ROUTES_ID) {
+            synchronized (mFlushLock) {
+                final UsageBuffer.Entry entry = mUsage.get(uri);
+                if (entry == null) {
+                    return queryRead(uri, projection,
+                            selection, selectionArgs, sortOrder);
+                }
+                if (!needsFlush(entry, projection)) {
+                    Cursor c = queryRead(uri, projection,
+                            selection, selectionArgs, sortOrder);
+                    if (c == null || c.getCount() > 0) {
+                        return (c != null) ? UsageBuffer.wrap(c, entry) : null;
+                    }
+                    // The row hasn't been written yet.
+                    c.close();
+                }
+            }
+        }
+        // Any query that can filter or sort by the usage
+        // needs to have it in the database.
+        flushUsage(match);
+        return queryRead(uri, projection, selection, selectionArgs, sortOrder);
     }
+
+    //
+    // Queries the database, and counts the query as running
+    // until its cursor has been filled, so maintenance doesn't VACUUM
+    // at the same time. (After that, the cursor is only reading its window,
+    // so an open cursor, such as a loader's, doesn't stop the VACUUM.)
+    //
+    private Cursor queryRead(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        synchronized (this) {
+            ++mActiveQueries;
+        }
+        try {
+            final Cursor c = queryInternal(getDatabase(), uri, projection,
+                    selection, selectionArgs, sortOrder);
+            if (c != null) {
+                c.getCount();
+            }
+            return c;
+        } finally {
+            synchronized (this) {
+                --mActiveQueries;
+            }
+        }
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        if (match == USAGE) {
+            // Write the usage soon, rather than waiting for the timer.
+            scheduleFlush(0);
+            return mUsage.size();
+        }
+        checkThread("update", uri);
+        if (match == MAINTENANCE) {
+            return maintain();
+        }
+        flushUsage(match);
+
         final SQLiteDatabase db = getDatabase();
-        db.beginTransaction();
+        boolean success = false;
+        beginTransaction(db);
         try {
             int result = updateInternal(db, uri, values, selection, selectionArgs);
             if (result > 0) {
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
             }
             db.setTransactionSuccessful();
+            success = true;
             return result;
         }
         finally {
-            db.endTransaction();
+            endTransaction(db, success);
         }
     }
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        checkThread("delete", uri);
+        flushUsage(sUriMatcher.match(uri));
         final SQLiteDatabase db = getDatabase();
-        db.beginTransaction();
+        boolean success = false;
+        beginTransaction(db);
         try {
             int result = deleteInternal(db, uri, selection, selectionArgs);
             if (result > 0) {
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
             }
             db.setTransactionSuccessful();
+            success = true;
             return result;
         }
         finally {
-            db.endTransaction();
+            endTransaction(db, success);
+        }
+    }
+
+    /**
+     * Applies all of the operations in a single transaction.
+     * The individual insert/update/delete calls nest inside of it,
+     * and their change notifications are held until the whole batch
+     * has been committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(
+            ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        checkThread("applyBatch", ObaContract.AUTHORITY_URI);
+        final SQLiteDatabase db = getDatabase();
+        boolean success = false;
+        beginTransaction(db);
+        try {
+            ContentProviderResult[] result = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            success = true;
+            return result;
+        }
+        finally {
+            endTransaction(db, success);
+        }
+    }
+
+    //
+    // Updates the statistics SQLite uses to plan queries, and compacts
+    // the database if enough of it is free pages. This can't be done
+    // in a transaction. VACUUM can change the rowids of the stops and
+    // routes tables (they don't have an INTEGER PRIMARY KEY), so the
+    // search indexes are rebuilt afterwards.
+    // Returns 1 if the database was compacted, 0 if not.
+    //
+    private int maintain() {
+        final SQLiteDatabase db = getDatabase();
+        db.execSQL("ANALYZE;");
+
+        final long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        final long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        if (pages == 0 || (free * 100 / pages) < VACUUM_THRESHOLD_PERCENT) {
+            return 0;
+        }
+        synchronized (this) {
+            // A query that's reading would keep VACUUM from getting its lock,
+            // so wait for the next maintenance instead.
+            if (mActiveQueries > 0) {
+                Log.d(TAG, "Not vacuuming, " + mActiveQueries + " queries are running");
+                return 0;
+            }
+        }
+        try {
+            db.execSQL("VACUUM;");
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to vacuum: " + e);
+            return 0;
+        }
+
+        boolean success = false;
+        beginTransaction(db);
+        try {
+            mOpenHelper.createSearchTables(db);
+            db.setTransactionSuccessful();
+            success = true;
+        }
+        finally {
+            endTransaction(db, success);
+        }
+        if (mWal) {
+            checkpoint(db);
+        }
+        return 1;
+    }
+
+    @Override
+    public void onLowMemory() {
+        scheduleFlush(0);
+    }
+
+    // ComponentCallbacks2.onTrimMemory, which is only called on
+    // API 14 and above (so this can't be an @Override.)
+    // Once we are in the background, we could be killed at any time.
+    public void onTrimMemory(int level) {
+        scheduleFlush(0);
+    }
+
+    //
+    // Writes the pending usage after the delay, unless it is already
+    // scheduled to be written sooner.
+    //
+    private synchronized void scheduleFlush(long delay) {
+        if (mFlushTask != null) {
+            if (delay > 0) {
+                return;
+            }
+            mFlushTask.cancel();
+        }
+        if (mFlushTimer == null) {
+            mFlushTimer = new Timer(TAG, true);
+        }
+        mFlushTask = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (ObaProvider.this) {
+                    if (mFlushTask == this) {
+                        mFlushTask = null;
+                    }
+                }
+                try {
+                    flushUsage();
+                } catch (SQLiteException e) {
+                    // It will be retried the next time.
+                    Log.e(TAG, "Unable to write usage: " + e);
+                }
+            }
+        };
+        mFlushTimer.schedule(mFlushTask, delay);
+    }
+
+    //
+    // Before any other access to the stops or routes tables,
+    // the usage needs to be written, so the access sees it
+    // (or, for writes, doesn't overwrite it with older values.)
+    //
+    private void flushUsage(int match) {
+        switch (match) {
+        case STOPS:
+        case STOPS_ID:
+        case STOPS_SEARCH:
+            if (mUsage.hasPending(ObaContract.Stops.PATH)) {
+                flushUsage();
+            }
+            break;
+        case ROUTES:
+        case ROUTES_ID:
+        case ROUTES_SEARCH:
+            if (mUsage.hasPending(ObaContract.Routes.PATH)) {
+                flushUsage();
+            }
+            break;
+        }
+    }
+
+    //
+    // Writes all of the pending usage in a single transaction.
+    //
+    private void flushUsage() {
+        synchronized (mFlushLock) {
+            final List<UsageBuffer.Entry> entries = mUsage.drain();
+            if (entries.isEmpty()) {
+                return;
+            }
+            final SQLiteDatabase db = getDatabase();
+            boolean success = false;
+            beginTransaction(db);
+            try {
+                for (UsageBuffer.Entry entry: entries) {
+                    if (ObaContract.Stops.PATH.equals(entry.getTable())) {
+                        notifyChange(upsertInternal(db, entry.uri, ObaContract.Stops.PATH,
+                                entry.values, entry.count, entry.accessTime));
+                    } else {
+                        notifyChange(upsertInternal(db, entry.uri, ObaContract.Routes.PATH,
+                                entry.values, entry.count, entry.accessTime));
+                    }
+                }
+                db.setTransactionSuccessful();
+                success = true;
+            }
+            finally {
+                endTransaction(db, success);
+                if (!success) {
+                    mUsage.restore(entries);
+                }
+            }
+        }
+    }
+
+    //
+    // The pending usage can be merged into a query on the row
+    // as long as the query doesn't need the rest of the pending values.
+    //
+    private static boolean needsFlush(UsageBuffer.Entry entry, String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column: projection) {
+            if (entry.values.containsKey(column)) {
+                return true;
+            }
+            if (ObaContract.Stops.UI_NAME.equals(column) &&
+                    entry.values.containsKey(ObaContract.Stops.NAME)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //
+    // Records the change, to be sent when the transaction is committed.
+    //
+    private void notifyChange(Uri uri) {
+        final Uri changed = uri.buildUpon().clearQuery().build();
+        final TransactionState state = mTransaction.get();
+        if (state != null) {
+            state.notifications.add(changed);
+        } else {
+            queueNotifications(Collections.singleton(changed));
+        }
+    }
+
+    //
+    // Notifications are held for a short time before being sent,
+    // so a burst of writes (such as marking a stop as used followed
+    // by a rename) only causes observers to requery once.
+    //
+    private void queueNotifications(Collection<Uri> uris) {
+        onWritten(uris);
+        synchronized (mQueuedNotifications) {
+            final boolean wasEmpty = mQueuedNotifications.isEmpty();
+            mQueuedNotifications.addAll(uris);
+            if (wasEmpty && !mQueuedNotifications.isEmpty()) {
+                mNotifyHandler.postDelayed(mSendNotifications, NOTIFY_DELAY);
+            }
+        }
+    }
+
+    private static synchronized void onWritten(Collection<Uri> uris) {
+        for (Uri uri: uris) {
+            final List<String> segments = uri.getPathSegments();
+            if (segments.isEmpty()) {
+                continue;
+            }
+            final String table = segments.get(0);
+            final Integer generation = sWriteGenerations.get(table);
+            sWriteGenerations.put(table, (generation != null) ? generation + 1 : 1);
+        }
+    }
+
+    /**
+     * @return The number of writes to the table that have been committed
+     *      in this process. This changes before the write returns.
+     */
+    static synchronized int getWriteGeneration(String table) {
+        final Integer generation = sWriteGenerations.get(table);
+        return (generation != null) ? generation : 0;
+    }
+
+    private final Runnable mSendNotifications = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<Uri> uris;
+            synchronized (mQueuedNotifications) {
+                uris = new ArrayList<Uri>(mQueuedNotifications);
+                mQueuedNotifications.clear();
+            }
+            final ContentResolver cr = getContext().getContentResolver();
+            for (Uri uri: coalesceNotifications(uris)) {
+                cr.notifyChange(uri, null);
+            }
         }
+    };
+
+    //
+    // Collapses the notifications to one per table. If only one row in
+    // the table changed, that's the row URI. If several did, it's the table
+    // URI with the IDs of the changed rows (see ObaContract.getChangedIds).
+    // If the whole table (or too many rows) changed, it's just the table URI.
+    //
+    static List<Uri> coalesceNotifications(List<Uri> uris) {
+        // A null list means that the entire table changed.
+        final LinkedHashMap<String,ArrayList<Uri>> tables =
+                new LinkedHashMap<String,ArrayList<Uri>>();
+        for (Uri uri: uris) {
+            final List<String> segments = uri.getPathSegments();
+            if (segments.isEmpty()) {
+                continue;
+            }
+            final String table = segments.get(0);
+            ArrayList<Uri> rows = tables.get(table);
+            if (segments.size() == 1) {
+                tables.put(table, null);
+            } else if (rows != null || !tables.containsKey(table)) {
+                if (rows == null) {
+                    rows = new ArrayList<Uri>();
+                    tables.put(table, rows);
+                }
+                if (!rows.contains(uri)) {
+                    rows.add(uri);
+                }
+            }
+        }
+
+        final ArrayList<Uri> result = new ArrayList<Uri>(tables.size());
+        for (Map.Entry<String,ArrayList<Uri>> entry: tables.entrySet()) {
+            final Uri tableUri =
+                    Uri.withAppendedPath(ObaContract.AUTHORITY_URI, entry.getKey());
+            final ArrayList<Uri> rows = entry.getValue();
+            if (rows == null || rows.size() > MAX_CHANGED_IDS) {
+                result.add(tableUri);
+            } else if (rows.size() == 1) {
+                result.add(rows.get(0));
+            } else {
+                final ArrayList<String> ids = new ArrayList<String>(rows.size());
+                for (Uri row: rows) {
+                    ids.add(ObaContract.getRowId(row));
+                }
+                result.add(ObaContract.buildChangedUri(tableUri, ids));
+            }
+        }
+        return result;
     }
 
     private Uri insertInternal(SQLiteDatabase db, Uri uri, ContentValues values) {
@@ -377,8 +1030,8 @@ public class ObaProvider extends ContentProvider {
             return result;
 
         case STOP_ROUTE_FILTERS:
-            // TODO: We should provide a "virtual" column that is an array,
-            // so clients don't have to call the content provider for each item to insert.
+            // Clients that insert more than one row should use bulkInsert
+            // or applyBatch, so it is all done in one transaction.
             // Pull out the Trip ID from the values to construct the new URI
             // (And we'd better have a route ID)
             id = values.getAsString(ObaContract.StopRouteFilters.STOP_ID);
@@ -389,9 +1042,19 @@ public class ObaProvider extends ContentProvider {
             mFilterInserter.insert(values);
             return result;
 
-        // What would these mean, anyway??
+        // Inserting to a stop or route URI creates the row if it doesn't
+        // exist, or updates it if it does.
         case STOPS_ID:
+            return upsertInternal(db, uri, ObaContract.Stops.PATH,
+                    values, markAsUsed(uri), System.currentTimeMillis());
+
         case ROUTES_ID:
+            return upsertInternal(db, uri, ObaContract.Routes.PATH,
+                    values, markAsUsed(uri), System.currentTimeMillis());
+
+        // What would these mean, anyway??
+        case STOPS_SEARCH:
+        case ROUTES_SEARCH:
         case TRIPS_ID:
         case TRIP_ALERTS_ID:
             throw new UnsupportedOperationException("Cannot insert to this URI: " + uri);
@@ -399,6 +1062,91 @@ public class ObaProvider extends ContentProvider {
             throw new IllegalArgumentException("Unknown URI: " + uri);
         }
     }
+    //
+    // This does an insert or update of a stop or route row.
+    //
+    // SQLite doesn't have a real upsert, so this updates the columns
+    // that are in the values, and inserts the row if there wasn't one,
+    // in one transaction. The other columns are left alone, so they
+    // don't need to be listed here. If useCount is non-zero, it
+    // increments the use count by that much and sets the access time.
+    //
+    private Uri upsertInternal(SQLiteDatabase db,
+            Uri uri,
+            String table,
+            ContentValues values,
+            int useCount,
+            long accessTime) {
+        final String id = uri.getLastPathSegment();
+        final boolean markAsUsed = useCount > 0;
+        final ArrayList<Object> args = new ArrayList<Object>(values.size() + 3);
+
+        // The user columns are the same for stops and routes.
+        StringBuilder sql = new StringBuilder();
+        sql.append("UPDATE ");
+        sql.append(table);
+        sql.append(" SET ");
+        // This makes sure there's something to set,
+        // so we can still tell whether the row exists.
+        sql.append(ObaContract.Stops._ID);
+        sql.append('=');
+        sql.append(ObaContract.Stops._ID);
+        for (Map.Entry<String,Object> entry: values.valueSet()) {
+            final String column = entry.getKey();
+            if (ObaContract.Stops._ID.equals(column) ||
+                    (markAsUsed && (ObaContract.Stops.USE_COUNT.equals(column) ||
+                            ObaContract.Stops.ACCESS_TIME.equals(column)))) {
+                continue;
+            }
+            sql.append(',');
+            sql.append(column);
+            sql.append("=?");
+            args.add(entry.getValue());
+        }
+        if (markAsUsed) {
+            sql.append(',');
+            sql.append(ObaContract.Stops.USE_COUNT);
+            sql.append("=COALESCE(");
+            sql.append(ObaContract.Stops.USE_COUNT);
+            sql.append(",0)+?,");
+            sql.append(ObaContract.Stops.ACCESS_TIME);
+            sql.append("=?");
+            args.add(useCount);
+            args.add(accessTime);
+        }
+        sql.append(" WHERE ");
+        sql.append(ObaContract.Stops._ID);
+        sql.append("=?");
+        args.add(id);
+
+        boolean success = false;
+        beginTransaction(db);
+        try {
+            db.execSQL(sql.toString(), args.toArray());
+            // (SQLiteStatement.executeUpdateDelete isn't available before API 11.)
+            if (DatabaseUtils.longForQuery(db, "SELECT changes()", null) == 0) {
+                final ContentValues insert = new ContentValues(values);
+                insert.put(ObaContract.Stops._ID, id);
+                if (markAsUsed) {
+                    insert.put(ObaContract.Stops.USE_COUNT, useCount);
+                    insert.put(ObaContract.Stops.ACCESS_TIME, accessTime);
+                } else if (!insert.containsKey(ObaContract.Stops.USE_COUNT)) {
+                    insert.put(ObaContract.Stops.USE_COUNT, 0);
+                }
+                db.insertOrThrow(table, null, insert);
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            endTransaction(db, success);
+        }
+        return uri.buildUpon().clearQuery().build();
+    }
+
+    private static int markAsUsed(Uri uri) {
+        return (uri.getQueryParameter(ObaContract.MARK_AS_USED_PARAM) != null) ? 1 : 0;
+    }
+
     private Cursor queryInternal(SQLiteDatabase db,
             Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
@@ -411,8 +1159,8 @@ public class ObaProvider extends ContentProvider {
         case STOPS:
             qb.setTables(ObaContract.Stops.PATH);
             qb.setProjectionMap(sStopsProjectionMap);
-            return qb.query(mDb, projection, selection, selectionArgs,
-                    null, null, sortOrder, limit);
+            return doQuery(db, qb, uri, projection, selection, selectionArgs,
+                    sortOrder, limit);
 
         case STOPS_ID:
             qb.setTables(ObaContract.Stops.PATH);
@@ -420,14 +1168,14 @@ public class ObaProvider extends ContentProvider {
             qb.appendWhere(ObaContract.Stops._ID);
             qb.appendWhere("=");
             qb.appendWhereEscapeString(uri.getLastPathSegment());
-            return qb.query(mDb, projection, selection, selectionArgs,
-                    null, null, sortOrder, limit);
+            return doQuery(db, qb, uri, projection, selection, selectionArgs,
+                    sortOrder, limit);
 
         case ROUTES:
             qb.setTables(ObaContract.Routes.PATH);
             qb.setProjectionMap(sRoutesProjectionMap);
-            return qb.query(mDb, projection, selection, selectionArgs,
-                    null, null, sortOrder, limit);
+            return doQuery(db, qb, uri, projection, selection, selectionArgs,
+                    sortOrder, limit);
 
         case ROUTES_ID:
             qb.setTables(ObaContract.Routes.PATH);
@@ -435,27 +1183,27 @@ public class ObaProvider extends ContentProvider {
             qb.appendWhere(ObaContract.Routes._ID);
             qb.appendWhere("=");
             qb.appendWhereEscapeString(uri.getLastPathSegment());
-            return qb.query(mDb, projection, selection, selectionArgs,
-                    null, null, sortOrder, limit);
+            return doQuery(db, qb, uri, projection, selection, selectionArgs,
+                    sortOrder, limit);
 
         case TRIPS:
             qb.setTables(ObaContract.Trips.PATH);
             qb.setProjectionMap(sTripsProjectionMap);
-            return qb.query(mDb, projection, selection, selectionArgs,
-                    null, null, sortOrder, limit);
+            return doQuery(db, qb, uri, projection, selection, selectionArgs,
+                    sortOrder, limit);
 
         case TRIPS_ID:
             qb.setTables(ObaContract.Trips.PATH);
             qb.setProjectionMap(sTripsProjectionMap);
             qb.appendWhere(tripWhere(uri));
-            return qb.query(mDb, projection, selection, selectionArgs,
-                    null, null, sortOrder, limit);
+            return doQuery(db, qb, uri, projection, selection, selectionArgs,
+                    sortOrder, limit);
 
         case TRIP_ALERTS:
             qb.setTables(ObaContract.TripAlerts.PATH);
             qb.setProjectionMap(sTripAlertsProjectionMap);
-            return qb.query(mDb, projection, selection, selectionArgs,
-                    null, null, sortOrder, limit);
+            return doQuery(db, qb, uri, projection, selection, selectionArgs,
+                    sortOrder, limit);
 
         case TRIP_ALERTS_ID:
             qb.setTables(ObaContract.TripAlerts.PATH);
@@ -463,18 +1211,97 @@ public class ObaProvider extends ContentProvider {
             qb.appendWhere(ObaContract.TripAlerts._ID);
             qb.appendWhere("=");
             qb.appendWhere(String.valueOf(ContentUris.parseId(uri)));
-            return qb.query(mDb, projection, selection, selectionArgs,
-                    null, null, sortOrder, limit);
+            return doQuery(db, qb, uri, projection, selection, selectionArgs,
+                    sortOrder, limit);
 
         case STOP_ROUTE_FILTERS:
             qb.setTables(ObaContract.StopRouteFilters.PATH);
-            return qb.query(mDb, projection, selection, selectionArgs,
-                    null, null, sortOrder, limit);
+            return doQuery(db, qb, uri, projection, selection, selectionArgs,
+                    sortOrder, limit);
+
+        case STOPS_SEARCH:
+            qb.setTables(ObaContract.Stops.PATH);
+            qb.setProjectionMap(sStopsProjectionMap);
+            appendSearchWhere(qb, STOPS_FTS, uri);
+            if (sortOrder == null) {
+                sortOrder = ObaContract.Stops.USE_COUNT + " desc";
+            }
+            return doQuery(db, qb, uri, projection, selection, selectionArgs,
+                    sortOrder, limit);
+
+        case ROUTES_SEARCH:
+            qb.setTables(ObaContract.Routes.PATH);
+            qb.setProjectionMap(sRoutesProjectionMap);
+            appendSearchWhere(qb, ROUTES_FTS, uri);
+            if (sortOrder == null) {
+                sortOrder = ObaContract.Routes.USE_COUNT + " desc";
+            }
+            return doQuery(db, qb, uri, projection, selection, selectionArgs,
+                    sortOrder, limit);
 
         default:
             throw new IllegalArgumentException("Unknown URI: " + uri);
         }
     }
+    //
+    // Restricts the query to the rows that match the search text
+    // in the last path segment of the URI.
+    //
+    private static void appendSearchWhere(SQLiteQueryBuilder qb,
+            String ftsTable,
+            Uri uri) {
+        final String match = buildSearchMatch(uri.getLastPathSegment());
+        if (match == null) {
+            // Nothing to search for, so there are no results.
+            qb.appendWhere("0");
+            return;
+        }
+        qb.appendWhere("rowid IN (SELECT docid FROM " + ftsTable +
+                " WHERE " + ftsTable + " MATCH ");
+        qb.appendWhereEscapeString(match);
+        qb.appendWhere(")");
+    }
+
+    //
+    // Converts the user's search text to an FTS match expression,
+    // where every word has to match the prefix of a word in the row.
+    // This splits on the same characters as the FTS 'simple' tokenizer
+    // (any ASCII character that isn't a letter or number), which also
+    // removes any characters that have special meaning to MATCH.
+    // The words are lower cased so they can't be read as operators (OR, NEAR).
+    //
+    static String buildSearchMatch(String text) {
+        if (text == null) {
+            return null;
+        }
+        final String[] words = text.split("[\\x00-\\x2f\\x3a-\\x40\\x5b-\\x60\\x7b-\\x7f]+");
+        StringBuilder sb = new StringBuilder();
+        for (String word: words) {
+            if (word.length() == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(word.toLowerCase());
+            sb.append('*');
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private Cursor doQuery(SQLiteDatabase db, SQLiteQueryBuilder qb,
+            Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, String limit) {
+        if (mDebuggable && uri.getQueryParameter(ObaContract.EXPLAIN_PARAM) != null) {
+            // Return the query plan rather than the results.
+            String sql = qb.buildQuery(projection, selection, selectionArgs,
+                    null, null, sortOrder, limit);
+            return db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        }
+        return qb.query(db, projection, selection, selectionArgs,
+                null, null, sortOrder, limit);
+    }
+
     private int updateInternal(SQLiteDatabase db,
             Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
@@ -583,7 +1410,7 @@ public class ObaProvider extends ContentProvider {
         return sb.toString();
     }
 
-    private SQLiteDatabase getDatabase() {
+    private synchronized SQLiteDatabase getDatabase() {
         if (mDb == null) {
             mDb = mOpenHelper.getWritableDatabase();
             // Initialize the insert helpers
@@ -592,7 +1419,83 @@ public class ObaProvider extends ContentProvider {
             mTripsInserter = new DatabaseUtils.InsertHelper(mDb, ObaContract.Trips.PATH);
             mTripAlertsInserter = new DatabaseUtils.InsertHelper(mDb, ObaContract.TripAlerts.PATH);
             mFilterInserter = new DatabaseUtils.InsertHelper(mDb, ObaContract.StopRouteFilters.PATH);
+            // With write-ahead logging, readers don't block the writer
+            // (and vice versa) so the UI's queries don't have to wait
+            // for background writes: the framework runs queries outside
+            // of a transaction on its pool of read connections.
+            // This is only available on Honeycomb+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                mWal = mDb.enableWriteAheadLogging();
+            }
         }
         return mDb;
     }
+
+    //
+    // Reports the operation if it's on the main thread (see MainThreadIoDetector.)
+    // The operations within a batch are reported with the batch.
+    //
+    private void checkThread(String operation, Uri uri) {
+        final TransactionState state = mTransaction.get();
+        if (state == null || state.depth == 0) {
+            MainThreadIoDetector.check(operation, uri);
+        }
+    }
+
+    private void beginTransaction(SQLiteDatabase db) {
+        db.beginTransaction();
+        TransactionState state = mTransaction.get();
+        if (state == null) {
+            state = new TransactionState();
+            mTransaction.set(state);
+        }
+        ++state.depth;
+    }
+
+    //
+    // Ends the write transaction. When the outermost transaction has been
+    // committed, this sends the notifications and checkpoints the WAL every
+    // so often. SQLite will checkpoint itself once the log gets large enough,
+    // but since our transactions are tiny it's better to keep the log
+    // (and the time it takes readers to search it) small.
+    //
+    private void endTransaction(SQLiteDatabase db, boolean success) {
+        final TransactionState state = mTransaction.get();
+        if (!success) {
+            state.failed = true;
+        }
+        db.endTransaction();
+        if (--state.depth > 0) {
+            return;
+        }
+        mTransaction.set(null);
+        if (state.failed) {
+            return;
+        }
+        queueNotifications(state.notifications);
+
+        if (mWal && needsCheckpoint()) {
+            checkpoint(db);
+        }
+    }
+
+    private synchronized boolean needsCheckpoint() {
+        if (++mWritesSinceCheckpoint < CHECKPOINT_INTERVAL) {
+            return false;
+        }
+        mWritesSinceCheckpoint = 0;
+        return true;
+    }
+
+    private void checkpoint(SQLiteDatabase db) {
+        try {
+            Cursor c = db.rawQuery("PRAGMA wal_checkpoint", null);
+            if (c != null) {
+                c.moveToFirst();
+                c.close();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to checkpoint: " + e);
+        }
+    }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Holds the stop and route usage (use count and access time) that
+ * hasn't been written to the database yet.
+ * Marking a stop or route as used happens every time the user views one,
+ * so rather than a transaction each time, these are merged per row
+ * and written in a single transaction by ObaProvider.
+ */
+final class UsageBuffer {
+    static final class Entry {
+        final Uri uri;
+        final ContentValues values;
+        int count;
+        long accessTime;
+
+        Entry(Uri uri) {
+            this.uri = uri;
+            this.values = new ContentValues();
+        }
+
+        Entry(Entry other) {
+            this.uri = other.uri;
+            this.values = new ContentValues(other.values);
+            this.count = other.count;
+            this.accessTime = other.accessTime;
+        }
+
+        String getTable() {
+            return uri.getPathSegments().get(0);
+        }
+    }
+
+    // The key is the URI of the row.
+    private final LinkedHashMap<Uri,Entry> mEntries = new LinkedHashMap<Uri,Entry>();
+
+    /**
+     * Records that the row has been used.
+     *
+     * @param uri The row URI (with no query)
+     * @param values The latest values for the row.
+     * @param accessTime The time it was used.
+     */
+    synchronized void add(Uri uri, ContentValues values, long accessTime) {
+        Entry entry = mEntries.get(uri);
+        if (entry == null) {
+            entry = new Entry(uri);
+            mEntries.put(uri, entry);
+        }
+        if (values != null) {
+            entry.values.putAll(values);
+        }
+        entry.count++;
+        entry.accessTime = Math.max(entry.accessTime, accessTime);
+    }
+
+    /**
+     * @return A copy of the pending usage for the row, or null.
+     */
+    synchronized Entry get(Uri uri) {
+        final Entry entry = mEntries.get(uri);
+        return (entry != null) ? new Entry(entry) : null;
+    }
+
+    synchronized boolean hasPending(String table) {
+        for (Entry entry: mEntries.values()) {
+            if (entry.getTable().equals(table)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Removes and returns everything that is pending.
+     */
+    synchronized List<Entry> drain() {
+        final ArrayList<Entry> result = new ArrayList<Entry>(mEntries.values());
+        mEntries.clear();
+        return result;
+    }
+
+    /**
+     * Puts back entries that couldn't be written, merging them
+     * with anything that has been added since they were drained.
+     */
+    synchronized void restore(List<Entry> entries) {
+        for (Entry old: entries) {
+            final Entry entry = mEntries.get(old.uri);
+            if (entry == null) {
+                mEntries.put(old.uri, old);
+            } else {
+                // The newer values win.
+                final ContentValues values = new ContentValues(old.values);
+                values.putAll(entry.values);
+                entry.values.clear();
+                entry.values.putAll(values);
+                entry.count += old.count;
+                entry.accessTime = Math.max(entry.accessTime, old.accessTime);
+            }
+        }
+    }
+
+    /**
+     * Wraps a cursor on the row so its use count and access time
+     * include the pending usage.
+     */
+    static Cursor wrap(Cursor c, Entry entry) {
+        final int useCountCol = c.getColumnIndex(ObaContract.Stops.USE_COUNT);
+        final int accessTimeCol = c.getColumnIndex(ObaContract.Stops.ACCESS_TIME);
+        if (useCountCol == -1 && accessTimeCol == -1) {
+            return c;
+        }
+        return new UsageCursor(c, entry, useCountCol, accessTimeCol);
+    }
+
+    private static final class UsageCursor extends CursorWrapper {
+        private final int mUseCountCol;
+        private final int mAccessTimeCol;
+        private final int mCount;
+        private final long mAccessTime;
+
+        UsageCursor(Cursor c, Entry entry, int useCountCol, int accessTimeCol) {
+            super(c);
+            mUseCountCol = useCountCol;
+            mAccessTimeCol = accessTimeCol;
+            mCount = entry.count;
+            mAccessTime = entry.accessTime;
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            if (columnIndex == mUseCountCol) {
+                return super.getLong(columnIndex) + mCount;
+            } else if (columnIndex == mAccessTimeCol) {
+                return mAccessTime;
+            }
+            return super.getLong(columnIndex);
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            if (columnIndex == mUseCountCol || columnIndex == mAccessTimeCol) {
+                return (int)getLong(columnIndex);
+            }
+            return super.getInt(columnIndex);
+        }
+
+        @Override
+        public double getDouble(int columnIndex) {
+            if (columnIndex == mUseCountCol || columnIndex == mAccessTimeCol) {
+                return getLong(columnIndex);
+            }
+            return super.getDouble(columnIndex);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (columnIndex == mUseCountCol || columnIndex == mAccessTimeCol) {
+                return String.valueOf(getLong(columnIndex));
+            }
+            return super.getString(columnIndex);
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            if (columnIndex == mUseCountCol || columnIndex == mAccessTimeCol) {
+                return false;
+            }
+            return super.isNull(columnIndex);
+        }
+    }
+}
@@ -23,7 +23,7 @@ import com.joulespersecond.oba.elements.ObaStop;
 import com.joulespersecond.oba.elements.ObaStopGroup;
 import com.joulespersecond.oba.elements.ObaStopGrouping;
 
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -54,6 +54,10 @@ public final class ObaStopsForRouteResponse extends ObaResponseWithRefs {
         private final Entry entry = Entry.EMPTY_OBJECT;
     }
     private final Data data;
+    // The index of the stop groups, built the first time it's needed.
+    // (These are transient so they aren't deserialized.)
+    private transient HashMap<String,ObaStopGroup> mGroupForStop;
+    private transient HashMap<String,Integer> mPositionInGroup;
 
     private ObaStopsForRouteResponse() {
         data = Data.EMPTY_OBJECT;
@@ -92,26 +96,48 @@ public final class ObaStopsForRouteResponse extends ObaResponseWithRefs {
      * @param stopId
      * @return Returns the first ObaStopGroup that contains the specified stop
      */
-    public ObaStopGroup getGroupForStop(String stopId) {
+    public synchronized ObaStopGroup getGroupForStop(String stopId) {
+        buildGroupIndex();
+        return mGroupForStop.get(stopId);
+    }
+
+    /**
+     * @param stopId
+     * @return The position of the stop within the group returned by
+     *      {@link #getGroupForStop(String)}, or -1 if it isn't in any group.
+     */
+    public synchronized int getPositionInGroup(String stopId) {
+        buildGroupIndex();
+        final Integer result = mPositionInGroup.get(stopId);
+        return (result != null) ? result : -1;
+    }
+
+    private void buildGroupIndex() {
+        if (mGroupForStop != null) {
+            return;
+        }
+        mGroupForStop = new HashMap<String,ObaStopGroup>();
+        mPositionInGroup = new HashMap<String,Integer>();
         ObaStopGrouping[] stopGroupings = getStopGroupings();
         if (stopGroupings == null) {
-            return null;
+            return;
         }
-
         for (ObaStopGrouping grouping : stopGroupings) {
             ObaStopGroup[] stopGroups = grouping.getStopGroups();
             if (stopGroups == null) {
                 continue;
             }
-
             for (ObaStopGroup stopGroup : stopGroups) {
-                if (Arrays.asList(stopGroup.getStopIds()).contains(stopId)) {
-                    return stopGroup;
+                final String[] stopIds = stopGroup.getStopIds();
+                for (int i = 0; i < stopIds.length; ++i) {
+                    // The first group wins.
+                    if (!mGroupForStop.containsKey(stopIds[i])) {
+                        mGroupForStop.put(stopIds[i], stopGroup);
+                        mPositionInGroup.put(stopIds[i], i);
+                    }
                 }
             }
         }
-
-        return null;
     }
 
     @Override
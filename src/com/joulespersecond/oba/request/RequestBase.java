@@ -26,6 +26,8 @@ import android.preference.PreferenceManager;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
 
 /**
  * The base class for Oba requests.
@@ -33,11 +35,33 @@ import java.io.Reader;
  */
 public class RequestBase {
     protected final Uri mUri;
+    // The connection of the call in progress, so it can be cancelled.
+    private HttpURLConnection mConnection;
+    private boolean mCancelled;
 
     protected RequestBase(Uri uri) {
         mUri = uri;
     }
 
+    /**
+     * Cancels the request from another thread. If the call is in progress,
+     * this disconnects it, and the call returns an error response.
+     */
+    public void cancel() {
+        HttpURLConnection conn;
+        synchronized (this) {
+            mCancelled = true;
+            conn = mConnection;
+        }
+        if (conn != null) {
+            conn.disconnect();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
     private static String getServer(Context context) {
         SharedPreferences preferences =
                 PreferenceManager.getDefaultSharedPreferences(context);
@@ -102,7 +126,30 @@ public class RequestBase {
     protected <T> T call(Class<T> cls) {
         ObaApi.SerializationHandler handler = ObaApi.getSerializer(cls);
         try {
-            Reader reader = ObaHelp.getUri(mUri);
+            return callOnce(cls, handler);
+        }
+        catch (OutOfMemoryError e) {
+            // Make room and try once more.
+            ObaApi.clearCache();
+        }
+        try {
+            return callOnce(cls, handler);
+        }
+        catch (OutOfMemoryError e) {
+            return handler.createFromError(cls, ObaApi.OBA_OUT_OF_MEMORY, e.toString());
+        }
+    }
+
+    private <T> T callOnce(Class<T> cls, ObaApi.SerializationHandler handler) {
+        try {
+            HttpURLConnection conn = (HttpURLConnection)new URL(mUri.toString()).openConnection();
+            synchronized (this) {
+                if (mCancelled) {
+                    return handler.createFromError(cls, ObaApi.OBA_IO_EXCEPTION, "Cancelled");
+                }
+                mConnection = conn;
+            }
+            Reader reader = ObaHelp.getUri(conn);
             T t = handler.deserialize(reader, cls);
             if (t == null) {
                 t = handler.createFromError(cls, ObaApi.OBA_INTERNAL_ERROR, "Json error");
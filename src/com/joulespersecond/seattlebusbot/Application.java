@@ -1,14 +1,19 @@
 package com.joulespersecond.seattlebusbot;
 
+import com.joulespersecond.oba.CacheRegistry;
 import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.request.ObaStopsForLocationResponse;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.database.Cursor;
 import android.telephony.TelephonyManager;
 
+import java.io.StringReader;
 import java.security.MessageDigest;
 import java.util.UUID;
 
@@ -18,8 +23,64 @@ public class Application extends android.app.Application {
 
     @Override
     public void onCreate() {
+        StartupTrace.start();
+        StartupTrace.begin("Application.onCreate");
         //ExceptionHandler.register(this, BUG_REPORT_URL);
         initOba();
+        CacheRegistry.init(this);
+        scheduleDeferredInit();
+        StartupTrace.end("Application.onCreate");
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ObaApi.clearCache();
+    }
+
+    // ComponentCallbacks2.onTrimMemory, which is only called on
+    // API 14 and above (so this can't be an @Override.)
+    public void onTrimMemory(int level) {
+        CacheRegistry.trim(level);
+    }
+
+    //
+    // Anything that can wait until the map has been drawn.
+    //
+    private void scheduleDeferredInit() {
+        final Context context = getApplicationContext();
+        // The first use of Jackson loads a lot of classes
+        // and configures the ObjectMapper.
+        DeferredInit.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ObaApi.getSerializer(ObaStopsForLocationResponse.class)
+                        .deserialize(new StringReader("{}"),
+                                ObaStopsForLocationResponse.class);
+            }
+        });
+        // The first query creates or upgrades the database.
+        DeferredInit.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Cursor c = context.getContentResolver().query(
+                        ObaContract.Stops.CONTENT_URI,
+                        new String[] { ObaContract.Stops._ID },
+                        "0", null, null);
+                if (c != null) {
+                    c.close();
+                }
+            }
+        });
+        // In case we haven't been started since the device booted,
+        // (such as right after being installed.)
+        DeferredInit.schedule(new Runnable() {
+            @Override
+            public void run() {
+                TripService.scheduleMaintenance(context);
+            }
+        });
+        DeferredInit.startWithTimeout();
     }
 
     private static final String HEXES = "0123456789abcdef";
@@ -59,35 +59,61 @@ final class ArrivalInfo {
     }
 
     private final ObaArrivalInfo mInfo;
-    private final long mEta;
     private final long mDisplayTime;
-    private final String mStatusText;
     private final int mColor;
+    private long mEta;
+    private String mStatusText;
+    // The minute (since the epoch) the ETA and status were computed against.
+    private long mNowMins = Long.MIN_VALUE;
 
     private static final int ms_in_mins = 60 * 1000;
 
     public ArrivalInfo(Context context, ObaArrivalInfo info, long now) {
         mInfo = info;
-        // First, all times have to have to be converted to 'minutes'
-        final long nowMins = now / ms_in_mins;
         final long scheduled = info.getScheduledArrivalTime();
         final long predicted = info.getPredictedArrivalTime();
-        final long scheduledMins = scheduled / ms_in_mins;
-        final long predictedMins = predicted / ms_in_mins;
 
         if (predicted != 0) {
-            mEta = predictedMins - nowMins;
             mDisplayTime = predicted;
         } else {
-            mEta = scheduledMins - nowMins;
             mDisplayTime = scheduled;
         }
 
         mColor = computeColor(scheduled, predicted);
 
-        mStatusText = computeStatusLabel(context, info, now, predicted,
-                scheduledMins, predictedMins);
+        update(context, now);
+    }
+
+    /**
+     * Recomputes the ETA and status text against the specified time,
+     * using only the cached scheduled and predicted times. This does nothing
+     * if the minute hasn't changed since the last computation, so it's
+     * cheap enough to call every time the row is bound.
+     *
+     * @param context The context.
+     * @param now The current time in milliseconds.
+     */
+    final void update(Context context, long now) {
+        // First, all times have to have to be converted to 'minutes'
+        final long nowMins = now / ms_in_mins;
+        if (nowMins == mNowMins) {
+            return;
+        }
+        mNowMins = nowMins;
+
+        final long scheduled = mInfo.getScheduledArrivalTime();
+        final long predicted = mInfo.getPredictedArrivalTime();
+        final long scheduledMins = scheduled / ms_in_mins;
+        final long predictedMins = predicted / ms_in_mins;
 
+        if (predicted != 0) {
+            mEta = predictedMins - nowMins;
+        } else {
+            mEta = scheduledMins - nowMins;
+        }
+
+        mStatusText = computeStatusLabel(context, mInfo, now, predicted,
+                scheduledMins, predictedMins);
     }
 
     private int computeColor(final long scheduled, final long predicted) {
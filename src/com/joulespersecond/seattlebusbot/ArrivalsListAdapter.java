@@ -47,6 +47,10 @@ public class ArrivalsListAdapter extends ArrayAdapter<ArrivalInfo> {
         final ObaArrivalInfo arrivalInfo = stopInfo.getInfo();
         final Context context = getContext();
 
+        // The ETA and status may be stale if we haven't refreshed from the
+        // network in a while, so recompute them against the current time.
+        stopInfo.update(context, System.currentTimeMillis());
+
         route.setText(arrivalInfo.getShortName());
         destination.setText(MyTextUtils.toTitleCase(arrivalInfo.getHeadsign()));
         status.setText(stopInfo.getStatusText());
@@ -5,14 +5,13 @@ import com.joulespersecond.oba.elements.ObaArrivalInfo;
 import com.joulespersecond.oba.elements.ObaRoute;
 import com.joulespersecond.oba.elements.ObaStop;
 import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.provider.ObaDao;
 import com.joulespersecond.oba.request.ObaArrivalInfoResponse;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.DialogInterface;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
@@ -42,7 +41,13 @@ public class ArrivalsListFragment extends ListFragment
         implements LoaderManager.LoaderCallbacks<ObaArrivalInfoResponse>,
                    ArrivalsListHeader.Controller {
     private static final String TAG = "ArrivalsListFragment";
-    private static final long RefreshPeriod = 60 * 1000;
+    // How old the arrivals can get before they're requested again.
+    // This is longer than the tick, so most ticks only recompute
+    // the ETAs from the times we already have.
+    private static final long RefreshPeriod = 2 * 60 * 1000;
+    // The ETAs are displayed in minutes, so we only need to recompute them
+    // on each minute boundary.
+    private static final long TickPeriod = 60 * 1000;
 
     //private static int TRIPS_FOR_STOP_LOADER = 1;
     private static int ARRIVALS_LIST_LOADER = 2;
@@ -53,7 +58,11 @@ public class ArrivalsListFragment extends ListFragment
     private ObaStop mStop;
     private String mStopId;
     private Uri mStopUri;
-    private ArrayList<String> mRoutesFilter;
+    // Empty until it's loaded from the database.
+    private ArrayList<String> mRoutesFilter = new ArrayList<String>();
+    // Set once the user changes the filter, so the one that's
+    // loaded from the database (if it's late) doesn't replace it.
+    private boolean mRoutesFilterChanged = false;
 
     private boolean mFavorite = false;
     private String mStopUserName;
@@ -86,7 +95,7 @@ public class ArrivalsListFragment extends ListFragment
         // Start out with a progress indicator.
         setListShown(false);
 
-        mRoutesFilter = ObaContract.StopRouteFilters.get(getActivity(), mStopId);
+        loadRoutesFilter();
         //mTripsForStop = getTripsForStop();
 
         //LoaderManager.enableDebugLogging(true);
@@ -114,7 +123,8 @@ public class ArrivalsListFragment extends ListFragment
     @Override
     public void onPause() {
         //mTripsForStop.setKeepUpdated(false);
-        mRefreshHandler.removeCallbacks(mRefresh);
+        mRefreshHandler.removeCallbacks(mTick);
+        ObaContract.flushUsage(getActivity());
         super.onPause();
     }
 
@@ -122,18 +132,13 @@ public class ArrivalsListFragment extends ListFragment
     public void onResume() {
         //mTripsForStop.setKeepUpdated(true);
         //mTripsForStop.requery();
-        mAdapter.notifyDataSetChanged();
-
         // If our timer would have gone off, then refresh.
-        long lastResponseTime = getArrivalsLoader().getLastResponseTime();
-        long newPeriod = Math.min(RefreshPeriod, (lastResponseTime + RefreshPeriod)
-                - System.currentTimeMillis());
-        // Wait at least one second at least, and the full minute at most.
-        //Log.d(TAG, "Refresh period:" + newPeriod);
-        if (newPeriod <= 0) {
+        // Otherwise, recompute the ETAs locally and wait for the next tick.
+        if (isDataStale(System.currentTimeMillis())) {
             refresh();
         } else {
-            mRefreshHandler.postDelayed(mRefresh, newPeriod);
+            mAdapter.notifyDataSetChanged();
+            scheduleTick();
         }
 
         super.onResume();
@@ -212,12 +217,16 @@ public class ArrivalsListFragment extends ListFragment
         }
 
         // Post an update
-        mRefreshHandler.postDelayed(mRefresh, RefreshPeriod);
+        mRefreshPending = false;
+        scheduleTick();
     }
 
     @Override
     public void onLoaderReset(Loader<ObaArrivalInfoResponse> loader) {
         mAdapter.setData(null, mRoutesFilter);
+        // onLoadFinished won't be called for the pending load,
+        // so don't let it stop the next tick.
+        mRefreshPending = false;
     }
 
     //
@@ -353,16 +362,8 @@ public class ArrivalsListFragment extends ListFragment
 
     @Override
     public void setUserStopName(String name) {
-        ContentResolver cr = getActivity().getContentResolver();
-        ContentValues values = new ContentValues();
-        if (TextUtils.isEmpty(name)) {
-            values.putNull(ObaContract.Stops.USER_NAME);
-            mStopUserName = null;
-        } else {
-            values.put(ObaContract.Stops.USER_NAME, name);
-            mStopUserName = name;
-        }
-        cr.update(mStopUri, values, null, null);
+        mStopUserName = TextUtils.isEmpty(name) ? null : name;
+        ObaDao.setStopUserName(getActivity(), mStopUri, mStopUserName);
     }
 
     @Override
@@ -373,7 +374,8 @@ public class ArrivalsListFragment extends ListFragment
     @Override
     public void setRoutesFilter(ArrayList<String> routes) {
         mRoutesFilter = routes;
-        ObaContract.StopRouteFilters.set(getActivity(), mStopId, mRoutesFilter);
+        mRoutesFilterChanged = true;
+        ObaDao.setStopRouteFilter(getActivity(), mStopId, mRoutesFilter);
         ObaArrivalInfoResponse response =
                 getArrivalsLoader().getLastGoodResponse();
         mAdapter.setData(response.getArrivalInfo(), mRoutesFilter);
@@ -390,7 +392,7 @@ public class ArrivalsListFragment extends ListFragment
 
     @Override
     public int getNumRoutes() {
-        return mStop.getRouteIds().length;
+        return (mStop != null) ? mStop.getRouteIds().length : 0;
     }
 
     @Override
@@ -399,10 +401,22 @@ public class ArrivalsListFragment extends ListFragment
     }
 
     @Override
-    public boolean setFavorite(boolean favorite) {
-        if (ObaContract.Stops.markAsFavorite(getActivity(), mStopUri, favorite)) {
-            mFavorite = favorite;
-        }
+    public boolean setFavorite(final boolean favorite) {
+        // Show it right away, and change it back if it can't be saved.
+        final boolean previous = mFavorite;
+        mFavorite = favorite;
+        ObaDao.markStopAsFavorite(getActivity(), mStopUri, favorite,
+                new ObaDao.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean updated) {
+                // (This is null if it failed.)
+                if (!Boolean.TRUE.equals(updated) && mFavorite == favorite && isAdded()) {
+                    mFavorite = previous;
+                    mHeader.refresh();
+                    ((FragmentActivity)getActivity()).invalidateOptionsMenu();
+                }
+            }
+        });
         // Apparently we can't rely on onPrepareOptionsMenu to set the
         // menus like we did before.
         // ALSO: we need to downcast this because getActivity() returns
@@ -550,14 +564,52 @@ public class ArrivalsListFragment extends ListFragment
     //
     private void refresh() {
         ((FragmentActivity)getActivity()).setProgressBarIndeterminateVisibility(Boolean.TRUE);
+        mRefreshPending = true;
         getArrivalsLoader().onContentChanged();
     }
 
+    private boolean isDataStale(long now) {
+        long lastResponseTime = getArrivalsLoader().getLastResponseTime();
+        return (now - lastResponseTime) >= RefreshPeriod;
+    }
+
+    //
+    // Schedules the next tick at either the next minute boundary,
+    // or when the data becomes stale, whichever comes first.
+    //
+    private void scheduleTick() {
+        final long now = System.currentTimeMillis();
+        final long lastResponseTime = getArrivalsLoader().getLastResponseTime();
+        long delay = TickPeriod - (now % TickPeriod);
+        delay = Math.min(delay, (lastResponseTime + RefreshPeriod) - now);
+        // Wait at least one second, and the full tick period at most.
+        delay = Math.max(delay, 1000);
+        //Log.d(TAG, "Next tick:" + delay);
+        mRefreshHandler.removeCallbacks(mTick);
+        mRefreshHandler.postDelayed(mTick, delay);
+    }
+
     private final Handler mRefreshHandler = new Handler();
+    private boolean mRefreshPending = false;
 
-    private final Runnable mRefresh = new Runnable() {
+    //
+    // Only go to the network if the data is actually stale;
+    // otherwise just recompute the visible rows from the cached
+    // predicted and scheduled times.
+    //
+    private final Runnable mTick = new Runnable() {
         public void run() {
-            refresh();
+            if (mRefreshPending) {
+                // The load will schedule the next tick when it finishes.
+                return;
+            }
+            if (isDataStale(System.currentTimeMillis())) {
+                refresh();
+            } else {
+                mAdapter.notifyDataSetChanged();
+                mHeader.refresh();
+                scheduleTick();
+            }
         }
     };
 
@@ -577,18 +629,42 @@ public class ArrivalsListFragment extends ListFragment
     };
 
     private void setUserInfo() {
-        ContentResolver cr = getActivity().getContentResolver();
-        Cursor c = cr.query(mStopUri, USER_PROJECTION, null, null, null);
-        if (c != null) {
-            try {
-                if (c.moveToNext()) {
-                    mFavorite = (c.getInt(0) == 1);
-                    mStopUserName = c.getString(1);
+        ObaDao.getStop(getActivity(), mStopUri, USER_PROJECTION,
+                new ObaDao.Callback<ContentValues>() {
+            @Override
+            public void onResult(ContentValues values) {
+                if (values == null || !isAdded()) {
+                    return;
                 }
-            } finally {
-                c.close();
+                final Integer favorite = values.getAsInteger(ObaContract.Stops.FAVORITE);
+                mFavorite = (favorite != null && favorite == 1);
+                mStopUserName = values.getAsString(ObaContract.Stops.USER_NAME);
+                mHeader.refresh();
+                ((FragmentActivity)getActivity()).invalidateOptionsMenu();
             }
-        }
+        });
+    }
+
+    private void loadRoutesFilter() {
+        ObaDao.getStopRouteFilter(getActivity(), mStopId,
+                new ObaDao.Callback<ArrayList<String>>() {
+            @Override
+            public void onResult(ArrayList<String> filter) {
+                if (filter == null || mRoutesFilterChanged || !isAdded()) {
+                    return;
+                }
+                mRoutesFilter = filter;
+                // If the arrivals are already shown, filter them now.
+                // (Otherwise, the header needs the stop to show the filter.)
+                ArrivalsListLoader loader = getArrivalsLoader();
+                ObaArrivalInfoResponse response =
+                        (loader != null) ? loader.getLastGoodResponse() : null;
+                if (response != null && mStop != null) {
+                    mAdapter.setData(response.getArrivalInfo(), mRoutesFilter);
+                    mHeader.refresh();
+                }
+            }
+        });
     }
 
     public void setStopWait(Object obj) {
@@ -605,7 +681,7 @@ public class ArrivalsListFragment extends ListFragment
         values.put(ObaContract.Stops.DIRECTION, stop.getDirection());
         values.put(ObaContract.Stops.LATITUDE, stop.getLatitude());
         values.put(ObaContract.Stops.LONGITUDE, stop.getLongitude());
-        ObaContract.Stops.insertOrUpdate(getActivity(), stop.getId(), values, true);
+        ObaDao.insertOrUpdateStop(getActivity(), stop.getId(), values, true);
     }
 
     /*
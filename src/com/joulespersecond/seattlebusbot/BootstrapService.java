@@ -23,10 +23,11 @@ public class BootstrapService extends BroadcastReceiver {
 
     //
     // This is solely responsible for starting the TripService
-    // when the device starts up.
+    // (and the database maintenance alarm) when the device starts up.
     //
     @Override
     public void onReceive(Context context, Intent intent) {
         TripService.scheduleAll(context);
+        TripService.scheduleMaintenance(context);
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot;
+
+import com.joulespersecond.oba.CacheRegistry;
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.provider.MainThreadIoDetector;
+import com.joulespersecond.seattlebusbot.tripservice.TripMetrics;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.ScrollView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A debug screen that shows the reminder metrics (see TripMetrics),
+ * the size of each cache (see CacheRegistry) and the code that uses
+ * the database on the main thread (see MainThreadIoDetector),
+ * and writes them to a file or sends them somewhere.
+ * It isn't exported; in debuggable builds it's at the bottom
+ * of the preferences (see EditPreferencesActivity).
+ *
+ * @author paulw
+ *
+ */
+public class DebugMetricsActivity extends Activity {
+    private static final String TAG = "DebugMetricsActivity";
+
+    private TextView mText;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mText = new TextView(this);
+        mText.setTypeface(Typeface.MONOSPACE);
+        mText.setTextSize(12);
+        ScrollView scroll = new ScrollView(this);
+        scroll.addView(mText);
+        setContentView(scroll);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.debug_metrics_options, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        final int id = item.getItemId();
+        if (id == R.id.refresh) {
+            refresh();
+            return true;
+        } else if (id == R.id.save) {
+            save();
+            return true;
+        } else if (id == R.id.send) {
+            Intent send = new Intent(Intent.ACTION_SEND);
+            send.setType("text/plain");
+            send.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.debug_metrics_title));
+            send.putExtra(Intent.EXTRA_TEXT, TripMetrics.dumpToString());
+            startActivity(Intent.createChooser(send, getString(R.string.debug_metrics_send)));
+            return true;
+        } else if (id == R.id.reset) {
+            TripMetrics.reset();
+            refresh();
+            return true;
+        } else if (id == R.id.clear_caches) {
+            ObaApi.clearCache();
+            refresh();
+            return true;
+        }
+        return false;
+    }
+
+    private void refresh() {
+        mText.setText(TripMetrics.dumpToString() +
+                "\nCaches:\n" + CacheRegistry.dumpToString() +
+                "\nMain thread database calls:\n" + MainThreadIoDetector.dumpToString());
+    }
+
+    private void save() {
+        try {
+            File file = TripMetrics.writeDumpFile(this);
+            Toast.makeText(this,
+                    getString(R.string.debug_metrics_saved, file.getPath()),
+                    Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write metrics: " + e);
+            Toast.makeText(this, R.string.debug_metrics_save_error,
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot;
+
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+
+/**
+ * Initialization that doesn't need to happen before the user sees
+ * anything: it's run on a background thread once the first frame has
+ * been drawn (see {@link #startAfterDraw(View)}), or after a few seconds
+ * if nothing is ever drawn (e.g. when we're started for a broadcast.)
+ *
+ * @author paulw
+ *
+ */
+public final class DeferredInit {
+    private static final String TAG = "DeferredInit";
+
+    // How long to wait for the first frame.
+    private static final long MAX_DELAY = 5000;
+
+    private static final ArrayList<Runnable> sPending = new ArrayList<Runnable>();
+    private static boolean sStarted = false;
+
+    // Cannot be instantiated
+    private DeferredInit() {
+    }
+
+    /**
+     * Adds a task to run after the first frame, or runs it now
+     * (in the background) if that has already happened.
+     */
+    public static void schedule(Runnable task) {
+        synchronized (DeferredInit.class) {
+            if (!sStarted) {
+                sPending.add(task);
+                return;
+            }
+        }
+        final ArrayList<Runnable> tasks = new ArrayList<Runnable>(1);
+        tasks.add(task);
+        runInBackground(tasks);
+    }
+
+    /**
+     * Starts running the tasks if the first frame hasn't been
+     * drawn after a few seconds. This is called from Application.onCreate.
+     */
+    public static void startWithTimeout() {
+        new Handler().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                start();
+            }
+        }, MAX_DELAY);
+    }
+
+    /**
+     * Records the first time the view is drawn (see StartupTrace),
+     * and then starts running the tasks.
+     */
+    public static void startAfterDraw(final View view) {
+        final ViewTreeObserver observer = view.getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                view.getViewTreeObserver().removeOnPreDrawListener(this);
+                // This is posted so it runs after this frame is drawn.
+                view.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        StartupTrace.firstFrame();
+                        start();
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    private static void start() {
+        final ArrayList<Runnable> tasks;
+        synchronized (DeferredInit.class) {
+            if (sStarted) {
+                return;
+            }
+            sStarted = true;
+            tasks = new ArrayList<Runnable>(sPending);
+            sPending.clear();
+        }
+        runInBackground(tasks);
+    }
+
+    private static void runInBackground(final ArrayList<Runnable> tasks) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                for (Runnable task: tasks) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Deferred task failed", e);
+                    }
+                }
+            }
+        }, TAG).start();
+    }
+}
@@ -15,12 +15,24 @@
  */
 package com.joulespersecond.seattlebusbot;
 
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.os.Bundle;
+import android.preference.Preference;
 import android.preference.PreferenceActivity;
 
 public class EditPreferencesActivity extends PreferenceActivity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         addPreferencesFromResource(R.xml.preferences);
+
+        // The debug screen isn't exported, so in debuggable builds
+        // this is the way to get to it.
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            Preference debug = new Preference(this);
+            debug.setTitle(R.string.debug_metrics_title);
+            debug.setIntent(new Intent(this, DebugMetricsActivity.class));
+            getPreferenceScreen().addPreference(debug);
+        }
     }
 }
@@ -126,6 +126,7 @@ public class HomeActivity extends FragmentMapActivity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupTrace.begin("HomeActivity.onCreate");
         boolean firstRun = firstRunCheck();
         super.onCreate(savedInstanceState);
         requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
@@ -148,6 +149,7 @@ public class HomeActivity extends FragmentMapActivity {
             frag.setArguments(args);
             fm.beginTransaction().add(android.R.id.content, frag).commit();
         }
+        StartupTrace.end("HomeActivity.onCreate");
     }
 
     @Override
@@ -15,6 +15,9 @@
  */
 package com.joulespersecond.seattlebusbot;
 
+import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.provider.ObaDao;
+
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.database.ContentObserver;
@@ -24,8 +27,13 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
+import android.provider.BaseColumns;
 import android.support.v4.widget.SimpleCursorAdapter;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 /**
  * Base class for the stop/route list fragments.
  * Immediate base class for MyStopListFragmentBase/MyRouteListFragmentBase
@@ -52,14 +60,18 @@ abstract class MyListFragmentBase extends ListFragment
         }
 
         public void onChange(boolean selfChange) {
-            if (isAdded()) {
-                getLoaderManager().restartLoader(0, null, MyListFragmentBase.this);
-            }
+            requery();
+        }
+
+        // API 16 and above call this with the URI that changed.
+        public void onChange(boolean selfChange, Uri uri) {
+            onRowsChanged(ObaContract.getChangedIds(uri));
         }
     }
 
     private SimpleCursorAdapter mAdapter;
     private Observer mObserver;
+    private boolean mRequeryPending = false;
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
@@ -80,6 +92,98 @@ abstract class MyListFragmentBase extends ListFragment
         getLoaderManager().initLoader(0, null, this);
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (mRequeryPending) {
+            requery();
+        }
+    }
+
+    //
+    // Restarts the loader. If we aren't resumed, then this waits until
+    // we are, so any number of changes made while we are in the background
+    // only cost one query.
+    //
+    private void requery() {
+        if (!isAdded()) {
+            return;
+        }
+        if (isResumed()) {
+            mRequeryPending = false;
+            getLoaderManager().restartLoader(0, null, this);
+        } else {
+            mRequeryPending = true;
+        }
+    }
+
+    //
+    // Requeries if any of the rows that changed are shown, or (checked in
+    // the background) are now in the list. If we don't know which rows
+    // changed, this always requeries.
+    //
+    private void onRowsChanged(final List<String> ids) {
+        if (ids == null || mAdapter == null || isAnyShown(ids)) {
+            requery();
+            return;
+        }
+        final Uri uri = getContentUri();
+        final String selection = getSelection();
+        final ContentResolver cr = getActivity().getContentResolver();
+        ObaDao.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                StringBuilder where = new StringBuilder(BaseColumns._ID);
+                where.append(" IN (");
+                for (int i = 0; i < ids.size(); ++i) {
+                    where.append(i > 0 ? ",?" : "?");
+                }
+                where.append(") AND (").append(selection).append(")");
+                Cursor c = cr.query(uri, new String[] { BaseColumns._ID },
+                        where.toString(), ids.toArray(new String[ids.size()]), null);
+                if (c == null) {
+                    return false;
+                }
+                try {
+                    return c.getCount() > 0;
+                } finally {
+                    c.close();
+                }
+            }
+        }, new ObaDao.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean inList) {
+                // If we couldn't tell, requery anyway.
+                if (inList == null || inList) {
+                    requery();
+                }
+            }
+        });
+    }
+
+    private boolean isAnyShown(List<String> ids) {
+        final Cursor c = mAdapter.getCursor();
+        if (c == null || c.isClosed()) {
+            return true;
+        }
+        final int col = c.getColumnIndex(BaseColumns._ID);
+        if (col < 0) {
+            return true;
+        }
+        final HashSet<String> changed = new HashSet<String>(ids);
+        final int position = c.getPosition();
+        try {
+            for (c.moveToPosition(-1); c.moveToNext(); ) {
+                if (changed.contains(c.getString(col))) {
+                    return true;
+                }
+            }
+        } finally {
+            c.moveToPosition(position);
+        }
+        return false;
+    }
+
     @Override
     public void onDestroy() {
         if (mObserver != null) {
@@ -128,6 +232,12 @@ abstract class MyListFragmentBase extends ListFragment
     //
     abstract protected Uri getContentUri();
 
+    //
+    // Returns the selection of the rows in the list,
+    // to check whether a changed row is now in it.
+    //
+    abstract protected String getSelection();
+
     //
     // Returns the empty text to display
     //
@@ -41,6 +41,12 @@ public class MyRecentRoutesFragment extends MyRouteListFragmentBase {
                 ObaContract.Routes.USE_COUNT);
     }
 
+    @Override
+    protected String getSelection() {
+        return QueryUtils.getRecentSelection(ObaContract.Routes.ACCESS_TIME,
+                ObaContract.Routes.USE_COUNT);
+    }
+
     private static final int CONTEXT_MENU_DELETE = 10;
 
     @Override
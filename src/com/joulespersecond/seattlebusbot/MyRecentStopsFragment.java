@@ -42,6 +42,12 @@ public class MyRecentStopsFragment extends MyStopListFragmentBase {
                 ObaContract.Stops.USE_COUNT);
     }
 
+    @Override
+    protected String getSelection() {
+        return QueryUtils.getRecentSelection(ObaContract.Stops.ACCESS_TIME,
+                ObaContract.Stops.USE_COUNT);
+    }
+
     //
     // MyRecentStopsActivity
     //
@@ -30,18 +30,29 @@ import android.view.WindowManager;
 import android.widget.TextView;
 import android.widget.TextView.BufferType;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 abstract class MySearchFragmentBase extends ListFragment
             implements SearchView.OnQueryTextListener, MyListConstants {
     private static final String TAG = "MySearchFragmentBase";
 
-    private Timer mSearchTimer;
+    private final Handler mSearchHandler = new Handler();
+    private String mDelayedQuery;
     private SearchView mSearchView;
 
     private static final int DELAYED_SEARCH_TIMEOUT = 1000;
 
+    // The network search is done once the text hasn't changed
+    // for DELAYED_SEARCH_TIMEOUT, so someone typing quickly
+    // only searches once.
+    private final Runnable mDelayedSearch = new Runnable() {
+        public void run() {
+            final String query = mDelayedQuery;
+            mDelayedQuery = null;
+            if (query != null && isAdded()) {
+                doSearch(query);
+            }
+        }
+    };
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -67,6 +78,7 @@ abstract class MySearchFragmentBase extends ListFragment
     @Override
     public void onDestroy() {
         cancelDelayedSearch();
+        cancelSearch();
         super.onDestroy();
     }
 
@@ -89,29 +101,20 @@ abstract class MySearchFragmentBase extends ListFragment
         // with this filter.
         Log.d(TAG, "new text: " + newText);
         cancelDelayedSearch();
+        // Whatever the server is searching for is out of date.
+        cancelSearch();
+        // The local search is fast enough to do on every change.
+        doLocalSearch(newText);
 
-        if (newText.length() == 0) {
-            Log.d(TAG, "CANCEL SEARCH");
+        if (newText.length() < getMinSearchLength()) {
             // Set hint text, etc.
             return true;
         }
 
-        final String query = newText;
-        final Runnable doSearch = new Runnable() {
-            public void run() {
-                doSearch(query);
-           }
-        };
-        mSearchTimer = new Timer();
-        mSearchTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                mSearchHandler.post(doSearch);
-            }
-        }, DELAYED_SEARCH_TIMEOUT);
+        mDelayedQuery = newText;
+        mSearchHandler.postDelayed(mDelayedSearch, DELAYED_SEARCH_TIMEOUT);
         return true;
     }
-    final Handler mSearchHandler = new Handler();
 
     @Override
     public boolean onQueryTextSubmit(String query) {
@@ -121,10 +124,8 @@ abstract class MySearchFragmentBase extends ListFragment
     }
 
     protected void cancelDelayedSearch() {
-        if (mSearchTimer != null) {
-            mSearchTimer.cancel();
-            mSearchTimer = null;
-        }
+        mDelayedQuery = null;
+        mSearchHandler.removeCallbacks(mDelayedSearch);
     }
 
     protected SearchView getSearchView() {
@@ -200,6 +201,22 @@ abstract class MySearchFragmentBase extends ListFragment
      */
     abstract protected void doSearch(String text);
 
+    /**
+     * Tells the subclass to cancel the search the server is doing,
+     * if there is one, since the text has changed.
+     */
+    abstract protected void cancelSearch();
+
+    /**
+     * Tells the subclass to search the stops or routes already
+     * in the local database. This is called every time the text changes,
+     * before the delayed call to {@link #doSearch(String)}.
+     * If the text extends the previous text, the results
+     * from the server for that can be filtered for this text
+     * until the server has searched for it.
+     */
+    abstract protected void doLocalSearch(String text);
+
     /**
      * @return The hint text for the search box.
      */
@@ -25,6 +25,7 @@ import com.joulespersecond.oba.request.ObaRoutesForLocationResponse;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.LoaderManager;
@@ -43,7 +44,10 @@ import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class MySearchRoutesFragment extends MySearchFragmentBase
             implements LoaderManager.LoaderCallbacks<ObaRoutesForLocationResponse> {
@@ -53,6 +57,19 @@ public class MySearchRoutesFragment extends MySearchFragmentBase
     public static final String TAB_NAME = "search";
 
     private MyAdapter mAdapter;
+    // The current search text, the results from the local database,
+    // the route catalogue, and the server for the current text.
+    private String mQueryText = "";
+    private List<ObaRoute> mLocalResults = Collections.emptyList();
+    private List<ObaRoute> mCatalogResults = Collections.emptyList();
+    private List<ObaRoute> mNetworkResults = Collections.emptyList();
+    private final QueryUtils.SearchCache<ObaRoute> mCache =
+            new QueryUtils.SearchCache<ObaRoute>("Route search");
+
+    private static final int NETWORK_LOADER = 0;
+    private static final int LOCAL_LOADER = 1;
+
+    private static final int CATALOG_LIMIT = 50;
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
@@ -60,6 +77,8 @@ public class MySearchRoutesFragment extends MySearchFragmentBase
 
         mAdapter = new MyAdapter(getActivity());
         setListAdapter(mAdapter);
+
+        RouteCatalog.load(getActivity());
     }
 
     @Override
@@ -86,10 +105,16 @@ public class MySearchRoutesFragment extends MySearchFragmentBase
                         ObaRoutesForLocationResponse response) {
         ((FragmentActivity)getActivity()).setProgressBarIndeterminateVisibility(Boolean.FALSE);
         Log.d(TAG, "Loader finished");
+        if (!mQueryText.equals(((MyLoader)loader).getQueryText())) {
+            // The text has changed since this search started.
+            return;
+        }
         final int code = response.getCode();
         if (code == ObaApi.OBA_OK) {
             setEmptyText(getString(R.string.find_hint_noresults));
-            mAdapter.setData(Arrays.asList(response.getRoutes()));
+            mNetworkResults = Arrays.asList(response.getRoutes());
+            mCache.put(mQueryText, mNetworkResults);
+            updateResults();
         } else if (code != 0) {
             // If we get anything other than a '0' error, that means
             // the server actually returned something to us,
@@ -103,21 +128,109 @@ public class MySearchRoutesFragment extends MySearchFragmentBase
 
     @Override
     public void onLoaderReset(Loader<ObaRoutesForLocationResponse> loader) {
-        mAdapter.clear();
+        mNetworkResults = Collections.emptyList();
+        updateResults();
+    }
+
+    private void updateResults() {
+        mAdapter.setData(QueryUtils.LocalSearch.merge(
+                QueryUtils.LocalSearch.merge(mLocalResults, mCatalogResults),
+                mNetworkResults));
     }
 
+    private final LoaderManager.LoaderCallbacks<Cursor> mLocalCallbacks =
+            new LoaderManager.LoaderCallbacks<Cursor>() {
+        @Override
+        public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+            return QueryUtils.LocalSearch.newRouteQuery(getActivity(),
+                    args.getString(QUERY_TEXT));
+        }
+
+        @Override
+        public void onLoadFinished(Loader<Cursor> loader, Cursor c) {
+            mLocalResults = QueryUtils.LocalSearch.getRoutes(c);
+            updateResults();
+        }
+
+        @Override
+        public void onLoaderReset(Loader<Cursor> loader) {
+            mLocalResults = Collections.emptyList();
+            updateResults();
+        }
+    };
+
     //
     // Base class
     //
     @Override
     protected void doSearch(String text) {
+        if (RouteCatalog.isComplete()) {
+            // The catalogue has every route, so the server
+            // wouldn't find anything else.
+            return;
+        }
+        if (mCache.get(text) != null) {
+            // We already have these (see doLocalSearch)
+            return;
+        }
         ((FragmentActivity)getActivity()).setProgressBarIndeterminateVisibility(Boolean.TRUE);
         Bundle args = new Bundle();
         args.putString(QUERY_TEXT, text);
-        Loader<?> loader = getLoaderManager().restartLoader(0, args, this);
+        Loader<?> loader = getLoaderManager().restartLoader(NETWORK_LOADER, args, this);
         loader.onContentChanged();
     }
 
+    @Override
+    protected void cancelSearch() {
+        Loader<ObaRoutesForLocationResponse> loader = getLoaderManager().getLoader(NETWORK_LOADER);
+        if (loader != null) {
+            ((MyLoader)loader).cancel();
+        }
+    }
+
+    @Override
+    protected void doLocalSearch(String text) {
+        // Any results from the server are for the old text,
+        // unless we've searched for this before. If this text
+        // extends the old text, we can show the old results
+        // that match this until we've searched for it.
+        final String oldText = mQueryText;
+        mQueryText = text;
+        final List<ObaRoute> cached = mCache.get(text);
+        if (cached != null) {
+            mNetworkResults = cached;
+        } else if (oldText.length() > 0 && text.startsWith(oldText)) {
+            mNetworkResults = filter(mNetworkResults, text);
+        } else {
+            mNetworkResults = Collections.emptyList();
+        }
+        final List<ObaRoute> catalog = RouteCatalog.search(text, CATALOG_LIMIT);
+        mCatalogResults = (catalog != null) ? catalog : Collections.<ObaRoute>emptyList();
+        if (text.length() == 0) {
+            getLoaderManager().destroyLoader(LOCAL_LOADER);
+            mLocalResults = Collections.emptyList();
+            updateResults();
+            return;
+        }
+        Bundle args = new Bundle();
+        args.putString(QUERY_TEXT, text);
+        getLoaderManager().restartLoader(LOCAL_LOADER, args, mLocalCallbacks);
+    }
+
+    private static List<ObaRoute> filter(List<ObaRoute> routes, String text) {
+        final String lower = text.toLowerCase();
+        ArrayList<ObaRoute> result = new ArrayList<ObaRoute>();
+        for (ObaRoute route: routes) {
+            final String shortName = route.getShortName();
+            final String longName = route.getLongName();
+            if ((shortName != null && shortName.toLowerCase().startsWith(lower)) ||
+                    (longName != null && longName.toLowerCase().contains(lower))) {
+                result.add(route);
+            }
+        }
+        return result;
+    }
+
     @Override
     protected int getEditBoxHintText() {
         return R.string.search_route_hint;
@@ -241,6 +354,8 @@ public class MySearchRoutesFragment extends MySearchFragmentBase
     private static final class MyLoader extends AsyncTaskLoader<ObaRoutesForLocationResponse> {
         private final String mQueryText;
         private final GeoPoint mCenter;
+        private ObaRoutesForLocationRequest mRequest;
+        private boolean mCancelled;
 
         public MyLoader(Context context, String query, GeoPoint center) {
             super(context);
@@ -248,12 +363,37 @@ public class MySearchRoutesFragment extends MySearchFragmentBase
             mCenter = center;
         }
 
+        public String getQueryText() {
+            return mQueryText;
+        }
+
+        //
+        // Cancels the request to the server, if it's in progress.
+        // The load then finishes with an error, which is ignored
+        // since the text has changed.
+        //
+        public synchronized void cancel() {
+            mCancelled = true;
+            if (mRequest != null) {
+                mRequest.cancel();
+            }
+        }
+
+        private synchronized ObaRoutesForLocationRequest setRequest(
+                ObaRoutesForLocationRequest request) {
+            if (mCancelled) {
+                request.cancel();
+            }
+            mRequest = request;
+            return request;
+        }
+
         @Override
         public ObaRoutesForLocationResponse loadInBackground() {
             ObaRoutesForLocationResponse response =
-                new ObaRoutesForLocationRequest.Builder(getContext(), mCenter)
+                setRequest(new ObaRoutesForLocationRequest.Builder(getContext(), mCenter)
                     .setQuery(mQueryText)
-                    .build()
+                    .build())
                     .call();
             // If there is no results from the user-centered query,
             // open a wider next in some "default" Seattle/Bellevue location
@@ -265,10 +405,10 @@ public class MySearchRoutesFragment extends MySearchFragmentBase
                 }
             }
 
-            return new ObaRoutesForLocationRequest.Builder(getContext(), UIHelp.DEFAULT_SEARCH_CENTER)
+            return setRequest(new ObaRoutesForLocationRequest.Builder(getContext(), UIHelp.DEFAULT_SEARCH_CENTER)
                     .setRadius(UIHelp.DEFAULT_SEARCH_RADIUS)
                     .setQuery(mQueryText)
-                    .build()
+                    .build())
                     .call();
         }
     }
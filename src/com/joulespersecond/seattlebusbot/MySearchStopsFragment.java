@@ -23,6 +23,7 @@ import com.joulespersecond.oba.request.ObaStopsForLocationResponse;
 
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.LoaderManager;
@@ -41,7 +42,10 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class MySearchStopsFragment extends MySearchFragmentBase
             implements LoaderManager.LoaderCallbacks<ObaStopsForLocationResponse> {
@@ -52,16 +56,47 @@ public class MySearchStopsFragment extends MySearchFragmentBase
 
     private UIHelp.StopUserInfoMap mStopUserMap;
     private MyAdapter mAdapter;
+    // The current search text, the results from the local database,
+    // and the results from the server for the current text.
+    private String mQueryText = "";
+    private List<ObaStop> mLocalResults = Collections.emptyList();
+    private List<ObaStop> mNetworkResults = Collections.emptyList();
+    private final QueryUtils.SearchCache<ObaStop> mCache =
+            new QueryUtils.SearchCache<ObaStop>("Stop search");
+
+    private static final int NETWORK_LOADER = 0;
+    private static final int LOCAL_LOADER = 1;
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
-        mStopUserMap = new UIHelp.StopUserInfoMap(getActivity());
+        mStopUserMap = UIHelp.StopUserInfoMap.get(getActivity());
         super.onActivityCreated(savedInstanceState);
 
         mAdapter = new MyAdapter();
         setListAdapter(mAdapter);
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        mStopUserMap.addListener(mStopUserListener);
+    }
+
+    @Override
+    public void onPause() {
+        mStopUserMap.removeListener(mStopUserListener);
+        super.onPause();
+    }
+
+    // Shows the user names and stars once they've been loaded.
+    private final UIHelp.StopUserInfoMap.Listener mStopUserListener =
+            new UIHelp.StopUserInfoMap.Listener() {
+        @Override
+        public void onStopUserInfoChanged() {
+            mAdapter.notifyDataSetChanged();
+        }
+    };
+
     @Override
     public View onCreateView(LayoutInflater inflater,
             ViewGroup root,
@@ -74,14 +109,6 @@ public class MySearchStopsFragment extends MySearchFragmentBase
         return inflater.inflate(R.layout.my_search_stop_list, null);
     }
 
-    @Override
-    public void onDestroy() {
-        if (mStopUserMap != null) {
-            mStopUserMap.close();
-        }
-        super.onDestroy();
-    }
-
     @Override
     public Loader<ObaStopsForLocationResponse> onCreateLoader(int id, Bundle args) {
         Log.d(TAG, "Create loader");
@@ -94,10 +121,16 @@ public class MySearchStopsFragment extends MySearchFragmentBase
                         ObaStopsForLocationResponse response) {
         ((FragmentActivity)getActivity()).setProgressBarIndeterminateVisibility(Boolean.FALSE);
         Log.d(TAG, "Loader finished");
+        if (!mQueryText.equals(((MyLoader)loader).getQueryText())) {
+            // The text has changed since this search started.
+            return;
+        }
         final int code = response.getCode();
         if (code == ObaApi.OBA_OK) {
             setEmptyText(getString(R.string.find_hint_noresults));
-            mAdapter.setData(Arrays.asList(response.getStops()));
+            mNetworkResults = Arrays.asList(response.getStops());
+            mCache.put(mQueryText, mNetworkResults);
+            updateResults();
         } else if (code != 0) {
             // If we get anything other than a '0' error, that means
             // the server actually returned something to us,
@@ -111,21 +144,101 @@ public class MySearchStopsFragment extends MySearchFragmentBase
 
     @Override
     public void onLoaderReset(Loader<ObaStopsForLocationResponse> loader) {
-        mAdapter.clear();
+        mNetworkResults = Collections.emptyList();
+        updateResults();
     }
 
+    private void updateResults() {
+        mAdapter.setData(QueryUtils.LocalSearch.merge(mLocalResults, mNetworkResults));
+    }
+
+    private final LoaderManager.LoaderCallbacks<Cursor> mLocalCallbacks =
+            new LoaderManager.LoaderCallbacks<Cursor>() {
+        @Override
+        public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+            return QueryUtils.LocalSearch.newStopQuery(getActivity(),
+                    args.getString(QUERY_TEXT));
+        }
+
+        @Override
+        public void onLoadFinished(Loader<Cursor> loader, Cursor c) {
+            mLocalResults = QueryUtils.LocalSearch.getStops(c);
+            updateResults();
+        }
+
+        @Override
+        public void onLoaderReset(Loader<Cursor> loader) {
+            mLocalResults = Collections.emptyList();
+            updateResults();
+        }
+    };
+
     //
     // Base class
     //
     @Override
     protected void doSearch(String text) {
+        if (mCache.get(text) != null) {
+            // We already have these (see doLocalSearch)
+            return;
+        }
         ((FragmentActivity)getActivity()).setProgressBarIndeterminateVisibility(Boolean.TRUE);
         Bundle args = new Bundle();
         args.putString(QUERY_TEXT, text);
-        Loader<?> loader = getLoaderManager().restartLoader(0, args, this);
+        Loader<?> loader = getLoaderManager().restartLoader(NETWORK_LOADER, args, this);
         loader.onContentChanged();
     }
 
+    @Override
+    protected void cancelSearch() {
+        Loader<ObaStopsForLocationResponse> loader = getLoaderManager().getLoader(NETWORK_LOADER);
+        if (loader != null) {
+            ((MyLoader)loader).cancel();
+        }
+    }
+
+    @Override
+    protected void doLocalSearch(String text) {
+        // Any results from the server are for the old text,
+        // unless we've searched for this before. If this text
+        // extends the old text, we can show the old results
+        // that match this until we've searched for it.
+        final String oldText = mQueryText;
+        mQueryText = text;
+        final List<ObaStop> cached = mCache.get(text);
+        if (cached != null) {
+            mNetworkResults = cached;
+        } else if (oldText.length() > 0 && text.startsWith(oldText)) {
+            mNetworkResults = filter(mNetworkResults, text);
+        } else {
+            mNetworkResults = Collections.emptyList();
+        }
+        if (text.length() == 0) {
+            getLoaderManager().destroyLoader(LOCAL_LOADER);
+            mLocalResults = Collections.emptyList();
+            updateResults();
+            return;
+        }
+        Bundle args = new Bundle();
+        args.putString(QUERY_TEXT, text);
+        getLoaderManager().restartLoader(LOCAL_LOADER, args, mLocalCallbacks);
+    }
+
+    private static List<ObaStop> filter(List<ObaStop> stops, String text) {
+        final String lower = text.toLowerCase();
+        ArrayList<ObaStop> result = new ArrayList<ObaStop>();
+        for (ObaStop stop: stops) {
+            // Not every stop has a code (or a name.)
+            final String code = stop.getStopCode();
+            final String name = stop.getName();
+            if ((code != null && code.startsWith(text)) ||
+                    (name != null && name.toLowerCase().contains(lower))) {
+                result.add(stop);
+            }
+        }
+        return result;
+    }
+
     @Override
     protected int getEditBoxHintText() {
         return R.string.search_stop_hint;
@@ -230,6 +343,8 @@ public class MySearchStopsFragment extends MySearchFragmentBase
     private static final class MyLoader extends AsyncTaskLoader<ObaStopsForLocationResponse> {
         private final String mQueryText;
         private final GeoPoint mCenter;
+        private ObaStopsForLocationRequest mRequest;
+        private boolean mCancelled;
 
         public MyLoader(Context context, String query, GeoPoint center) {
             super(context);
@@ -237,11 +352,36 @@ public class MySearchStopsFragment extends MySearchFragmentBase
             mCenter = center;
         }
 
+        public String getQueryText() {
+            return mQueryText;
+        }
+
+        //
+        // Cancels the request to the server, if it's in progress.
+        // The load then finishes with an error, which is ignored
+        // since the text has changed.
+        //
+        public synchronized void cancel() {
+            mCancelled = true;
+            if (mRequest != null) {
+                mRequest.cancel();
+            }
+        }
+
+        private synchronized ObaStopsForLocationRequest setRequest(
+                ObaStopsForLocationRequest request) {
+            if (mCancelled) {
+                request.cancel();
+            }
+            mRequest = request;
+            return request;
+        }
+
         @Override
         public ObaStopsForLocationResponse loadInBackground() {
-            return new ObaStopsForLocationRequest.Builder(getContext(), mCenter)
+            return setRequest(new ObaStopsForLocationRequest.Builder(getContext(), mCenter)
                 .setQuery(mQueryText)
-                .build()
+                .build())
                 .call();
         }
     }
@@ -38,11 +38,16 @@ public class MyStarredStopsFragment extends MyStopListFragmentBase {
         return new CursorLoader(getActivity(),
                 ObaContract.Stops.CONTENT_URI,
                 QueryUtils.StopList.Columns.PROJECTION,
-                ObaContract.Stops.FAVORITE + "=1",
+                getSelection(),
                 null,
                 ObaContract.Stops.USE_COUNT + " desc");
     }
 
+    @Override
+    protected String getSelection() {
+        return QueryUtils.getStarredSelection();
+    }
+
     @Override
     public void onCreateContextMenu(ContextMenu menu, View v,
             ContextMenuInfo menuInfo) {
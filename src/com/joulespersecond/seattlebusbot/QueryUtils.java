@@ -15,6 +15,12 @@
  */
 package com.joulespersecond.seattlebusbot;
 
+import com.google.android.maps.GeoPoint;
+import com.joulespersecond.oba.CacheRegistry;
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaElement;
+import com.joulespersecond.oba.elements.ObaRoute;
+import com.joulespersecond.oba.elements.ObaStop;
 import com.joulespersecond.oba.provider.ObaContract;
 
 import android.content.Context;
@@ -27,31 +33,59 @@ import android.view.View;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Utilities mainly to support queries for the Stops and Routes lists
  * @author paulw
  *
  */
-final class QueryUtils {
+public final class QueryUtils {
     static protected CursorLoader newRecentQuery(
             final Context context,
             final Uri uri,
             final String[] projection,
             final String accessTime,
             final String useCount) {
-        // "Recently" means seven days in the past
-        final long last = System.currentTimeMillis() - 7*DateUtils.DAY_IN_MILLIS;
         Uri limit = uri.buildUpon().appendQueryParameter("limit", "20").build();
         return new CursorLoader(context,
                 limit,
                 projection,
-                "(" +
+                getRecentSelection(accessTime, useCount),
+                null,
+                getRecentSortOrder(accessTime, useCount));
+    }
+
+    /**
+     * @return The selection for the stops or routes that were used recently.
+     */
+    public static String getRecentSelection(String accessTime, String useCount) {
+        // "Recently" means seven days in the past
+        final long last = System.currentTimeMillis() - 7*DateUtils.DAY_IN_MILLIS;
+        return "(" +
                     accessTime + " IS NOT NULL AND " +
                     accessTime + " > " + last +
-                ") OR (" + useCount + " > 0)",
-                null,
-                accessTime + " desc, " +
-                useCount + " desc");
+                ") OR (" + useCount + " > 0)";
+    }
+
+    /**
+     * @return The sort order of the recent stops or routes.
+     */
+    public static String getRecentSortOrder(String accessTime, String useCount) {
+        // The unary + stops SQLite from scanning the whole access time
+        // index to avoid sorting, so it searches both indexes instead.
+        return "+" + accessTime + " desc, " + useCount + " desc";
+    }
+
+    /**
+     * @return The selection for the starred stops.
+     */
+    public static String getStarredSelection() {
+        return ObaContract.Stops.FAVORITE + "=1";
     }
 
     static final class RouteList {
@@ -165,4 +199,247 @@ final class QueryUtils {
         }
     }
 
+    /**
+     * The results of the last few network searches, by query text,
+     * so going back to an earlier query (such as by deleting
+     * a character) doesn't search again.
+     */
+    static final class SearchCache<T> implements CacheRegistry.Cache {
+        private static final int MAX_ENTRIES = 8;
+        // Rough size of a result, in bytes, for the cache's estimate.
+        private static final int RESULT_SIZE = 300;
+
+        private final LinkedHashMap<String,List<T>> mEntries =
+                new LinkedHashMap<String,List<T>>(MAX_ENTRIES, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,List<T>> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+        SearchCache(String name) {
+            CacheRegistry.register(name, CacheRegistry.PRIORITY_TRANSIENT, this);
+        }
+
+        synchronized List<T> get(String query) {
+            return mEntries.get(query);
+        }
+
+        void put(String query, List<T> results) {
+            synchronized (this) {
+                mEntries.put(query, results);
+            }
+            CacheRegistry.onGrow(this);
+        }
+
+        @Override
+        public synchronized long estimateSize() {
+            long size = 0;
+            for (List<T> results: mEntries.values()) {
+                size += results.size() * RESULT_SIZE;
+            }
+            return size;
+        }
+
+        @Override
+        public synchronized void clear() {
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Supports searching the stops and routes the user has already seen,
+     * so they can be shown before the results from the server.
+     */
+    static final class LocalSearch {
+        static final String[] STOP_PROJECTION = {
+            ObaContract.Stops._ID,
+            ObaContract.Stops.CODE,
+            ObaContract.Stops.NAME,
+            ObaContract.Stops.DIRECTION,
+            ObaContract.Stops.LATITUDE,
+            ObaContract.Stops.LONGITUDE
+        };
+        static final String[] ROUTE_PROJECTION = {
+            ObaContract.Routes._ID,
+            ObaContract.Routes.SHORTNAME,
+            ObaContract.Routes.LONGNAME,
+            ObaContract.Routes.URL
+        };
+        // The local results are meant to be a quick preview.
+        private static final String LIMIT = "20";
+
+        static CursorLoader newStopQuery(Context context, String text) {
+            return new CursorLoader(context,
+                    limit(ObaContract.Stops.buildSearchUri(text)),
+                    STOP_PROJECTION, null, null, null);
+        }
+
+        static CursorLoader newRouteQuery(Context context, String text) {
+            return new CursorLoader(context,
+                    limit(ObaContract.Routes.buildSearchUri(text)),
+                    ROUTE_PROJECTION, null, null, null);
+        }
+
+        private static Uri limit(Uri uri) {
+            return uri.buildUpon().appendQueryParameter("limit", LIMIT).build();
+        }
+
+        static List<ObaStop> getStops(Cursor c) {
+            ArrayList<ObaStop> result = new ArrayList<ObaStop>();
+            if (c != null && c.moveToFirst()) {
+                do {
+                    result.add(new Stop(c));
+                } while (c.moveToNext());
+            }
+            return result;
+        }
+
+        static List<ObaRoute> getRoutes(Cursor c) {
+            ArrayList<ObaRoute> result = new ArrayList<ObaRoute>();
+            if (c != null && c.moveToFirst()) {
+                do {
+                    result.add(new Route(c));
+                } while (c.moveToNext());
+            }
+            return result;
+        }
+
+        /**
+         * Returns the local results followed by the server results
+         * that aren't already in the local results.
+         */
+        static <T extends ObaElement> List<T> merge(List<T> local, List<T> network) {
+            ArrayList<T> result = new ArrayList<T>(local.size() + network.size());
+            HashSet<String> ids = new HashSet<String>();
+            for (T element: local) {
+                if (ids.add(element.getId())) {
+                    result.add(element);
+                }
+            }
+            for (T element: network) {
+                if (ids.add(element.getId())) {
+                    result.add(element);
+                }
+            }
+            return result;
+        }
+
+        private static String notNull(String s) {
+            return s != null ? s : "";
+        }
+
+        //
+        // The stop and route tables only have a few of the fields
+        // that come from the server, but they are enough to display
+        // them in the search lists and to start the arrivals/route screens.
+        //
+        private static final class Stop implements ObaStop {
+            private final String mId;
+            private final String mCode;
+            private final String mName;
+            private final String mDirection;
+            private final double mLat;
+            private final double mLon;
+
+            Stop(Cursor c) {
+                mId = c.getString(0);
+                mCode = notNull(c.getString(1));
+                mName = notNull(c.getString(2));
+                mDirection = notNull(c.getString(3));
+                mLat = c.getDouble(4);
+                mLon = c.getDouble(5);
+            }
+
+            public String getId() {
+                return mId;
+            }
+
+            public String getStopCode() {
+                return mCode;
+            }
+
+            public String getName() {
+                return mName;
+            }
+
+            public GeoPoint getLocation() {
+                return ObaApi.makeGeoPoint(mLat, mLon);
+            }
+
+            public double getLatitude() {
+                return mLat;
+            }
+
+            public double getLongitude() {
+                return mLon;
+            }
+
+            public String getDirection() {
+                return mDirection;
+            }
+
+            public int getLocationType() {
+                return LOCATION_STOP;
+            }
+
+            public String[] getRouteIds() {
+                return new String[] {};
+            }
+        }
+
+        private static final class Route implements ObaRoute {
+            private final String mId;
+            private final String mShortName;
+            private final String mLongName;
+            private final String mUrl;
+
+            Route(Cursor c) {
+                mId = c.getString(0);
+                mShortName = notNull(c.getString(1));
+                mLongName = notNull(c.getString(2));
+                mUrl = c.getString(3);
+            }
+
+            public String getId() {
+                return mId;
+            }
+
+            public String getShortName() {
+                return mShortName;
+            }
+
+            public String getLongName() {
+                return mLongName;
+            }
+
+            public String getDescription() {
+                return "";
+            }
+
+            public int getType() {
+                return TYPE_BUS;
+            }
+
+            public String getUrl() {
+                return mUrl;
+            }
+
+            public int getColor() {
+                return 0;
+            }
+
+            public int getTextColor() {
+                return 0;
+            }
+
+            public String getAgencyId() {
+                // The route ID is prefixed by the agency ID.
+                final int index = mId.indexOf('_');
+                return index >= 0 ? mId.substring(0, index) : "";
+            }
+        }
+    }
 }
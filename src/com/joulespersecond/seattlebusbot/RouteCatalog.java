@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot;
+
+import com.joulespersecond.oba.CacheRegistry;
+import com.joulespersecond.oba.elements.ObaRoute;
+import com.joulespersecond.oba.provider.ObaContract;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * The in-memory index of every route in the region, so route search
+ * can be answered as the user types, without going to the server.
+ *
+ * The routes are downloaded in the background by the trip service
+ * (see RouteCatalogTask) and kept in the routes table. The first time
+ * the catalogue is needed, they are loaded into a RouteTrie on another
+ * thread, and if the catalogue is more than a week old (or has never
+ * been downloaded) it's downloaded again.
+ *
+ * @author paulw
+ *
+ */
+public final class RouteCatalog {
+    private static final String TAG = "RouteCatalog";
+
+    /**
+     * The last time the whole catalogue was downloaded. This is removed
+     * if the last download didn't get every route.
+     */
+    public static final String PREF_LAST_SYNC = "route_catalog_sync";
+
+    private static final long MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+    // Rough size of a route and its trie nodes, in bytes,
+    // for the cache's estimate.
+    private static final int ROUTE_SIZE = 600;
+
+    private static RouteTrie sTrie;
+    // Whether the loaded catalogue has every route (see PREF_LAST_SYNC).
+    private static boolean sComplete = false;
+    private static boolean sLoading = false;
+    // Incremented on every invalidation, so a load that raced
+    // with one doesn't replace the newer catalogue.
+    private static int sGeneration = 0;
+
+    private static final CacheRegistry.Cache sCache = new CacheRegistry.Cache() {
+        @Override
+        public long estimateSize() {
+            synchronized (RouteCatalog.class) {
+                return (sTrie != null) ? sTrie.size() * ROUTE_SIZE : 0;
+            }
+        }
+
+        // It's loaded again the next time the search screen is shown.
+        @Override
+        public void clear() {
+            invalidate();
+        }
+    };
+
+    static {
+        CacheRegistry.register(TAG, CacheRegistry.PRIORITY_DATABASE, sCache);
+    }
+
+    // Cannot be instantiated
+    private RouteCatalog() {
+    }
+
+    /**
+     * Starts loading the catalogue, if it isn't already loaded,
+     * and downloading it, if it's out of date.
+     */
+    public static void load(Context context) {
+        final int generation;
+        synchronized (RouteCatalog.class) {
+            if (sTrie != null || sLoading) {
+                return;
+            }
+            sLoading = true;
+            generation = sGeneration;
+        }
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loadInBackground(appContext, generation);
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Returns the routes in the catalogue that match the text
+     * (see RouteTrie.)
+     *
+     * @return The matching routes, or null if the catalogue
+     *      isn't loaded or is empty.
+     */
+    public static List<ObaRoute> search(String text, int limit) {
+        final RouteTrie trie;
+        synchronized (RouteCatalog.class) {
+            trie = sTrie;
+        }
+        if (trie == null || trie.size() == 0) {
+            return null;
+        }
+        return trie.search(text, limit);
+    }
+
+    /**
+     * @return Whether route search can be answered by the catalogue.
+     */
+    public static synchronized boolean isAvailable() {
+        return sTrie != null && sTrie.size() > 0;
+    }
+
+    /**
+     * @return Whether the catalogue is available and has every route,
+     *      so the server wouldn't find anything else.
+     */
+    public static synchronized boolean isComplete() {
+        return isAvailable() && sComplete;
+    }
+
+    /**
+     * Drops the loaded catalogue, after it has been downloaded again
+     * or when memory is low. It's reloaded the next time it's needed.
+     */
+    public static synchronized void invalidate() {
+        ++sGeneration;
+        sTrie = null;
+    }
+
+    private static void loadInBackground(Context context, int generation) {
+        SharedPreferences prefs = context.getSharedPreferences(UIHelp.PREFS_NAME, 0);
+        final long lastSync = prefs.getLong(PREF_LAST_SYNC, 0);
+
+        RouteTrie trie = null;
+        try {
+            trie = loadTrie(context);
+        } catch (RuntimeException e) {
+            // It's tried again the next time it's needed.
+            Log.e(TAG, "Unable to load the catalogue", e);
+        } finally {
+            synchronized (RouteCatalog.class) {
+                sLoading = false;
+                if (trie != null && generation == sGeneration) {
+                    sTrie = trie;
+                    sComplete = (lastSync != 0);
+                }
+            }
+        }
+        if (trie != null) {
+            CacheRegistry.onGrow(sCache);
+        }
+
+        final long now = System.currentTimeMillis();
+        // (If the clock went backwards, we should download it again.)
+        if (lastSync > now || now - lastSync > MAX_AGE) {
+            TripService.syncRouteCatalog(context);
+        }
+    }
+
+    private static RouteTrie loadTrie(Context context) {
+        final long start = System.nanoTime();
+        List<ObaRoute> routes = null;
+        Cursor c = context.getContentResolver().query(ObaContract.Routes.CONTENT_URI,
+                QueryUtils.LocalSearch.ROUTE_PROJECTION,
+                ObaContract.Routes.CATALOG_TIME + " IS NOT NULL",
+                null, null);
+        try {
+            routes = QueryUtils.LocalSearch.getRoutes(c);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        final RouteTrie trie = new RouteTrie(routes);
+        Log.d(TAG, String.format("Loaded %d routes in %d ms",
+                trie.size(), (System.nanoTime() - start) / 1000000));
+        return trie;
+    }
+}
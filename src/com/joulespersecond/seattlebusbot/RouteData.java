@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot;
+
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaAgency;
+import com.joulespersecond.oba.elements.ObaReferences;
+import com.joulespersecond.oba.elements.ObaRoute;
+import com.joulespersecond.oba.elements.ObaShape;
+import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.elements.ObaStopGroup;
+import com.joulespersecond.oba.elements.ObaStopGrouping;
+import com.joulespersecond.oba.request.ObaStopsForRouteResponse;
+
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Everything the route screens show about a route: the route itself,
+ * its agency, its stops and how they are grouped, and its shape.
+ * This all comes from a single stops-for-route request (with shapes),
+ * and doesn't change once it's created, so it can be shared by the
+ * route info list, the route map and its popup (see RouteDataCache).
+ *
+ * @author paulw
+ *
+ */
+public final class RouteData {
+    // Rough sizes, in bytes, for the cache's estimate:
+    // each stop (with its strings and the response's references to it),
+    // each stop in a stop group, and each character of the encoded shapes.
+    private static final int STOP_SIZE = 400;
+    private static final int GROUP_STOP_SIZE = 8;
+    private static final int CHAR_SIZE = 2;
+
+    private final ObaStopsForRouteResponse mResponse;
+    private final String mRouteId;
+    private final ObaRoute mRoute;
+    private final ObaAgency mAgency;
+    private final List<ObaStop> mStops;
+    private final HashMap<String,ObaStop> mStopMap;
+    private final long mLoadTime;
+    private final long mSize;
+
+    RouteData(String routeId, ObaStopsForRouteResponse response) {
+        mResponse = response;
+        mRouteId = routeId;
+        mLoadTime = SystemClock.elapsedRealtime();
+        if (response.getCode() == ObaApi.OBA_OK) {
+            mRoute = response.getRoute(routeId);
+            mAgency = (mRoute != null) ? response.getAgency(mRoute.getAgencyId()) : null;
+            mStops = Collections.unmodifiableList(response.getStops());
+        } else {
+            mRoute = null;
+            mAgency = null;
+            mStops = Collections.emptyList();
+        }
+        mStopMap = new HashMap<String,ObaStop>(mStops.size());
+        for (ObaStop stop: mStops) {
+            mStopMap.put(stop.getId(), stop);
+        }
+        mSize = estimateSize(response, mStops.size());
+    }
+
+    /**
+     * @return The result code of the request.
+     */
+    public int getCode() {
+        return mResponse.getCode();
+    }
+
+    public String getRouteId() {
+        return mRouteId;
+    }
+
+    /**
+     * @return The route, or null if the request failed.
+     */
+    public ObaRoute getRoute() {
+        return mRoute;
+    }
+
+    /**
+     * @return The route's agency, or null if the request failed.
+     */
+    public ObaAgency getAgency() {
+        return mAgency;
+    }
+
+    public List<ObaStop> getStops() {
+        return mStops;
+    }
+
+    /**
+     * @return The stop with the ID, or null if it isn't on the route.
+     */
+    public ObaStop getStop(String stopId) {
+        return mStopMap.get(stopId);
+    }
+
+    public ObaStopGrouping[] getStopGroupings() {
+        return mResponse.getStopGroupings();
+    }
+
+    /**
+     * @return The first stop group (e.g. direction) the stop is in,
+     *      or null if it isn't in any.
+     */
+    public ObaStopGroup getGroupForStop(String stopId) {
+        return mResponse.getGroupForStop(stopId);
+    }
+
+    /**
+     * @return The position of the stop in its group, or -1.
+     */
+    public int getPositionInGroup(String stopId) {
+        return mResponse.getPositionInGroup(stopId);
+    }
+
+    public ObaShape[] getShapes() {
+        return mResponse.getShapes();
+    }
+
+    /**
+     * @return The references of the response, for anything else.
+     */
+    public ObaReferences getRefs() {
+        return mResponse;
+    }
+
+    /**
+     * @return When this was loaded, in elapsedRealtime.
+     */
+    public long getLoadTime() {
+        return mLoadTime;
+    }
+
+    /**
+     * @return A rough estimate of the memory used, in bytes.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    private static long estimateSize(ObaStopsForRouteResponse response, int stops) {
+        long size = stops * STOP_SIZE;
+        if (response.getCode() != ObaApi.OBA_OK) {
+            return size;
+        }
+        size += getShapesSize(response.getShapes());
+        final ObaStopGrouping[] groupings = response.getStopGroupings();
+        if (groupings == null) {
+            return size;
+        }
+        for (ObaStopGrouping grouping: groupings) {
+            for (ObaStopGroup group: grouping.getStopGroups()) {
+                size += group.getStopIds().length * GROUP_STOP_SIZE;
+                size += getShapesSize(group.getShapes());
+            }
+        }
+        return size;
+    }
+
+    private static long getShapesSize(ObaShape[] shapes) {
+        long size = 0;
+        if (shapes == null) {
+            return size;
+        }
+        for (ObaShape shape: shapes) {
+            size += shape.getRawPoints().length() * CHAR_SIZE;
+        }
+        return size;
+    }
+}
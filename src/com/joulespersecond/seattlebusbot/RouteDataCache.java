@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot;
+
+import com.joulespersecond.oba.CacheRegistry;
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.request.ObaStopsForRouteRequest;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The route data (see RouteData) of the last few routes the user
+ * has looked at, shared by the route info list and the route map.
+ *
+ * A route is only requested once while its data is fresh: if both
+ * screens ask for it at the same time, the second waits for the first
+ * one's request. Only successful responses are kept.
+ *
+ * @author paulw
+ *
+ */
+public final class RouteDataCache {
+    private static final String TAG = "RouteDataCache";
+
+    // Routes and stops hardly ever change, but this is long enough
+    // to go back and forth between the list and the map.
+    private static final long MAX_AGE = 10 * 60 * 1000;
+    // Shapes can be big, so only keep a few routes,
+    // and even fewer on devices with little memory.
+    private static final int MAX_ROUTES = 8;
+    private static final int MAX_ROUTES_LOW_MEMORY = 2;
+
+    private static final class Entry {
+        volatile RouteData data;
+        // The number of callers in get() for this route,
+        // guarded by sEntries. While it's non-zero the entry stays
+        // in the map, so other callers wait for its request
+        // instead of starting another one.
+        int users;
+    }
+
+    private static final LinkedHashMap<String,Entry> sEntries =
+            new LinkedHashMap<String,Entry>(MAX_ROUTES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+            return size() > getMaxRoutes() && eldest.getValue().users == 0;
+        }
+    };
+
+    private static final CacheRegistry.Cache sCache = new CacheRegistry.Cache() {
+        @Override
+        public long estimateSize() {
+            long size = 0;
+            synchronized (sEntries) {
+                for (Entry entry: sEntries.values()) {
+                    final RouteData data = entry.data;
+                    if (data != null) {
+                        size += data.getSize();
+                    }
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            RouteDataCache.clear();
+        }
+    };
+
+    static {
+        CacheRegistry.register(TAG, CacheRegistry.PRIORITY_NETWORK, sCache);
+    }
+
+    // Cannot be instantiated
+    private RouteDataCache() {
+    }
+
+    /**
+     * Returns the data for the route, requesting it if it isn't cached
+     * or is out of date. This blocks, so it's meant to be called
+     * from a loader.
+     */
+    public static RouteData get(Context context, String routeId) {
+        Entry entry;
+        synchronized (sEntries) {
+            entry = sEntries.get(routeId);
+            if (entry == null) {
+                entry = new Entry();
+                sEntries.put(routeId, entry);
+            }
+            ++entry.users;
+        }
+        RouteData data;
+        try {
+            synchronized (entry) {
+                final RouteData cached = entry.data;
+                if (cached != null && !isExpired(cached)) {
+                    return cached;
+                }
+                data = new RouteData(routeId,
+                        new ObaStopsForRouteRequest.Builder(context, routeId)
+                            .setIncludeShapes(true)
+                            .build()
+                            .call());
+                if (data.getCode() != ObaApi.OBA_OK) {
+                    return data;
+                }
+                entry.data = data;
+            }
+        } finally {
+            synchronized (sEntries) {
+                --entry.users;
+            }
+        }
+        CacheRegistry.onGrow(sCache);
+        return data;
+    }
+
+    /**
+     * @return The cached data for the route, even if it's out of date,
+     *      or null if there isn't any. This doesn't block.
+     */
+    public static RouteData peek(String routeId) {
+        synchronized (sEntries) {
+            final Entry entry = sEntries.get(routeId);
+            return (entry != null) ? entry.data : null;
+        }
+    }
+
+    /**
+     * Drops the cached data. Routes that are being requested keep
+     * their entries, so their callers still share one request,
+     * but the data they already had is dropped.
+     */
+    public static void clear() {
+        synchronized (sEntries) {
+            Iterator<Entry> it = sEntries.values().iterator();
+            while (it.hasNext()) {
+                final Entry entry = it.next();
+                if (entry.users == 0) {
+                    it.remove();
+                } else {
+                    entry.data = null;
+                }
+            }
+        }
+    }
+
+    //
+    // This isn't read when the class is initialized, so it doesn't
+    // matter whether that's before or after CacheRegistry.init().
+    //
+    private static int getMaxRoutes() {
+        return CacheRegistry.isLowMemoryDevice() ? MAX_ROUTES_LOW_MEMORY : MAX_ROUTES;
+    }
+
+    private static boolean isExpired(RouteData data) {
+        final long age = SystemClock.elapsedRealtime() - data.getLoadTime();
+        return age < 0 || age > MAX_AGE;
+    }
+}
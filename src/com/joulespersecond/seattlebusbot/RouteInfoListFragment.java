@@ -16,14 +16,13 @@
 package com.joulespersecond.seattlebusbot;
 
 import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaAgency;
+import com.joulespersecond.oba.elements.ObaRoute;
 import com.joulespersecond.oba.elements.ObaStop;
 import com.joulespersecond.oba.elements.ObaStopGroup;
 import com.joulespersecond.oba.elements.ObaStopGrouping;
 import com.joulespersecond.oba.provider.ObaContract;
-import com.joulespersecond.oba.request.ObaRouteRequest;
-import com.joulespersecond.oba.request.ObaRouteResponse;
-import com.joulespersecond.oba.request.ObaStopsForRouteRequest;
-import com.joulespersecond.oba.request.ObaStopsForRouteResponse;
+import com.joulespersecond.oba.provider.ObaDao;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -42,26 +41,22 @@ import android.view.LayoutInflater;
 import android.view.MenuInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.BaseExpandableListAdapter;
+import android.widget.ExpandableListAdapter;
 import android.widget.ExpandableListView;
-import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 public class RouteInfoListFragment extends ListFragment {
     private static final String TAG = "RouteInfoListFragment";
-    private static final int ROUTE_INFO_LOADER = 0;
     private static final int ROUTE_STOPS_LOADER = 1;
 
     private String mRouteId;
-    private ObaRouteResponse mRouteInfo;
+    private ObaRoute mRouteInfo;
     private StopsForRouteInfo mStopsForRoute;
 
-    private SimpleExpandableListAdapter mAdapter;
-    private final RouteLoaderCallback mRouteCallback = new RouteLoaderCallback();
+    private StopsAdapter mAdapter;
     private final StopsLoaderCallback mStopsCallback = new StopsLoaderCallback();
 
     @Override
@@ -87,7 +82,6 @@ public class RouteInfoListFragment extends ListFragment {
         }
         mRouteId = uri.getLastPathSegment();
 
-        getLoaderManager().initLoader(ROUTE_INFO_LOADER, null, mRouteCallback);
         getLoaderManager().initLoader(ROUTE_STOPS_LOADER, null, mStopsCallback);
     }
 
@@ -102,6 +96,12 @@ public class RouteInfoListFragment extends ListFragment {
         return inflater.inflate(R.layout.route_info, null);
     }
 
+    @Override
+    public void onPause() {
+        ObaContract.flushUsage(getActivity());
+        super.onPause();
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.route_info_options, menu);
@@ -179,7 +179,7 @@ public class RouteInfoListFragment extends ListFragment {
         final String stopId = (String)text.getText();
         ObaStop stop = null;
         if (mStopsForRoute != null) {
-            stop = mStopsForRoute.getStopMap().get(stopId);
+            stop = mStopsForRoute.getRouteData().getStop(stopId);
         }
         if (stop != null) {
             ArrivalsListActivity.start(getActivity(), stopId, stop.getName(), stop.getDirection());
@@ -193,7 +193,7 @@ public class RouteInfoListFragment extends ListFragment {
         final String stopId = (String)text.getText();
         // we need to find this route in the response because
         // we need to know it's lat/lon
-        ObaStop stop = mStopsForRoute.getStopMap().get(stopId);
+        ObaStop stop = mStopsForRoute.getRouteData().getStop(stopId);
         if (stop == null) {
             return;
         }
@@ -202,29 +202,7 @@ public class RouteInfoListFragment extends ListFragment {
 
     //
     // Loader callbacks
-    // This is simply because of our two loaders have different callback types,
-    // so we can't easily implement them directly in the fragment.
     //
-    private final class RouteLoaderCallback
-            implements LoaderManager.LoaderCallbacks<ObaRouteResponse> {
-
-        @Override
-        public Loader<ObaRouteResponse> onCreateLoader(int id, Bundle args) {
-            return new RouteInfoLoader(getActivity(), mRouteId);
-        }
-
-        @Override
-        public void onLoadFinished(Loader<ObaRouteResponse> loader,
-                ObaRouteResponse data) {
-            setHeader(data, true);
-        }
-
-        @Override
-        public void onLoaderReset(Loader<ObaRouteResponse> loader) {
-            // Nothing to do right here...
-        }
-    }
-
     private final class StopsLoaderCallback
             implements LoaderManager.LoaderCallbacks<StopsForRouteInfo> {
 
@@ -236,6 +214,7 @@ public class RouteInfoListFragment extends ListFragment {
         @Override
         public void onLoadFinished(Loader<StopsForRouteInfo> loader,
                 StopsForRouteInfo data) {
+            setHeader(data.getRouteData(), true);
             setStopsForRoute(data);
         }
 
@@ -249,11 +228,12 @@ public class RouteInfoListFragment extends ListFragment {
 
     //
     // Loader
+    // The route and its stops come from the data shared with the map.
     //
-    private final static class RouteInfoLoader extends AsyncTaskLoader<ObaRouteResponse> {
+    private final static class StopsForRouteLoader extends AsyncTaskLoader<StopsForRouteInfo> {
         private final String mRouteId;
 
-        RouteInfoLoader(Context context, String routeId) {
+        StopsForRouteLoader(Context context, String routeId) {
             super(context);
             mRouteId = routeId;
         }
@@ -264,158 +244,228 @@ public class RouteInfoListFragment extends ListFragment {
         }
 
         @Override
-        public ObaRouteResponse loadInBackground() {
-            return ObaRouteRequest.newRequest(getContext(), mRouteId).call();
+        public StopsForRouteInfo loadInBackground() {
+            return new StopsForRouteInfo(RouteDataCache.get(getContext(), mRouteId));
         }
     }
 
-    private final static class StopsForRouteLoader extends AsyncTaskLoader<StopsForRouteInfo> {
-        private final String mRouteId;
+    //
+    // The stops of the route, by group, in flat arrays: the stops of
+    // group i are from mGroupStart[i] to mGroupStart[i + 1].
+    // The names are only title-cased when they are first shown
+    // (which is always on the UI thread.)
+    //
+    private final static class StopsForRouteInfo {
+        private final RouteData mRouteData;
+        private final String[] mGroupNames;
+        private final int[] mGroupStart;
+        private final String[] mStopIds;
+        private final ObaStop[] mStops;
+        private final int[] mDirections;
+        private final String[] mGroupTitles;
+        private final String[] mStopTitles;
+
+        public StopsForRouteInfo(RouteData data) {
+            mRouteData = data;
+            final ObaStopGroup[] groups = getGroups(data);
+            int stopCount = 0;
+            for (ObaStopGroup group: groups) {
+                stopCount += group.getStopIds().length;
+            }
+            mGroupNames = new String[groups.length];
+            mGroupStart = new int[groups.length + 1];
+            mStopIds = new String[stopCount];
+            mStops = new ObaStop[stopCount];
+            mDirections = new int[stopCount];
+            mGroupTitles = new String[groups.length];
+            mStopTitles = new String[stopCount];
+
+            int index = 0;
+            for (int i = 0; i < groups.length; ++i) {
+                mGroupNames[i] = groups[i].getName();
+                mGroupStart[i] = index;
+                for (String stopId: groups[i].getStopIds()) {
+                    final ObaStop stop = data.getStop(stopId);
+                    mStopIds[index] = stopId;
+                    mStops[index] = stop;
+                    mDirections[index] = (stop != null) ?
+                            UIHelp.getStopDirectionText(stop.getDirection()) : 0;
+                    ++index;
+                }
+            }
+            mGroupStart[groups.length] = index;
+        }
 
-        StopsForRouteLoader(Context context, String routeId) {
-            super(context);
-            mRouteId = routeId;
+        private static ObaStopGroup[] getGroups(RouteData data) {
+            final ArrayList<ObaStopGroup> result = new ArrayList<ObaStopGroup>();
+            if (data.getCode() == ObaApi.OBA_OK) {
+                for (ObaStopGrouping grouping: data.getStopGroupings()) {
+                    for (ObaStopGroup group: grouping.getStopGroups()) {
+                        result.add(group);
+                    }
+                }
+            }
+            return result.toArray(new ObaStopGroup[result.size()]);
         }
 
-        @Override
-        public void onStartLoading() {
-            forceLoad();
+        public RouteData getRouteData() {
+            return mRouteData;
         }
 
-        @Override
-        public StopsForRouteInfo loadInBackground() {
-            final ObaStopsForRouteResponse response =
-                new ObaStopsForRouteRequest.Builder(getContext(), mRouteId)
-                    .setIncludeShapes(false)
-                    .build()
-                    .call();
-            return new StopsForRouteInfo(getContext(), response);
+        public int getResultCode() {
+            return mRouteData.getCode();
         }
-    }
 
-    private final static class StopsForRouteInfo {
-        private final int mResultCode;
-        private final ArrayList<HashMap<String, String>> mStopGroups;
-        private final ArrayList<ArrayList<HashMap<String, String>>> mStops;
-        private final HashMap<String, ObaStop> mStopMap;
-
-        public StopsForRouteInfo(Context cxt, ObaStopsForRouteResponse response) {
-            mStopGroups = new ArrayList<HashMap<String, String>>();
-            mStops = new ArrayList<ArrayList<HashMap<String, String>>>();
-            mStopMap = new HashMap<String, ObaStop>();
-            mResultCode = response.getCode();
-            initMaps(cxt, response);
-        }
-
-        private static Map<String, ObaStop> getStopMap(List<ObaStop> stops) {
-            final int len = stops.size();
-            HashMap<String, ObaStop> result = new HashMap<String, ObaStop>(len);
-            for (int i = 0; i < len; ++i) {
-                ObaStop stop = stops.get(i);
-                result.put(stop.getId(), stop);
+        public int getGroupCount() {
+            return mGroupNames.length;
+        }
+
+        public int getStopCount(int group) {
+            return mGroupStart[group + 1] - mGroupStart[group];
+        }
+
+        /**
+         * @return The index of the stop in the flat arrays.
+         */
+        public int getStopIndex(int group, int child) {
+            return mGroupStart[group] + child;
+        }
+
+        public String getGroupTitle(int group) {
+            String result = mGroupTitles[group];
+            if (result == null) {
+                result = MyTextUtils.toTitleCase(mGroupNames[group]);
+                mGroupTitles[group] = result;
             }
             return result;
         }
 
-        private void initMaps(Context cxt, ObaStopsForRouteResponse response) {
-            // Convert to weird array type. From the documentation of
-            // SimpleExpandableListAdapter:
-            // StopGroupings: A List of Maps. Each entry in the List corresponds
-            // to one group in the list. The Maps contain the data for each
-            // group,
-            // and should include all the entries specified in "groupFrom".
-            //
-            // StopGroupings: A List of Maps. Each entry in the List corresponds
-            // to one group in the list. The Maps contain the data for each
-            // group,
-            // and should include all the entries specified in "groupFrom".
-            //
-            // Stops:
-            // A List of List of Maps. Each entry in the outer List corresponds
-            // to a group (index by group position), each entry in the inner
-            // List
-            // corresponds to a child within the group (index by child
-            // position),
-            // and the Map corresponds to the data for a child (index by values
-            // in the childFrom array). The Map contains the data for each
-            // child,
-            // and should include all the entries specified in "childFrom"
-            if (response.getCode() == ObaApi.OBA_OK) {
-                final List<ObaStop> stops = response.getStops();
-                final Map<String, ObaStop> stopMap = getStopMap(stops);
-                final ObaStopGrouping[] groupings = response.getStopGroupings();
-                final int groupingsLen = groupings.length;
-
-                for (int groupingIndex = 0; groupingIndex < groupingsLen; ++groupingIndex) {
-                    final ObaStopGrouping grouping = groupings[groupingIndex];
-                    final ObaStopGroup[] groups = grouping.getStopGroups();
-                    final int groupsLen = groups.length;
-
-                    for (int i = 0; i < groupsLen; ++i) {
-                        final HashMap<String, String> groupMap = new HashMap<String, String>(1);
-                        final ObaStopGroup group = groups[i];
-                        // We can initialize the stop grouping values.
-                        groupMap.put("name", MyTextUtils.toTitleCase(group.getName()));
-                        // Add this to the groupings map
-
-                        // Create the sub list (the list of stops in the group)
-                        final String[] stopIds = group.getStopIds();
-                        final int stopIdLen = stopIds.length;
-
-                        final ArrayList<HashMap<String, String>> childList = new ArrayList<HashMap<String, String>>(
-                                stopIdLen);
-
-                        for (int j = 0; j < stopIdLen; ++j) {
-                            final String stopId = stopIds[j];
-                            final ObaStop stop = stopMap.get(stopId);
-                            HashMap<String, String> groupStopMap = new HashMap<String, String>(2);
-                            if (stop != null) {
-                                groupStopMap.put("name", MyTextUtils.toTitleCase(stop.getName()));
-                                String dir = cxt.getString(UIHelp.getStopDirectionText(stop
-                                        .getDirection()));
-                                groupStopMap.put("direction", dir);
-                                groupStopMap.put("id", stopId);
-                                mStopMap.put(stopId, stop);
-                            } else {
-                                groupStopMap.put("name", "");
-                                groupStopMap.put("direction", "");
-                                groupStopMap.put("id", stopId);
-                            }
-                            childList.add(groupStopMap);
-                        }
-
-                        mStopGroups.add(groupMap);
-                        mStops.add(childList);
-                    }
-                }
+        public String getStopId(int index) {
+            return mStopIds[index];
+        }
+
+        public String getStopTitle(int index) {
+            String result = mStopTitles[index];
+            if (result == null) {
+                final ObaStop stop = mStops[index];
+                result = (stop != null) ? MyTextUtils.toTitleCase(stop.getName()) : "";
+                mStopTitles[index] = result;
             }
+            return result;
         }
 
-        public int getResultCode() {
-            return mResultCode;
+        /**
+         * @return The string resource of the stop's direction,
+         *      or 0 if the stop isn't known.
+         */
+        public int getDirection(int index) {
+            return mDirections[index];
+        }
+    }
+
+    //
+    // Adapter
+    //
+    private final static class StopsAdapter extends BaseExpandableListAdapter {
+        private final StopsForRouteInfo mInfo;
+        private final LayoutInflater mInflater;
+
+        StopsAdapter(Context context, StopsForRouteInfo info) {
+            mInfo = info;
+            mInflater = LayoutInflater.from(context);
         }
 
-        public ArrayList<HashMap<String, String>> getStopGroups() {
-            return mStopGroups;
+        @Override
+        public int getGroupCount() {
+            return mInfo.getGroupCount();
         }
 
-        public ArrayList<ArrayList<HashMap<String, String>>> getStops() {
-            return mStops;
+        @Override
+        public int getChildrenCount(int groupPosition) {
+            return mInfo.getStopCount(groupPosition);
+        }
+
+        @Override
+        public Object getGroup(int groupPosition) {
+            return mInfo.getGroupTitle(groupPosition);
+        }
+
+        @Override
+        public Object getChild(int groupPosition, int childPosition) {
+            return mInfo.getStopId(mInfo.getStopIndex(groupPosition, childPosition));
         }
 
-        public HashMap<String, ObaStop> getStopMap() {
-            return mStopMap;
+        @Override
+        public long getGroupId(int groupPosition) {
+            return groupPosition;
+        }
+
+        @Override
+        public long getChildId(int groupPosition, int childPosition) {
+            return mInfo.getStopIndex(groupPosition, childPosition);
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public boolean isChildSelectable(int groupPosition, int childPosition) {
+            return true;
+        }
+
+        @Override
+        public View getGroupView(int groupPosition,
+                boolean isExpanded,
+                View convertView,
+                ViewGroup parent) {
+            View view = convertView;
+            if (view == null) {
+                view = mInflater.inflate(android.R.layout.simple_expandable_list_item_1,
+                        parent, false);
+            }
+            TextView text = (TextView)view.findViewById(android.R.id.text1);
+            text.setText(mInfo.getGroupTitle(groupPosition));
+            return view;
+        }
+
+        @Override
+        public View getChildView(int groupPosition,
+                int childPosition,
+                boolean isLastChild,
+                View convertView,
+                ViewGroup parent) {
+            View view = convertView;
+            if (view == null) {
+                view = mInflater.inflate(R.layout.route_info_listitem, parent, false);
+            }
+            final int index = mInfo.getStopIndex(groupPosition, childPosition);
+            TextView name = (TextView)view.findViewById(R.id.name);
+            TextView direction = (TextView)view.findViewById(R.id.direction);
+            TextView stopId = (TextView)view.findViewById(R.id.stop_id);
+
+            name.setText(mInfo.getStopTitle(index));
+            final int dir = mInfo.getDirection(index);
+            if (dir != 0) {
+                direction.setText(dir);
+            } else {
+                direction.setText("");
+            }
+            stopId.setText(mInfo.getStopId(index));
+            return view;
         }
     }
 
     //
     // Helper functions
     //
-    private void setHeader(ObaRouteResponse routeInfo, boolean addToDb) {
+    private void setHeader(RouteData data, boolean addToDb) {
+        final ObaRoute routeInfo = data.getRoute();
         mRouteInfo = routeInfo;
         View view = getView();
 
-        if (routeInfo.getCode() == ObaApi.OBA_OK) {
+        if (routeInfo != null) {
             TextView shortNameText = (TextView)view.findViewById(R.id.short_name);
             TextView longNameText = (TextView)view.findViewById(R.id.long_name);
             TextView agencyText = (TextView)view.findViewById(R.id.agency);
@@ -433,17 +483,18 @@ public class RouteInfoListFragment extends ListFragment {
 
             shortNameText.setText(shortName);
             longNameText.setText(longName);
-            agencyText.setText(mRouteInfo.getAgency().getName());
+            final ObaAgency agency = data.getAgency();
+            agencyText.setText((agency != null) ? agency.getName() : "");
 
             if (addToDb) {
                 ContentValues values = new ContentValues();
                 values.put(ObaContract.Routes.SHORTNAME, shortName);
                 values.put(ObaContract.Routes.LONGNAME, longName);
                 values.put(ObaContract.Routes.URL, url);
-                ObaContract.Routes.insertOrUpdate(getActivity(), mRouteInfo.getId(), values, true);
+                ObaDao.insertOrUpdateRoute(getActivity(), mRouteInfo.getId(), values, true);
             }
         } else {
-            setEmptyText(getString(UIHelp.getRouteErrorString(routeInfo.getCode())));
+            setEmptyText(getString(UIHelp.getRouteErrorString(data.getCode())));
         }
     }
 
@@ -455,21 +506,11 @@ public class RouteInfoListFragment extends ListFragment {
         } else {
             setEmptyText(getString(UIHelp.getRouteErrorString(code)));
         }
-        mAdapter = new SimpleExpandableListAdapter(
-            getActivity(),
-            result.getStopGroups(),
-            android.R.layout.simple_expandable_list_item_1,
-            new String[] { "name" },
-            new int[] { android.R.id.text1 },
-            result.getStops(),
-            R.layout.route_info_listitem,
-            new String[] { "name", "direction", "id" },
-            new int[] { R.id.name, R.id.direction, R.id.stop_id }
-        );
+        mAdapter = new StopsAdapter(getActivity(), result);
         setListAdapter(mAdapter);
     }
 
-    public void setListAdapter(SimpleExpandableListAdapter adapter) {
+    public void setListAdapter(ExpandableListAdapter adapter) {
         ExpandableListView list = (ExpandableListView)getListView();
 
         if (list != null) {
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot;
+
+import com.joulespersecond.oba.elements.ObaRoute;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable prefix index of a list of routes, for typeahead.
+ *
+ * There are two tries: one of the route short names, and one of
+ * each word of the long names. Each node keeps its children in sorted
+ * arrays, so a lookup is a binary search per character and the whole
+ * thing is built once, from a sorted list of keys.
+ *
+ * Matching is case insensitive. The routes whose short names start with
+ * the text come first, then the routes with a word in their long name
+ * that starts with the first word of the text (and where every other
+ * word of the text starts a word in either name.) Within each,
+ * shorter and then alphabetically earlier names come first.
+ *
+ * @author paulw
+ *
+ */
+public final class RouteTrie {
+    private static final Node EMPTY_NODE =
+            new Node(new char[0], new Node[0], new int[0]);
+
+    private static final class Node {
+        final char[] labels;
+        final Node[] children;
+        // The indices of the routes whose key ends here.
+        final int[] routes;
+
+        Node(char[] labels, Node[] children, int[] routes) {
+            this.labels = labels;
+            this.children = children;
+            this.routes = routes;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final String key;
+        final int route;
+
+        Entry(String key, int route) {
+            this.key = key;
+            this.route = route;
+        }
+
+        @Override
+        public int compareTo(Entry another) {
+            final int result = key.compareTo(another.key);
+            if (result != 0) {
+                return result;
+            }
+            return (route < another.route) ? -1 : (route == another.route ? 0 : 1);
+        }
+    }
+
+    private final ObaRoute[] mRoutes;
+    // The lower case words of each route's short and long name.
+    private final String[][] mWords;
+    private final Node mShortNames;
+    private final Node mLongNameWords;
+
+    public RouteTrie(List<? extends ObaRoute> routes) {
+        final int count = routes.size();
+        mRoutes = routes.toArray(new ObaRoute[count]);
+        mWords = new String[count][];
+
+        ArrayList<Entry> shortNames = new ArrayList<Entry>(count);
+        ArrayList<Entry> words = new ArrayList<Entry>(count * 4);
+        for (int i = 0; i < count; ++i) {
+            final String shortName = lower(mRoutes[i].getShortName()).trim();
+            final String[] longNameWords = split(lower(mRoutes[i].getLongName()));
+            if (shortName.length() > 0) {
+                shortNames.add(new Entry(shortName, i));
+            }
+            for (String word: longNameWords) {
+                words.add(new Entry(word, i));
+            }
+            final String[] shortNameWords = split(shortName);
+            mWords[i] = new String[shortNameWords.length + longNameWords.length];
+            System.arraycopy(shortNameWords, 0, mWords[i], 0, shortNameWords.length);
+            System.arraycopy(longNameWords, 0, mWords[i], shortNameWords.length,
+                    longNameWords.length);
+        }
+        mShortNames = build(shortNames);
+        mLongNameWords = build(words);
+    }
+
+    /**
+     * @return The number of routes.
+     */
+    public int size() {
+        return mRoutes.length;
+    }
+
+    /**
+     * Returns the routes that match the text.
+     *
+     * @param text The search text.
+     * @param limit The maximum number of routes to return.
+     * @return The matching routes.
+     */
+    public List<ObaRoute> search(String text, int limit) {
+        final ArrayList<ObaRoute> result = new ArrayList<ObaRoute>();
+        final String query = lower(text).trim();
+        if (query.length() == 0 || limit <= 0) {
+            return result;
+        }
+        final boolean[] added = new boolean[mRoutes.length];
+        collect(find(mShortNames, query), null, added, result, limit);
+        final String[] words = split(query);
+        if (words.length > 0) {
+            collect(find(mLongNameWords, words[0]), words, added, result, limit);
+        }
+        return result;
+    }
+
+    //
+    // Adds the routes under the node (in order) that match the rest of
+    // the words, until there are enough of them.
+    //
+    private void collect(Node node,
+            String[] words,
+            boolean[] added,
+            List<ObaRoute> result,
+            int limit) {
+        if (node == null) {
+            return;
+        }
+        for (int route: node.routes) {
+            if (result.size() >= limit) {
+                return;
+            }
+            if (!added[route] && matchesRest(route, words)) {
+                added[route] = true;
+                result.add(mRoutes[route]);
+            }
+        }
+        for (Node child: node.children) {
+            if (result.size() >= limit) {
+                return;
+            }
+            collect(child, words, added, result, limit);
+        }
+    }
+
+    private boolean matchesRest(int route, String[] words) {
+        if (words == null) {
+            return true;
+        }
+        for (int i = 1; i < words.length; ++i) {
+            boolean found = false;
+            for (String word: mWords[route]) {
+                if (word.startsWith(words[i])) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Node find(Node node, String prefix) {
+        for (int i = 0; i < prefix.length() && node != null; ++i) {
+            final int index = Arrays.binarySearch(node.labels, prefix.charAt(i));
+            node = (index >= 0) ? node.children[index] : null;
+        }
+        return node;
+    }
+
+    private static Node build(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return EMPTY_NODE;
+        }
+        Collections.sort(entries);
+        return build(entries, 0, entries.size(), 0);
+    }
+
+    //
+    // Builds the node for the entries in [from, to), which all share
+    // the first 'depth' characters. Since they are sorted, the entries
+    // that end here come first, followed by each child's entries in turn.
+    //
+    private static Node build(List<Entry> entries, int from, int to, int depth) {
+        int start = from;
+        while (start < to && entries.get(start).key.length() == depth) {
+            ++start;
+        }
+        final int[] routes = new int[start - from];
+        for (int i = from; i < start; ++i) {
+            routes[i - from] = entries.get(i).route;
+        }
+
+        int count = 0;
+        for (int i = start; i < to; i = next(entries, i, to, depth)) {
+            ++count;
+        }
+        final char[] labels = new char[count];
+        final Node[] children = new Node[count];
+        int child = 0;
+        for (int i = start; i < to; ) {
+            final int end = next(entries, i, to, depth);
+            labels[child] = entries.get(i).key.charAt(depth);
+            children[child] = build(entries, i, end, depth + 1);
+            ++child;
+            i = end;
+        }
+        return new Node(labels, children, routes);
+    }
+
+    //
+    // Returns the index of the first entry after i with a different
+    // character at depth.
+    //
+    private static int next(List<Entry> entries, int i, int to, int depth) {
+        final char c = entries.get(i).key.charAt(depth);
+        int j = i + 1;
+        while (j < to && entries.get(j).key.charAt(depth) == c) {
+            ++j;
+        }
+        return j;
+    }
+
+    private static String lower(String s) {
+        return (s != null) ? s.toLowerCase() : "";
+    }
+
+    private static String[] split(String s) {
+        ArrayList<String> result = new ArrayList<String>();
+        for (String word: s.split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() > 0) {
+                result.add(word);
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The timings of a cold start, from Application.onCreate until
+ * the map is first drawn: each span (begin/end) is kept as the time
+ * since Application.onCreate that it started and how long it took.
+ *
+ * Once the first frame is drawn, the trace is logged (under this tag,
+ * which is what coldstart_benchmark.sh reads) and nothing else is
+ * recorded, so this only ever costs anything during startup.
+ *
+ * @author paulw
+ *
+ */
+public final class StartupTrace {
+    private static final String TAG = "StartupTrace";
+
+    private static long sStartTime = SystemClock.uptimeMillis();
+    // Span name -> { begin, end }, relative to the start time.
+    private static final LinkedHashMap<String,long[]> sSpans =
+            new LinkedHashMap<String,long[]>();
+    private static long sFirstFrame = -1;
+
+    // Cannot be instantiated
+    private StartupTrace() {
+    }
+
+    /**
+     * Starts the trace. This is called from Application.onCreate.
+     */
+    public static synchronized void start() {
+        sStartTime = SystemClock.uptimeMillis();
+        sSpans.clear();
+        sFirstFrame = -1;
+    }
+
+    public static synchronized void begin(String name) {
+        if (sFirstFrame < 0 && !sSpans.containsKey(name)) {
+            sSpans.put(name, new long[] { now(), -1 });
+        }
+    }
+
+    public static synchronized void end(String name) {
+        final long[] span = sSpans.get(name);
+        if (sFirstFrame < 0 && span != null && span[1] < 0) {
+            span[1] = now();
+        }
+    }
+
+    /**
+     * Records the first frame, and ends the trace.
+     *
+     * @return true if this was the first frame.
+     */
+    public static boolean firstFrame() {
+        final String dump;
+        synchronized (StartupTrace.class) {
+            if (sFirstFrame >= 0) {
+                return false;
+            }
+            sFirstFrame = now();
+            dump = dumpToString();
+        }
+        Log.i(TAG, dump);
+        return true;
+    }
+
+    /**
+     * @return The time from Application.onCreate to the first frame,
+     *      in milliseconds, or -1 if it hasn't been drawn.
+     */
+    public static synchronized long getTimeToFirstFrame() {
+        return sFirstFrame;
+    }
+
+    public static synchronized void dump(PrintWriter pw) {
+        for (Map.Entry<String,long[]> entry: sSpans.entrySet()) {
+            final long[] span = entry.getValue();
+            if (span[1] >= 0) {
+                pw.println(String.format("%s: at %d ms, took %d ms",
+                        entry.getKey(), span[0], span[1] - span[0]));
+            } else {
+                pw.println(String.format("%s: at %d ms, not finished",
+                        entry.getKey(), span[0]));
+            }
+        }
+        pw.println(String.format("first frame: %d ms", sFirstFrame));
+    }
+
+    public static synchronized String dumpToString() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    private static long now() {
+        return SystemClock.uptimeMillis() - sStartTime;
+    }
+}
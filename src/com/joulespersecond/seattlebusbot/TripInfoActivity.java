@@ -16,6 +16,7 @@
 package com.joulespersecond.seattlebusbot;
 
 import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.provider.ObaLookupCache;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -249,9 +250,7 @@ public class TripInfoActivity extends FragmentActivity {
                 mRouteName = TripService.getRouteShortName(getActivity(), mRouteId);
             }
             if (mStopName == null) {
-                mStopName = UIHelp.stringForQuery(getActivity(), Uri.withAppendedPath(
-                        ObaContract.Stops.CONTENT_URI, mStopId),
-                        ObaContract.Stops.NAME);
+                mStopName = ObaLookupCache.get(getActivity()).getStopName(mStopId);
             }
             return true;
         }
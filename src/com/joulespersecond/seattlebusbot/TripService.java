@@ -15,13 +15,17 @@
  */
 package com.joulespersecond.seattlebusbot;
 
-import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.provider.ObaLookupCache;
 import com.joulespersecond.oba.provider.ObaContract.Trips;
 import com.joulespersecond.seattlebusbot.tripservice.CancelNotifyTask;
+import com.joulespersecond.seattlebusbot.tripservice.MaintenanceTask;
 import com.joulespersecond.seattlebusbot.tripservice.NotifierTask;
 import com.joulespersecond.seattlebusbot.tripservice.PollerTask;
+import com.joulespersecond.seattlebusbot.tripservice.RouteCatalogTask;
 import com.joulespersecond.seattlebusbot.tripservice.SchedulerTask;
 import com.joulespersecond.seattlebusbot.tripservice.TaskContext;
+import com.joulespersecond.seattlebusbot.tripservice.TaskQueue;
+import com.joulespersecond.seattlebusbot.tripservice.TripMetrics;
 
 import android.app.AlarmManager;
 import android.app.Notification;
@@ -34,12 +38,14 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.IBinder;
 import android.os.Parcel;
+import android.os.SystemClock;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class TripService extends Service {
     public static final String TAG = "TripService";
@@ -53,16 +59,42 @@ public class TripService extends Service {
         "com.joulespersecond.seattlebusbot.action.NOTIFY";
     public static final String ACTION_CANCEL =
         "com.joulespersecond.seattlebusbot.action.CANCEL";
+    public static final String ACTION_MAINTAIN =
+        "com.joulespersecond.seattlebusbot.action.MAINTAIN";
+    public static final String ACTION_SYNC_ROUTES =
+        "com.joulespersecond.seattlebusbot.action.SYNC_ROUTES";
 
     private static final String EXTRA_TIMEDIFF = ".timeDiff";
 
-    private ExecutorService mThreadPool;
+    // The most tasks (mostly polls of different stops) that run at once.
+    private static final int MAX_THREADS = 3;
+    // How long the running tasks have to finish after onDestroy,
+    // before they're interrupted.
+    private static final long SHUTDOWN_TIMEOUT = 2000;
+
+    // Task priorities: the user's cancel goes first, then anything
+    // they're waiting to see, then the background work.
+    private static final int PRIORITY_CANCEL = 0;
+    private static final int PRIORITY_NOTIFY = 1;
+    private static final int PRIORITY_POLL = 2;
+    private static final int PRIORITY_SCHEDULE = 3;
+    private static final int PRIORITY_MAINTAIN = 4;
+    private static final int PRIORITY_SYNC_ROUTES = 5;
+
+    private TaskQueue mTaskQueue;
     private NotificationManager mNM;
     private ConcurrentHashMap<Integer,Notification> mNotifications;
+    // The highest start ID we've been given, guarded by 'this'.
+    private int mLastStartId = 0;
 
     @Override
     public void onCreate() {
-        mThreadPool = Executors.newSingleThreadExecutor();
+        mTaskQueue = new TaskQueue(MAX_THREADS, new Runnable() {
+            @Override
+            public void run() {
+                stopIfIdle();
+            }
+        });
         mNM = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
         mNotifications = new ConcurrentHashMap<Integer,Notification>();
     }
@@ -70,10 +102,18 @@ public class TripService extends Service {
     @Override
     public void onDestroy() {
         //Log.d(TAG, "service destroyed");
-        if (mThreadPool != null) {
-            mThreadPool.shutdownNow();
-            // TODO: Await termination???
+        if (mTaskQueue != null) {
+            // This doesn't wait for them.
+            mTaskQueue.shutdown(SHUTDOWN_TIMEOUT);
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (mTaskQueue != null) {
+            mTaskQueue.dump(pw);
         }
+        TripMetrics.dump(pw);
     }
 
     //
@@ -91,20 +131,35 @@ public class TripService extends Service {
         return handleCommand(intent, startId);
     }
 
+    //
+    // Stops the service if there's nothing left to do: nothing in the
+    // queue and no notifications showing. A task can't stop the service
+    // when it completes, since other tasks (such as a long poll) may
+    // still be running. The stop uses the latest start ID, so if there's
+    // a command we haven't seen yet the service keeps running.
+    //
+    private synchronized void stopIfIdle() {
+        if (mTaskQueue.isIdle() && mNotifications.isEmpty()) {
+            //Log.d(TAG, "Stopping service: " + mLastStartId);
+            stopSelfResult(mLastStartId);
+        }
+    }
+
     private final class TaskContextImpl implements TaskContext {
         private final int mStartId;
+        // The priority of the task, which its parallel tasks share.
+        private final int mPriority;
 
-        public TaskContextImpl(int startId) {
+        public TaskContextImpl(int startId, int priority) {
             mStartId = startId;
+            mPriority = priority;
         }
 
         @Override
         public void taskComplete() {
             //Log.d(TAG, "Task complete: " + mStartId);
-            // If we have notifications, then we can't stop ourselves.
-            if (mNotifications.isEmpty()) {
-                stopSelfResult(mStartId);
-            }
+            // The queue stops the service once this and every
+            // other task are done (see stopIfIdle).
         }
 
         @Override
@@ -117,13 +172,8 @@ public class TripService extends Service {
         public void cancelNotification(int id) {
             mNM.cancel(id);
             mNotifications.remove(id);
-            // If there are no more notifications
-            // (and nothing else to process in the thread queue?)
-            // stop the service.
-            if (mNotifications.isEmpty()) {
-                //Log.d(TAG, "Stopping service");
-                stopSelf();
-            }
+            // If this was the last notification, the service stops
+            // once the queue is idle (see stopIfIdle).
         }
 
         @Override
@@ -131,38 +181,72 @@ public class TripService extends Service {
             return mNotifications.get(id);
         }
 
+        @Override
+        public void runParallel(List<? extends Runnable> tasks, String name) {
+            mTaskQueue.runParallel(tasks, name, mPriority);
+        }
+
     }
 
-    private int handleCommand(Intent intent, int startId) {
+    //
+    // This is synchronized with stopIfIdle, so the service can't be
+    // stopped between recording the start ID and queuing its task.
+    //
+    private synchronized int handleCommand(Intent intent, int startId) {
         final String action = intent.getAction();
-        final TaskContextImpl taskContext = new TaskContextImpl(startId);
         final Uri uri = intent.getData();
         //Log.d(TAG, "Handle command: startId=" + startId +
         //        " action=" + action +
         //        " uri=" + uri);
+        mLastStartId = Math.max(mLastStartId, startId);
 
+        // Pending tasks with the same key are collapsed into one.
+        // Scheduling, polling and maintenance all read and write the alerts
+        // (and the alarm), so they are exclusive.
         if (ACTION_SCHEDULE.equals(action)) {
-            mThreadPool.submit(new SchedulerTask(this, taskContext, uri));
+            mTaskQueue.submit("SCHEDULE", action + uri, PRIORITY_SCHEDULE, true,
+                    new SchedulerTask(this,
+                            new TaskContextImpl(startId, PRIORITY_SCHEDULE), uri));
             return START_REDELIVER_INTENT;
 
         } else if (ACTION_POLL.equals(action)) {
-            mThreadPool.submit(new PollerTask(this, taskContext, uri));
+            // Every poll polls all of the alerts, whatever the URI.
+            mTaskQueue.submit("POLL", action, PRIORITY_POLL, true,
+                    new PollerTask(this,
+                            new TaskContextImpl(startId, PRIORITY_POLL), uri));
             return START_NOT_STICKY;
 
         } else if (ACTION_NOTIFY.equals(action)) {
             // Create the notification
             long timeDiff = intent.getLongExtra(EXTRA_TIMEDIFF, 0);
-            mThreadPool.submit(new NotifierTask(this,
-                    taskContext, uri, timeDiff));
+            mTaskQueue.submit("NOTIFY", action + uri, PRIORITY_NOTIFY, false,
+                    new NotifierTask(this,
+                            new TaskContextImpl(startId, PRIORITY_NOTIFY), uri, timeDiff));
             return START_REDELIVER_INTENT;
 
         } else if (ACTION_CANCEL.equals(action)) {
-            mThreadPool.submit(new CancelNotifyTask(this, taskContext, uri));
+            mTaskQueue.submit("CANCEL", action + uri, PRIORITY_CANCEL, false,
+                    new CancelNotifyTask(this,
+                            new TaskContextImpl(startId, PRIORITY_CANCEL), uri));
+            return START_NOT_STICKY;
+
+        } else if (ACTION_MAINTAIN.equals(action)) {
+            mTaskQueue.submit("MAINTAIN", action, PRIORITY_MAINTAIN, true,
+                    new MaintenanceTask(this,
+                            new TaskContextImpl(startId, PRIORITY_MAINTAIN)));
+            return START_NOT_STICKY;
+
+        } else if (ACTION_SYNC_ROUTES.equals(action)) {
+            // This only writes the routes table, so it can run
+            // alongside everything else.
+            mTaskQueue.submit("SYNC_ROUTES", action, PRIORITY_SYNC_ROUTES, false,
+                    new RouteCatalogTask(this,
+                            new TaskContextImpl(startId, PRIORITY_SYNC_ROUTES)));
             return START_NOT_STICKY;
 
         } else {
             Log.e(TAG, "Unknown action: " + action);
-            //stopSelfResult(startId);
+            stopIfIdle();
             return START_NOT_STICKY;
         }
     }
@@ -201,6 +285,7 @@ public class TripService extends Service {
         AlarmManager alarm =
             (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
         alarm.set(AlarmManager.RTC_WAKEUP, triggerTime, alarmIntent);
+        TripMetrics.alarmSet(triggerTime);
     }
 
     public static void notifyTrip(Context context, Uri alertUri, long diffTime) {
@@ -211,9 +296,38 @@ public class TripService extends Service {
         context.startService(intent);
     }
 
+    /**
+     * Sets up the alarm that checks, every hour or so, whether it's time
+     * to clean up the database (see MaintenanceTask). It doesn't wake
+     * the device, since we only want to do this when it's idle
+     * and charging anyway. This does nothing if it's already set up.
+     */
+    public static void scheduleMaintenance(Context context) {
+        Intent intent = new Intent(ACTION_MAINTAIN, null, context, AlarmReceiver.class);
+        if (PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        PendingIntent alarmIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
+        AlarmManager alarm =
+            (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+        alarm.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                AlarmManager.INTERVAL_HOUR,
+                alarmIntent);
+    }
+
+    /**
+     * Starts downloading the routes of every agency in the region
+     * (see RouteCatalogTask).
+     */
+    public static void syncRouteCatalog(Context context) {
+        final Intent intent = new Intent(context, TripService.class);
+        intent.setAction(ACTION_SYNC_ROUTES);
+        context.startService(intent);
+    }
+
     public static String getRouteShortName(Context context, String id) {
-        return UIHelp.stringForQuery(context, Uri.withAppendedPath(
-                ObaContract.Routes.CONTENT_URI, id),
-                ObaContract.Routes.SHORTNAME);
+        return ObaLookupCache.get(context).getRouteShortName(id);
     }
 }
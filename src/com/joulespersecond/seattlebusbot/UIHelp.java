@@ -17,17 +17,18 @@
 package com.joulespersecond.seattlebusbot;
 
 import com.google.android.maps.GeoPoint;
+import com.joulespersecond.oba.CacheRegistry;
 import com.joulespersecond.oba.ObaApi;
 import com.joulespersecond.oba.elements.ObaRoute;
 import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.provider.ObaDao;
 
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
-import android.content.ContentQueryMap;
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.location.Location;
 import android.location.LocationManager;
@@ -42,8 +43,13 @@ import android.view.View;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 public final class UIHelp {
     // private static final String TAG = "UIHelp";
@@ -133,23 +139,217 @@ public final class UIHelp {
         ObaContract.Stops.USER_NAME
     };
 
-    public static class StopUserInfoMap {
-        private final ContentQueryMap mMap;
+    /**
+     * The favorite and user name of every stop that has one,
+     * for displaying stop names. There is one of these per process,
+     * which is loaded the first time it's used and then only reloads
+     * the stops that changed (on API 16 and above, where the change
+     * notification says which stops changed; otherwise it reloads everything.)
+     *
+     * The loads run on the database thread (see ObaDao): until one has
+     * finished, the views show what we have, and the listeners are told
+     * to bind them again once it's done.
+     */
+    public static class StopUserInfoMap implements CacheRegistry.Cache {
+        private static StopUserInfoMap sInstance;
+        // Rough size of an entry, in bytes, for the cache's estimate.
+        private static final int ENTRY_SIZE = 150;
+
+        public static synchronized StopUserInfoMap get(Context context) {
+            if (sInstance == null) {
+                sInstance = new StopUserInfoMap(context.getApplicationContext());
+                CacheRegistry.register("StopUserInfoMap",
+                        CacheRegistry.PRIORITY_DATABASE, sInstance);
+            }
+            return sInstance;
+        }
+
+        public interface Listener {
+            /**
+             * Called on the main thread when the map has been (re)loaded.
+             */
+            void onStopUserInfoChanged();
+        }
+
+        private static final class StopUserInfo {
+            final boolean mFavorite;
+            final String mUserName;
+
+            StopUserInfo(boolean favorite, String userName) {
+                mFavorite = favorite;
+                mUserName = userName;
+            }
+        }
+
+        private final ContentResolver mResolver;
+        // Only stops that are favorites or have a user name are in here.
+        private final HashMap<String,StopUserInfo> mMap =
+                new HashMap<String,StopUserInfo>();
+        // The stops that have changed since they were loaded.
+        private final HashSet<String> mChanged = new HashSet<String>();
+        // Set once everything has been loaded (or is being loaded.)
+        private boolean mLoaded = false;
+        private boolean mLoading = false;
+        private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+        private StopUserInfoMap(Context context) {
+            mResolver = context.getContentResolver();
+            mResolver.registerContentObserver(ObaContract.Stops.CONTENT_URI, true,
+                    new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    invalidate(null);
+                }
+
+                // API 16 and above call this with the URI that changed.
+                public void onChange(boolean selfChange, Uri uri) {
+                    invalidate(ObaContract.getChangedIds(uri));
+                }
+            });
+        }
+
+        private synchronized void invalidate(List<String> ids) {
+            if (ids == null) {
+                mLoaded = false;
+                mChanged.clear();
+            } else if (mLoaded) {
+                mChanged.addAll(ids);
+            }
+        }
+
+        @Override
+        public synchronized long estimateSize() {
+            return mMap.size() * ENTRY_SIZE;
+        }
+
+        @Override
+        public synchronized void clear() {
+            mMap.clear();
+            mChanged.clear();
+            mLoaded = false;
+        }
+
+        public synchronized void addListener(Listener listener) {
+            mListeners.add(listener);
+        }
+
+        public synchronized void removeListener(Listener listener) {
+            mListeners.remove(listener);
+        }
+
+        private synchronized StopUserInfo getInfo(String stopId) {
+            if (!mLoaded || !mChanged.isEmpty()) {
+                startLoad();
+            }
+            return mMap.get(stopId);
+        }
+
+        //
+        // Loads everything, or just the stops that changed,
+        // on the database thread. This is called with our lock held.
+        //
+        private void startLoad() {
+            if (mLoading) {
+                // This will be called again by the next view.
+                return;
+            }
+            mLoading = true;
+            final boolean full = !mLoaded;
+            final String[] ids;
+            final String selection;
+            if (full) {
+                ids = null;
+                selection = getSelection();
+            } else {
+                ids = mChanged.toArray(new String[mChanged.size()]);
+                selection = getSelection(ids.length);
+            }
+            mLoaded = true;
+            mChanged.clear();
+
+            ObaDao.submit(new Callable<HashMap<String,StopUserInfo>>() {
+                @Override
+                public HashMap<String,StopUserInfo> call() {
+                    return load(selection, ids);
+                }
+            }, new ObaDao.Callback<HashMap<String,StopUserInfo>>() {
+                @Override
+                public void onResult(HashMap<String,StopUserInfo> result) {
+                    onLoaded(full, ids, result);
+                }
+            });
+        }
+
+        private void onLoaded(boolean full, String[] ids, HashMap<String,StopUserInfo> result) {
+            final ArrayList<Listener> listeners;
+            synchronized (this) {
+                mLoading = false;
+                if (result == null) {
+                    // It failed, so try again the next time it's used.
+                    if (full) {
+                        mLoaded = false;
+                    } else {
+                        Collections.addAll(mChanged, ids);
+                    }
+                    return;
+                }
+                if (full) {
+                    mMap.clear();
+                } else {
+                    for (String id: ids) {
+                        mMap.remove(id);
+                    }
+                }
+                mMap.putAll(result);
+                listeners = new ArrayList<Listener>(mListeners);
+            }
+            for (Listener listener: listeners) {
+                listener.onStopUserInfoChanged();
+            }
+        }
 
-        public StopUserInfoMap(Context context) {
-            ContentResolver cr = context.getContentResolver();
-            Cursor c = cr.query(ObaContract.Stops.CONTENT_URI, STOP_USER_PROJECTION, "("
-                    + ObaContract.Stops.USER_NAME + " IS NOT NULL)" + "OR ("
-                    + ObaContract.Stops.FAVORITE + "=1)", null, null);
-            mMap = new ContentQueryMap(c, ObaContract.Stops._ID, true, null);
+        /**
+         * @return The selection for the stops that are named or starred.
+         */
+        public static String getSelection() {
+            // Every name is >= '', but unlike IS NOT NULL, SQLite
+            // can search the index for it within an OR.
+            return "(" + ObaContract.Stops.USER_NAME + " >= '')" + "OR ("
+                    + ObaContract.Stops.FAVORITE + "=1)";
         }
 
-        public void close() {
-            mMap.close();
+        /**
+         * @return The selection for the specified number of stop IDs.
+         */
+        public static String getSelection(int count) {
+            StringBuilder where = new StringBuilder(ObaContract.Stops._ID);
+            where.append(" IN (");
+            for (int i = 0; i < count; ++i) {
+                where.append(i > 0 ? ",?" : "?");
+            }
+            where.append(")");
+            return where.toString();
         }
 
-        public void requery() {
-            mMap.requery();
+        private HashMap<String,StopUserInfo> load(String selection, String[] selectionArgs) {
+            final HashMap<String,StopUserInfo> result = new HashMap<String,StopUserInfo>();
+            Cursor c = mResolver.query(ObaContract.Stops.CONTENT_URI,
+                    STOP_USER_PROJECTION, selection, selectionArgs, null);
+            if (c == null) {
+                return result;
+            }
+            try {
+                while (c.moveToNext()) {
+                    final boolean favorite = (c.getInt(1) == 1);
+                    final String userName = c.getString(2);
+                    if (favorite || userName != null) {
+                        result.put(c.getString(0), new StopUserInfo(favorite, userName));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            return result;
         }
 
         public void setView(View stopRoot, String stopId, String stopName) {
@@ -161,16 +361,12 @@ public final class UIHelp {
          * This should be used with compound drawables
          */
         public void setView2(TextView nameView, String stopId, String stopName, boolean showIcon) {
-            ContentValues values = mMap.getValues(stopId);
+            final StopUserInfo info = getInfo(stopId);
             int icon = 0;
-            if (values != null) {
-                Integer i = values.getAsInteger(ObaContract.Stops.FAVORITE);
-                final boolean favorite = (i != null) && (i == 1);
-                final String userName = values.getAsString(ObaContract.Stops.USER_NAME);
-
-                nameView.setText(TextUtils.isEmpty(userName) ?
-                        MyTextUtils.toTitleCase(stopName) : userName);
-                icon = favorite && showIcon ? R.drawable.star_on : 0;
+            if (info != null) {
+                nameView.setText(TextUtils.isEmpty(info.mUserName) ?
+                        MyTextUtils.toTitleCase(stopName) : info.mUserName);
+                icon = info.mFavorite && showIcon ? R.drawable.star_on : 0;
             } else {
                 nameView.setText(MyTextUtils.toTitleCase(stopName));
             }
@@ -25,7 +25,9 @@ import com.google.android.maps.Overlay;
 import com.google.android.maps.OverlayItem;
 import com.joulespersecond.oba.elements.ObaReferences;
 import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.seattlebusbot.DeferredInit;
 import com.joulespersecond.seattlebusbot.R;
+import com.joulespersecond.seattlebusbot.StartupTrace;
 import com.joulespersecond.seattlebusbot.UIHelp;
 import com.joulespersecond.seattlebusbot.map.StopOverlay.StopOverlayItem;
 
@@ -76,7 +78,6 @@ public class MapFragment extends Fragment
     private static final String TAG_OUT_OF_RANGE_DIALOG = ".OutOfRange";
 
     private MapView mMapView;
-    private UIHelp.StopUserInfoMap mStopUserMap;
     private String mFocusStopId;
 
     // The Fragment controls the stop overlay, since that
@@ -94,6 +95,7 @@ public class MapFragment extends Fragment
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
+        StartupTrace.begin("MapFragment.onActivityCreated");
         super.onActivityCreated(savedInstanceState);
 
         // We have a menu item to show in action bar.
@@ -106,8 +108,8 @@ public class MapFragment extends Fragment
         mZoomControls.setOnZoomInClickListener(mOnZoomIn);
         mZoomControls.setOnZoomOutClickListener(mOnZoomOut);
 
+        // This is enabled in onResume
         mLocationOverlay = new MyLocationOverlay(getActivity(), mMapView);
-        mLocationOverlay.enableMyLocation();
         List<Overlay> mapOverlays = mMapView.getOverlays();
         mapOverlays.add(mLocationOverlay);
 
@@ -121,7 +123,8 @@ public class MapFragment extends Fragment
         } else {
             initMap(getArguments());
         }
-
+        DeferredInit.startAfterDraw(mMapView);
+        StartupTrace.end("MapFragment.onActivityCreated");
     }
 
     private void initMap(Bundle args) {
@@ -136,10 +139,6 @@ public class MapFragment extends Fragment
 
     @Override
     public void onDestroy() {
-        if (mStopUserMap != null) {
-            mStopUserMap.close();
-            mStopUserMap = null;
-        }
         if (mController != null) {
             mController.destroy();
         }
@@ -159,33 +158,41 @@ public class MapFragment extends Fragment
 
     @Override
     public void onPause() {
+        mMapView.removeCallbacks(mEnableLocation);
         mLocationOverlay.disableMyLocation();
 
         if (mController != null) {
             mController.onPause();
         }
+        mStopPopup.onPause();
 
         super.onPause();
     }
 
     @Override
     public void onResume() {
-        mLocationOverlay.enableMyLocation();
+        StartupTrace.begin("MapFragment.onResume");
+        // Starting the location providers can take a while,
+        // so don't hold up drawing the map.
+        mMapView.post(mEnableLocation);
 
-        if (mStopUserMap == null) {
-            mStopUserMap = new UIHelp.StopUserInfoMap(getActivity());
-        } else {
-            mStopUserMap.requery();
-        }
-        mStopPopup.setStopUserMap(mStopUserMap);
+        mStopPopup.setStopUserMap(UIHelp.StopUserInfoMap.get(getActivity()));
 
         if (mController != null) {
             mController.onResume();
         }
 
         super.onResume();
+        StartupTrace.end("MapFragment.onResume");
     }
 
+    private final Runnable mEnableLocation = new Runnable() {
+        @Override
+        public void run() {
+            mLocationOverlay.enableMyLocation();
+        }
+    };
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.map, menu);
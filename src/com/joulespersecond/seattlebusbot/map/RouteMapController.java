@@ -24,9 +24,9 @@ import com.joulespersecond.oba.ObaApi;
 import com.joulespersecond.oba.elements.ObaRoute;
 import com.joulespersecond.oba.elements.ObaShape;
 import com.joulespersecond.oba.elements.ObaStop;
-import com.joulespersecond.oba.request.ObaStopsForRouteRequest;
-import com.joulespersecond.oba.request.ObaStopsForRouteResponse;
 import com.joulespersecond.seattlebusbot.R;
+import com.joulespersecond.seattlebusbot.RouteData;
+import com.joulespersecond.seattlebusbot.RouteDataCache;
 import com.joulespersecond.seattlebusbot.UIHelp;
 
 import android.app.Activity;
@@ -49,7 +49,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 class RouteMapController implements MapFragmentController,
-            LoaderManager.LoaderCallbacks<ObaStopsForRouteResponse> {
+            LoaderManager.LoaderCallbacks<RouteData> {
     //private static final String TAG = "RouteMapController";
     private static final int ROUTES_LOADER = 5677;
 
@@ -75,7 +75,14 @@ class RouteMapController implements MapFragmentController,
         mZoomToRoute = args.getBoolean(MapParams.ZOOM_TO_ROUTE, false);
         if (!routeId.equals(mRouteId)) {
             mRouteId = routeId;
-            mRoutePopup.showLoading();
+            // If we've just come from the route's list (or it's been
+            // shown before), we already know what it is.
+            final RouteData cached = RouteDataCache.peek(routeId);
+            if (cached != null && cached.getRoute() != null) {
+                mRoutePopup.show(cached.getRoute());
+            } else {
+                mRoutePopup.showLoading();
+            }
             mFragment.showProgress(true);
             mFragment.getLoaderManager().restartLoader(ROUTES_LOADER, null, this);
         }
@@ -117,14 +124,14 @@ class RouteMapController implements MapFragmentController,
     }
 
     @Override
-    public Loader<ObaStopsForRouteResponse> onCreateLoader(int id,
+    public Loader<RouteData> onCreateLoader(int id,
             Bundle args) {
         return new RoutesLoader(mFragment.getActivity(), mRouteId);
     }
 
     @Override
-    public void onLoadFinished(Loader<ObaStopsForRouteResponse> loader,
-            ObaStopsForRouteResponse response) {
+    public void onLoadFinished(Loader<RouteData> loader,
+            RouteData data) {
         MapView mapView = mFragment.getMapView();
         List<Overlay> overlays = mapView.getOverlays();
 
@@ -133,7 +140,7 @@ class RouteMapController implements MapFragmentController,
             overlays.add(mLineOverlay);
         }
 
-        if (response.getCode() != ObaApi.OBA_OK) {
+        if (data.getCode() != ObaApi.OBA_OK) {
             Activity act = mFragment.getActivity();
             Toast.makeText(act,
                     act.getString(R.string.main_stop_errors),
@@ -141,12 +148,12 @@ class RouteMapController implements MapFragmentController,
             return;
         }
 
-        mRoutePopup.show(response.getRoute(response.getRouteId()));
-        mLineOverlay.setLines(mLineOverlayColor, response.getShapes());
+        mRoutePopup.show(data.getRoute());
+        mLineOverlay.setLines(mLineOverlayColor, data.getShapes());
 
         // Set the stops for this route
-        List<ObaStop> stops = response.getStops();
-        mFragment.showStops(stops, response);
+        List<ObaStop> stops = data.getStops();
+        mFragment.showStops(stops, data.getRefs());
         mFragment.showProgress(false);
 
         if (mZoomToRoute) {
@@ -159,7 +166,7 @@ class RouteMapController implements MapFragmentController,
     }
 
     @Override
-    public void onLoaderReset(Loader<ObaStopsForRouteResponse> loader) {
+    public void onLoaderReset(Loader<RouteData> loader) {
         removeOverlay();
     }
 
@@ -221,9 +228,8 @@ class RouteMapController implements MapFragmentController,
     //
     // Loader
     //
-    private static class RoutesLoader extends AsyncTaskLoader<ObaStopsForRouteResponse> {
+    private static class RoutesLoader extends AsyncTaskLoader<RouteData> {
         private final String mRouteId;
-        //private ObaStopsForRouteResponse mResponse;
 
         public RoutesLoader(Context context, String routeId) {
             super(context);
@@ -231,17 +237,8 @@ class RouteMapController implements MapFragmentController,
         }
 
         @Override
-        public ObaStopsForRouteResponse loadInBackground() {
-            return new ObaStopsForRouteRequest.Builder(getContext(), mRouteId)
-                .setIncludeShapes(true)
-                .build()
-                .call();
-        }
-
-        @Override
-        public void deliverResult(ObaStopsForRouteResponse data) {
-            //mResponse = data;
-            super.deliverResult(data);
+        public RouteData loadInBackground() {
+            return RouteDataCache.get(getContext(), mRouteId);
         }
 
         @Override
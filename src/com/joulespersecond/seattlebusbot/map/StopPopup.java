@@ -108,9 +108,30 @@ class StopPopup {
     }
 
     void setStopUserMap(UIHelp.StopUserInfoMap map) {
+        if (mStopUserMap != null) {
+            mStopUserMap.removeListener(mStopUserListener);
+        }
         mStopUserMap = map;
+        mStopUserMap.addListener(mStopUserListener);
     }
 
+    void onPause() {
+        if (mStopUserMap != null) {
+            mStopUserMap.removeListener(mStopUserListener);
+        }
+    }
+
+    // Shows the user name once it's been loaded.
+    private final UIHelp.StopUserInfoMap.Listener mStopUserListener =
+            new UIHelp.StopUserInfoMap.Listener() {
+        @Override
+        public void onStopUserInfoChanged() {
+            if (mStop != null) {
+                mStopUserMap.setView2(mNameView, mStop.getId(), mStop.getName(), false);
+            }
+        }
+    };
+
     private final View.OnClickListener mOnShowArrivals = new View.OnClickListener() {
         @Override
         public void onClick(View v) {
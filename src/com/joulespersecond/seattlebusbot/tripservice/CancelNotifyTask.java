@@ -7,6 +7,7 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
 
 public final class CancelNotifyTask implements Runnable {
@@ -29,6 +30,7 @@ public final class CancelNotifyTask implements Runnable {
             mTaskContext.cancelNotification((int)alertId);
 
             ContentResolver cr = mContext.getContentResolver();
+            recordPolls(cr);
             ContentValues values = new ContentValues();
             values.put(TripAlerts.STATE, TripAlerts.STATE_CANCELLED);
             cr.update(mUri, values, null, null);
@@ -38,4 +40,16 @@ public final class CancelNotifyTask implements Runnable {
             mTaskContext.taskComplete();
         }
     }
+
+    private void recordPolls(ContentResolver cr) {
+        Cursor c = cr.query(mUri,
+                new String[] { TripAlerts.POLL_COUNT, TripAlerts.STATE },
+                null, null, null);
+        if (c != null) {
+            if (c.moveToFirst() && c.getInt(1) != TripAlerts.STATE_CANCELLED) {
+                TripMetrics.recordAlertPolls(c.getInt(0));
+            }
+            c.close();
+        }
+    }
 }
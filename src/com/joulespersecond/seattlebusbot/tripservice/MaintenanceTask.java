@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.tripservice;
+
+import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.provider.ObaContract.Routes;
+import com.joulespersecond.oba.provider.ObaContract.StopRouteFilters;
+import com.joulespersecond.oba.provider.ObaContract.Stops;
+import com.joulespersecond.oba.provider.ObaContract.TripAlerts;
+import com.joulespersecond.oba.provider.ObaContract.Trips;
+import com.joulespersecond.seattlebusbot.UIHelp;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * This is the runnable that cleans up the database: it removes
+ * the rows that are no longer used, and then lets the provider
+ * analyze and compact the database.
+ *
+ * It's started by an alarm every so often, but only does anything
+ * once a day, when the device is charging and the screen is off.
+ *
+ * @author paulw
+ *
+ */
+public final class MaintenanceTask implements Runnable {
+    private static final String TAG = "MaintenanceTask";
+
+    private static final long ONE_HOUR = 60 * 60 * 1000;
+    private static final long ONE_DAY = 24 * ONE_HOUR;
+    private static final long MAINTENANCE_INTERVAL = ONE_DAY;
+    // Unused stops and routes are kept this long, in case the user
+    // goes back to them (they're also what the local search finds.)
+    private static final long UNUSED_AGE = 30 * ONE_DAY;
+    // Alerts only matter until the trip is over.
+    private static final long ALERT_AGE = ONE_DAY;
+
+    // The results of the last run, for debugging.
+    public static final String PREF_LAST_RUN = "maintenance_last_run";
+    public static final String PREF_RECLAIMED = "maintenance_reclaimed";
+    public static final String PREF_ELAPSED = "maintenance_elapsed";
+
+    private final Context mContext;
+    private final TaskContext mTaskContext;
+
+    public MaintenanceTask(Context context, TaskContext taskContext) {
+        mContext = context;
+        mTaskContext = taskContext;
+    }
+
+    @Override
+    public void run() {
+        try {
+            SharedPreferences prefs = mContext.getSharedPreferences(UIHelp.PREFS_NAME, 0);
+            final long now = System.currentTimeMillis();
+            final long lastRun = prefs.getLong(PREF_LAST_RUN, 0);
+            // (If the clock went backwards, we should run.)
+            if (lastRun <= now && now - lastRun < MAINTENANCE_INTERVAL) {
+                return;
+            }
+            if (!isIdleAndCharging()) {
+                return;
+            }
+            maintain(prefs, now);
+        } finally {
+            mTaskContext.taskComplete();
+        }
+    }
+
+    private void maintain(SharedPreferences prefs, long now) {
+        final long start = System.nanoTime();
+        final File dbFile = mContext.getDatabasePath(ObaContract.DATABASE_NAME);
+        final long sizeBefore = getSize(dbFile);
+
+        final int pruned = prune(now);
+        final boolean vacuumed = ObaContract.maintain(mContext);
+
+        final long reclaimed = sizeBefore - getSize(dbFile);
+        final long elapsed = (System.nanoTime() - start) / 1000000;
+        Log.i(TAG, String.format("Pruned %d rows, %s, reclaimed %d bytes in %d ms",
+                pruned, vacuumed ? "compacted" : "not compacted", reclaimed, elapsed));
+
+        prefs.edit()
+            .putLong(PREF_LAST_RUN, now)
+            .putLong(PREF_RECLAIMED, reclaimed)
+            .putLong(PREF_ELAPSED, elapsed)
+            .commit();
+    }
+
+    //
+    // The size of the database, including its write-ahead log
+    // (where most of the changes are until they're checkpointed.)
+    //
+    private static long getSize(File dbFile) {
+        return dbFile.length() + new File(dbFile.getPath() + "-wal").length();
+    }
+
+    //
+    // Deletes:
+    //  * Alerts that have been over for a day (SchedulerTask also
+    //    does this each time it runs);
+    //  * Stops and routes that the user hasn't used (or has removed
+    //    from their recent list) in a month, unless they are starred,
+    //    named, or part of a reminder or a route filter. Routes that
+    //    are still in the route catalogue are kept as well;
+    //  * Route filters for stops that no longer exist.
+    //
+    private int prune(long now) {
+        final ContentResolver cr = mContext.getContentResolver();
+        final long unusedTime = now - UNUSED_AGE;
+        int result = 0;
+
+        result += cr.delete(TripAlerts.CONTENT_URI,
+                TripAlerts.getOldSelection(now - ALERT_AGE),
+                null);
+
+        result += cr.delete(Stops.CONTENT_URI,
+                unusedWhere(Stops.USE_COUNT, Stops.ACCESS_TIME,
+                        Stops.FAVORITE, Stops.USER_NAME, unusedTime) +
+                " AND " + Stops._ID + " NOT IN (SELECT " + Trips.STOP_ID +
+                        " FROM " + Trips.PATH + ")" +
+                " AND " + Stops._ID + " NOT IN (SELECT " + StopRouteFilters.STOP_ID +
+                        " FROM " + StopRouteFilters.PATH + ")",
+                null);
+
+        result += cr.delete(Routes.CONTENT_URI,
+                unusedWhere(Routes.USE_COUNT, Routes.ACCESS_TIME,
+                        Routes.FAVORITE, Routes.USER_NAME, unusedTime) +
+                " AND (" + Routes.CATALOG_TIME + " IS NULL OR " +
+                        Routes.CATALOG_TIME + " < " + unusedTime + ")" +
+                " AND " + Routes._ID + " NOT IN (SELECT " + Trips.ROUTE_ID +
+                        " FROM " + Trips.PATH + ")",
+                null);
+
+        result += cr.delete(StopRouteFilters.CONTENT_URI,
+                StopRouteFilters.STOP_ID + " NOT IN (SELECT " + Stops._ID +
+                        " FROM " + Stops.PATH + ")",
+                null);
+        return result;
+    }
+
+    private static String unusedWhere(String useCount,
+            String accessTime,
+            String favorite,
+            String userName,
+            long unusedTime) {
+        return "(" + useCount + " IS NULL OR " + useCount + "=0)" +
+            " AND (" + accessTime + " IS NULL OR " + accessTime + " < " + unusedTime + ")" +
+            " AND (" + favorite + " IS NULL OR " + favorite + "=0)" +
+            " AND " + userName + " IS NULL";
+    }
+
+    private boolean isIdleAndCharging() {
+        PowerManager pm = (PowerManager)mContext.getSystemService(Context.POWER_SERVICE);
+        if (pm.isScreenOn()) {
+            return false;
+        }
+        // This is a sticky broadcast, so we can get the current state
+        // without actually registering a receiver.
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null &&
+                battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+}
@@ -17,11 +17,10 @@ package com.joulespersecond.seattlebusbot.tripservice;
 
 import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.provider.ObaContract.TripAlerts;
-import com.joulespersecond.oba.provider.ObaContract.Trips;
+import com.joulespersecond.oba.provider.ObaLookupCache;
 import com.joulespersecond.seattlebusbot.ArrivalsListActivity;
 import com.joulespersecond.seattlebusbot.R;
 import com.joulespersecond.seattlebusbot.TripService;
-import com.joulespersecond.seattlebusbot.UIHelp;
 
 import android.app.Notification;
 import android.app.PendingIntent;
@@ -95,20 +94,30 @@ public final class NotifierTask implements Runnable {
         if (state == TripAlerts.STATE_CANCELLED) {
             return;
         }
-        final Uri tripUri = ObaContract.Trips.buildUri(tripId, stopId);
-        final String routeId = UIHelp.stringForQuery(mContext,
-                tripUri, Trips.ROUTE_ID);
+        final String routeId = ObaLookupCache.get(mContext).getTripRouteId(tripId, stopId);
 
         // Set our state to notified
         Notification notification = mTaskContext.getNotification(id);
         if (notification == null) {
             notification = createNotification(mUri);
+            recordLeadTime(tripId, stopId);
         }
 
         setLatestInfo(notification, stopId, routeId, mTimeDiff);
         mTaskContext.setNotification(id, notification);
     }
 
+    //
+    // The first notification should be shown the reminder time
+    // before the bus leaves; record how much later than that it was.
+    //
+    private void recordLeadTime(String tripId, String stopId) {
+        final Integer reminder = ObaLookupCache.get(mContext).getTripReminder(tripId, stopId);
+        if (reminder != null) {
+            TripMetrics.recordLeadTimeError(reminder * ONE_MINUTE - mTimeDiff);
+        }
+    }
+
     private Notification createNotification(Uri alertUri) {
         //Log.d(TAG, "Creating notification for alert: " + alertUri);
         Notification notification = new Notification(R.drawable.stat_trip, null,
@@ -17,13 +17,15 @@ package com.joulespersecond.seattlebusbot.tripservice;
 
 import com.joulespersecond.oba.ObaApi;
 import com.joulespersecond.oba.elements.ObaArrivalInfo;
+import com.joulespersecond.oba.elements.ObaTripStatus;
 import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.provider.ObaContract.TripAlerts;
-import com.joulespersecond.oba.provider.ObaContract.Trips;
+import com.joulespersecond.oba.provider.ObaLookupCache;
 import com.joulespersecond.oba.request.ObaArrivalInfoRequest;
 import com.joulespersecond.oba.request.ObaArrivalInfoResponse;
+import com.joulespersecond.oba.request.ObaTripDetailsRequest;
+import com.joulespersecond.oba.request.ObaTripDetailsResponse;
 import com.joulespersecond.seattlebusbot.TripService;
-import com.joulespersecond.seattlebusbot.UIHelp;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
@@ -31,10 +33,63 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This is the runnable that polls for the arrival of the trips
+ * that the user wants to be reminded of.
+ *
+ * Every poll checks all of the alerts that are currently active,
+ * making one arrivals request per stop for all of the alerts
+ * at that stop. While there are any active alerts, it schedules
+ * a single alarm (for the whole alerts table, not any one alert)
+ * for the next poll.
+ *
+ * How often an alert is polled depends on how far away the time to
+ * notify is: while the bus is a long way off, it's polled every
+ * few minutes, and then more often as that time gets closer (and
+ * every minute once we're notifying.) Each alert keeps the time of
+ * its next poll, and a stop is only requested when one of its alerts
+ * is due.
+ *
+ * Once the arrivals tell us how far along its trip the vehicle is,
+ * and how far the stop is, the alert is polled by tracking the
+ * vehicle instead: its trip details show how far it has gone since
+ * the last poll, which gives its speed and so when it will reach
+ * the stop, and the next poll is set for just before we'd notify.
+ * If there's no position, or the vehicle hasn't moved, we go back
+ * to the arrivals.
+ *
+ * The same alarm is used to start polling the next alert that is
+ * scheduled (see SchedulerTask), so when there are no active alerts
+ * it's set for the next alert's start time.
+ */
 public final class PollerTask implements Runnable {
     //private static final String TAG = "PollerTask";
 
     private static final long ONE_MINUTE = 60 * 1000;
+    // After a half-hour we can completely give up.
+    private static final long GIVE_UP_TIME = 30 * ONE_MINUTE;
+    // The bounds of the time between polls of an alert.
+    private static final long MIN_POLL_INTERVAL = ONE_MINUTE;
+    private static final long MAX_POLL_INTERVAL = 10 * ONE_MINUTE;
+    // If the trip isn't in the arrivals, it's either not running yet
+    // or it has gone, so there's no need to keep looking every minute.
+    private static final long NOT_FOUND_POLL_INTERVAL = 2 * ONE_MINUTE;
+    // How much we assume a schedule-only arrival could change by.
+    private static final long UNPREDICTED_MARGIN = 5 * ONE_MINUTE;
+    // When tracking the vehicle, we poll again when we're this much
+    // of the way to the notify time (but at least a minute before.)
+    private static final long TRACK_MARGIN_DIVISOR = 4;
+    // Faster than this (in meters per millisecond, about 110 km/h)
+    // and the position is probably wrong.
+    private static final double MAX_SPEED = 0.03;
+    // Alerts that are due this soon are polled along with
+    // the ones that are due now.
+    private static final long POLL_SLACK = 30 * 1000;
 
     private static final String[] ALERT_PROJECTION = {
         ObaContract.TripAlerts._ID,
@@ -42,122 +97,404 @@ public final class PollerTask implements Runnable {
         ObaContract.TripAlerts.STOP_ID,
         ObaContract.TripAlerts.START_TIME,
         ObaContract.TripAlerts.STATE,
+        ObaContract.TripAlerts.NEXT_POLL,
+        ObaContract.TripAlerts.POLL_COUNT,
+        ObaContract.TripAlerts.STOP_DISTANCE,
+        ObaContract.TripAlerts.VEHICLE_DISTANCE,
+        ObaContract.TripAlerts.VEHICLE_TIME,
     };
     private static final int COL_ID = 0;
     private static final int COL_TRIP_ID = 1;
     private static final int COL_STOP_ID = 2;
     private static final int COL_START_TIME = 3;
     private static final int COL_STATE = 4;
+    private static final int COL_NEXT_POLL = 5;
+    private static final int COL_POLL_COUNT = 6;
+    private static final int COL_STOP_DISTANCE = 7;
+    private static final int COL_VEHICLE_DISTANCE = 8;
+    private static final int COL_VEHICLE_TIME = 9;
+
+    private static final class Alert {
+        final Uri uri;
+        final String tripId;
+        final String stopId;
+        final long startTime;
+        final int state;
+        // Zero if it hasn't been polled yet.
+        long nextPoll;
+        int pollCount;
+        // Zero if the vehicle isn't being tracked.
+        double stopDistance;
+        double vehicleDistance;
+        long vehicleTime;
+        boolean vehicleChanged;
+
+        Alert(Cursor c) {
+            uri = TripAlerts.buildUri(c.getInt(COL_ID));
+            tripId = c.getString(COL_TRIP_ID);
+            stopId = c.getString(COL_STOP_ID);
+            startTime = c.getLong(COL_START_TIME);
+            state = c.getInt(COL_STATE);
+            nextPoll = c.isNull(COL_NEXT_POLL) ? 0 : c.getLong(COL_NEXT_POLL);
+            pollCount = c.getInt(COL_POLL_COUNT);
+            stopDistance = c.getDouble(COL_STOP_DISTANCE);
+            vehicleDistance = c.getDouble(COL_VEHICLE_DISTANCE);
+            vehicleTime = c.getLong(COL_VEHICLE_TIME);
+        }
+
+        boolean isTracking() {
+            return stopDistance > 0 && vehicleTime != 0;
+        }
+
+        void setVehicle(double distance, long time) {
+            vehicleDistance = distance;
+            vehicleTime = time;
+            vehicleChanged = true;
+        }
+    }
 
     private final Context mContext;
     private final ContentResolver mCR;
     private final TaskContext mTaskContext;
-    private final Uri mUri;
 
     public PollerTask(Context context, TaskContext taskContext, Uri uri) {
         mContext = context;
         mCR = mContext.getContentResolver();
         mTaskContext = taskContext;
-        mUri = uri;
     }
 
     @Override
     public void run() {
-        Cursor c = mCR.query(mUri, ALERT_PROJECTION, null, null, null);
-
         try {
-            if (c != null) {
-                while (c.moveToNext()) {
-                    poll1(c);
+            final long now = System.currentTimeMillis();
+            final Map<String,List<Alert>> alertsByStop = getActiveAlerts(now);
+            long nextPoll = TripAlerts.getNextStartTime(mCR, now + ONE_MINUTE);
+            if (alertsByStop.isEmpty()) {
+                if (nextPoll != 0) {
+                    TripService.pollTrip(mContext, TripAlerts.CONTENT_URI, nextPoll);
                 }
+                return;
             }
-        } finally {
-            if (c != null) {
-                c.close();
+            // Before we do anything else, schedule another poll in a minute.
+            // That way we know the polling will continue even if we're killed.
+            TripService.pollTrip(mContext, TripAlerts.CONTENT_URI, now + MIN_POLL_INTERVAL);
+
+            if (nextPoll == 0) {
+                nextPoll = Long.MAX_VALUE;
+            }
+            // The stops are requested in parallel.
+            final ArrayList<Runnable> polls = new ArrayList<Runnable>();
+            for (Map.Entry<String,List<Alert>> entry: alertsByStop.entrySet()) {
+                final String stopId = entry.getKey();
+                final List<Alert> alerts = entry.getValue();
+                if (isDue(alerts, now)) {
+                    polls.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            pollStop(stopId, alerts, now);
+                        }
+                    });
+                }
             }
+            mTaskContext.runParallel(polls, "POLL_STOP");
+
+            for (List<Alert> alerts: alertsByStop.values()) {
+                for (Alert alert: alerts) {
+                    nextPoll = Math.min(nextPoll, alert.nextPoll);
+                }
+            }
+            // Now that we know when the next alert is due,
+            // replace the alarm with one for then.
+            TripService.pollTrip(mContext, TripAlerts.CONTENT_URI,
+                    Math.max(nextPoll, now + MIN_POLL_INTERVAL));
+        } finally {
             mTaskContext.taskComplete();
         }
     }
 
-    private void poll1(Cursor c) {
-        final Uri alertUri = TripAlerts.buildUri(c.getInt(COL_ID));
-        final int state = c.getInt(COL_STATE);
-        if (state == TripAlerts.STATE_CANCELLED) {
-            return;
+    //
+    // Returns the alerts that need to be polled, by stop ID.
+    // This cancels those that are too old, and marks as polling
+    // those that have just started.
+    //
+    private Map<String,List<Alert>> getActiveAlerts(long now) {
+        final LinkedHashMap<String,List<Alert>> result =
+                new LinkedHashMap<String,List<Alert>>();
+        Cursor c = mCR.query(TripAlerts.CONTENT_URI,
+                ALERT_PROJECTION,
+                // (In case the alarm goes off a little early.)
+                TripAlerts.getActiveSelection(now + ONE_MINUTE),
+                null, null);
+        if (c == null) {
+            return result;
+        }
+        boolean reschedule = false;
+        try {
+            while (c.moveToNext()) {
+                final Alert alert = new Alert(c);
+                if (alert.startTime < (now - GIVE_UP_TIME)) {
+                    ContentValues values = new ContentValues();
+                    values.put(TripAlerts.STATE, TripAlerts.STATE_CANCELLED);
+                    mCR.update(alert.uri, values, null, null);
+                    TripMetrics.recordAlertPolls(alert.pollCount);
+                    reschedule = true;
+                    continue;
+                }
+                // If this is just scheduled, mark it as polling.
+                if (alert.state == TripAlerts.STATE_SCHEDULED) {
+                    TripAlerts.setState(mCR, alert.uri, TripAlerts.STATE_POLLING);
+                }
+                List<Alert> alerts = result.get(alert.stopId);
+                if (alerts == null) {
+                    alerts = new ArrayList<Alert>();
+                    result.put(alert.stopId, alerts);
+                }
+                alerts.add(alert);
+            }
+        } finally {
+            c.close();
+        }
+        if (reschedule) {
+            TripService.scheduleAll(mContext);
         }
-        long now = System.currentTimeMillis();
+        return result;
+    }
+
+    private static boolean isDue(Alert alert, long now) {
+        return alert.nextPoll <= now + POLL_SLACK;
+    }
 
-        final long startTime = c.getLong(COL_START_TIME);
-        // After a half-hour we can completely give up.
-        if (startTime < (now - ONE_MINUTE * 30)) {
-            ContentValues values = new ContentValues();
-            values.put(TripAlerts.STATE, TripAlerts.STATE_CANCELLED);
-            mCR.update(alertUri, values, null, null);
+    private static boolean isDue(List<Alert> alerts, long now) {
+        for (Alert alert: alerts) {
+            if (isDue(alert, now)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            TripService.scheduleAll(mContext);
-            return;
+    //
+    // Polls the alerts at the stop that are due, tracking the vehicles
+    // of those we can. If any still need the arrivals, this polls
+    // all of the alerts at the stop, since it's requesting them anyway.
+    //
+    private void pollStop(String stopId, List<Alert> alerts, long now) {
+        final ArrayList<Alert> remaining = new ArrayList<Alert>();
+        boolean needArrivals = false;
+        for (Alert alert: alerts) {
+            final boolean due = isDue(alert, now);
+            if (due && alert.isTracking() && trackVehicle(alert)) {
+                continue;
+            }
+            remaining.add(alert);
+            needArrivals |= due;
         }
+        if (needArrivals) {
+            pollArrivals(stopId, remaining);
+        }
+    }
 
-        // Before we do anything else, schedule another poll in a minute.
-        // That way we know the polling will continue even if we're killed.
-        TripService.pollTrip(mContext, alertUri, now + ONE_MINUTE);
+    //
+    // Polls the trip details of the alert, and estimates when
+    // the vehicle will reach the stop from its progress since
+    // the last poll. Returns false if it can't.
+    //
+    private boolean trackVehicle(Alert alert) {
+        ObaTripDetailsResponse response = new ObaTripDetailsRequest.Builder(mContext, alert.tripId)
+                .setIncludeTrip(false)
+                .setIncludeSchedule(false)
+                .build()
+                .call();
+        TripMetrics.increment(TripMetrics.NETWORK_TRIP_DETAILS);
+        final long now = System.currentTimeMillis();
+        if (response.getCode() != ObaApi.OBA_OK) {
+            TripMetrics.increment(TripMetrics.NETWORK_ERRORS);
+            return false;
+        }
+        final ObaTripStatus status = response.getStatus();
+        if (status == null || !status.isPredicted()) {
+            return false;
+        }
+        // The vehicle could still be finishing its previous trip.
+        final String activeTripId = status.getActiveTripId();
+        if (activeTripId != null && !activeTripId.equals(alert.tripId)) {
+            return false;
+        }
+        final Double distance = status.getDistanceAlongTrip();
+        final long time = status.getLastUpdateTime();
+        if (distance == null || time == 0) {
+            return false;
+        }
+        final Long arrival = estimateArrival(alert, distance, time);
+        alert.setVehicle(distance, time);
+        if (arrival == null) {
+            return false;
+        }
+        final long reminderMS = getReminderMS(alert.tripId, alert.stopId);
+        final long diffTime = arrival - now;
+        if (diffTime <= reminderMS) {
+            //Log.d(TAG, "Notify for tracked trip: " + alert.uri);
+            TripService.notifyTrip(mContext, alert.uri, diffTime);
+        }
+        setPolled(alert, now + getTrackingInterval(diffTime - reminderMS));
+        return true;
+    }
 
-        // If this is just scheduled, mark it as polling.
-        if (state == TripAlerts.STATE_SCHEDULED) {
-            TripAlerts.setState(mContext, alertUri, TripAlerts.STATE_POLLING);
+    //
+    // Returns the time the vehicle will get to the stop, at the speed
+    // it's gone since it was last seen, or null if it hasn't moved.
+    //
+    private static Long estimateArrival(Alert alert, double distance, long time) {
+        final double toGo = alert.stopDistance - distance;
+        if (toGo <= 0) {
+            // It's already there (or gone.)
+            return time;
         }
+        if (time <= alert.vehicleTime || distance <= alert.vehicleDistance) {
+            return null;
+        }
+        final double speed = Math.min(MAX_SPEED,
+                (distance - alert.vehicleDistance) / (time - alert.vehicleTime));
+        return time + (long)(toGo / speed);
+    }
 
-        final String tripId = c.getString(COL_TRIP_ID);
-        final String stopId = c.getString(COL_STOP_ID);
-        final long reminderMS = getReminderMS(tripId, stopId);
+    //
+    // Returns the time until the next poll of a tracked vehicle,
+    // given the time until we should notify.
+    //
+    private static long getTrackingInterval(long notifyIn) {
+        if (notifyIn <= 0) {
+            return MIN_POLL_INTERVAL;
+        }
+        final long margin = Math.max(ONE_MINUTE, notifyIn / TRACK_MARGIN_DIVISOR);
+        return Math.max(MIN_POLL_INTERVAL, Math.min(notifyIn - margin, MAX_POLL_INTERVAL));
+    }
 
+    //
+    // Polls the arrivals for the alerts at the stop, and sets the time
+    // of their next poll.
+    //
+    private void pollArrivals(String stopId, List<Alert> alerts) {
         ObaArrivalInfoResponse response = ObaArrivalInfoRequest
                 .newRequest(mContext, stopId).call();
-
-        Long departMS = null;
-        if (response.getCode() == ObaApi.OBA_OK) {
-            departMS = checkArrivals(response, c);
+        TripMetrics.increment(TripMetrics.NETWORK_ARRIVALS);
+        final long now = System.currentTimeMillis();
+        if (response.getCode() != ObaApi.OBA_OK) {
+            TripMetrics.increment(TripMetrics.NETWORK_ERRORS);
+            // Try again soon.
+            for (Alert alert: alerts) {
+                setPolled(alert, now + MIN_POLL_INTERVAL);
+            }
+            return;
         }
-
-        if (departMS != null) {
-            final long diffTime = departMS - System.currentTimeMillis();
+        final ObaArrivalInfo[] arrivals = response.getArrivalInfo();
+        for (Alert alert: alerts) {
+            final ObaArrivalInfo info = checkArrivals(arrivals, alert.tripId);
+            if (info == null) {
+                setPolled(alert, now + NOT_FOUND_POLL_INTERVAL);
+                continue;
+            }
+            startTracking(alert, info);
+            final long reminderMS = getReminderMS(alert.tripId, alert.stopId);
+            final long diffTime = getDepartTime(info) - now;
             if (diffTime <= reminderMS) {
                 // Bus is within the reminder interval (or it possibly has left!)
                 // Send off a notification.
-                //Log.d(TAG, "Notify for trip: " + alertUri);
-                TripService.notifyTrip(mContext, mUri, diffTime);
+                //Log.d(TAG, "Notify for trip: " + alert.uri);
+                TripService.notifyTrip(mContext, alert.uri, diffTime);
             }
+            setPolled(alert, now + getPollInterval(info, diffTime - reminderMS));
         }
     }
 
+    //
+    // If the arrival has the vehicle's position along the trip,
+    // and how far it is from the stop, we can track it from now on.
+    //
+    private static void startTracking(Alert alert, ObaArrivalInfo info) {
+        final ObaTripStatus status = info.getTripStatus();
+        final Double distanceFromStop = info.getDistanceFromStop();
+        if (status == null || !status.isPredicted() || distanceFromStop == null) {
+            return;
+        }
+        final Double distance = status.getDistanceAlongTrip();
+        final long time = status.getLastUpdateTime();
+        if (distance == null || time == 0) {
+            return;
+        }
+        alert.stopDistance = distance + distanceFromStop;
+        alert.setVehicle(distance, time);
+    }
+
+    private void setPolled(Alert alert, long nextPoll) {
+        alert.nextPoll = nextPoll;
+        alert.pollCount++;
+        //Log.d(TAG, "Poll " + alert.pollCount + " of " + alert.uri +
+        //        ", next in " + (nextPoll - System.currentTimeMillis()) + "ms");
+        ContentValues values = new ContentValues();
+        values.put(TripAlerts.NEXT_POLL, nextPoll);
+        values.put(TripAlerts.POLL_COUNT, alert.pollCount);
+        if (alert.vehicleChanged) {
+            values.put(TripAlerts.STOP_DISTANCE, alert.stopDistance);
+            values.put(TripAlerts.VEHICLE_DISTANCE, alert.vehicleDistance);
+            values.put(TripAlerts.VEHICLE_TIME, alert.vehicleTime);
+            alert.vehicleChanged = false;
+        }
+        mCR.update(alert.uri, values, null, null);
+    }
+
+    //
+    // Returns the time until the next poll, given the time until
+    // we should notify. We poll halfway to that time, less however
+    // much the arrival could change in the meantime: the further
+    // the trip is from its schedule, the more its predictions move,
+    // and a trip without real-time info could get it at any time.
+    //
+    private static long getPollInterval(ObaArrivalInfo info, long notifyIn) {
+        if (notifyIn <= 0) {
+            // We're notifying, so keep the notification up to date.
+            return MIN_POLL_INTERVAL;
+        }
+        final ObaTripStatus status = info.getTripStatus();
+        long margin;
+        if (info.getPredictedArrivalTime() != 0 && status != null) {
+            margin = Math.abs(status.getScheduleDeviation()) * 1000;
+        } else {
+            margin = UNPREDICTED_MARGIN;
+        }
+        final long interval = (notifyIn - margin) / 2;
+        return Math.max(MIN_POLL_INTERVAL, Math.min(interval, MAX_POLL_INTERVAL));
+    }
+
     private long getReminderMS(String tripId, String stopId) {
-        final Uri uri = Trips.buildUri(tripId, stopId);
-        return (long)UIHelp.intForQuery(mContext, uri, Trips.REMINDER) * ONE_MINUTE;
+        final Integer reminder = ObaLookupCache.get(mContext).getTripReminder(tripId, stopId);
+        return (reminder != null) ? reminder * ONE_MINUTE : 0;
     }
 
     //
-    // Return the difference between now and the predicted/scheduled
-    // arrival time, or null if the arrival can't be found.
+    // Return the arrival of the trip, or null if it can't be found.
     //
-    private Long checkArrivals(ObaArrivalInfoResponse response, Cursor c) {
-        final String tripId = c.getString(COL_TRIP_ID);
-        final ObaArrivalInfo[] arrivals = response.getArrivalInfo();
+    private static ObaArrivalInfo checkArrivals(ObaArrivalInfo[] arrivals, String tripId) {
         final int length = arrivals.length;
         for (int i = 0; i < length; ++i) {
             ObaArrivalInfo info = arrivals[i];
             if (tripId.equals(info.getTripId())) {
-                // We found the trip. We notify when the reminder time
-                // when calculated with the *predicted* arrival time
-                // is past now.
-                long depart = info.getPredictedArrivalTime();
-                if (depart == 0) {
-                    depart = info.getScheduledArrivalTime();
-                }
-
-                return depart;
+                return info;
             }
         }
         // Didn't find it.
         return null;
     }
+
+    //
+    // We notify when the reminder time when calculated with
+    // the *predicted* arrival time is past now.
+    //
+    private static long getDepartTime(ObaArrivalInfo info) {
+        long depart = info.getPredictedArrivalTime();
+        if (depart == 0) {
+            depart = info.getScheduledArrivalTime();
+        }
+        return depart;
+    }
 }
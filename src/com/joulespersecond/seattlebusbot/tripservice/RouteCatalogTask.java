@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.tripservice;
+
+import com.joulespersecond.oba.ObaApi;
+import com.joulespersecond.oba.elements.ObaAgencyWithCoverage;
+import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.provider.ObaContract.Routes;
+import com.joulespersecond.oba.request.ObaAgenciesWithCoverageRequest;
+import com.joulespersecond.oba.request.ObaAgenciesWithCoverageResponse;
+import com.joulespersecond.oba.request.ObaRouteIdsForAgencyRequest;
+import com.joulespersecond.oba.request.ObaRouteIdsForAgencyResponse;
+import com.joulespersecond.oba.request.ObaRouteRequest;
+import com.joulespersecond.oba.request.ObaRouteResponse;
+import com.joulespersecond.seattlebusbot.RouteCatalog;
+import com.joulespersecond.seattlebusbot.UIHelp;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+/**
+ * This is the runnable that downloads the route catalogue: every route
+ * of every agency in the region, so route search can be answered
+ * without the server (see RouteCatalog).
+ *
+ * The route IDs of each agency are requested every time, but the
+ * details are only requested for the routes we don't already have,
+ * except once a month, when they are all requested again so renamed
+ * routes are updated. Every route in the catalogue has its catalogue
+ * time updated, so the
+ * routes that have been dropped by their agency age out (and are then
+ * removed by MaintenanceTask.)
+ *
+ * @author paulw
+ *
+ */
+public final class RouteCatalogTask implements Runnable {
+    private static final String TAG = "RouteCatalogTask";
+
+    // The last time the details of every route were requested.
+    private static final String PREF_LAST_REFRESH = "route_catalog_refresh";
+    private static final long REFRESH_AGE = 30 * 24 * 60 * 60 * 1000L;
+
+    private final Context mContext;
+    private final TaskContext mTaskContext;
+    // Set by sync() if the details of every route were received.
+    private boolean mAllDetails;
+
+    public RouteCatalogTask(Context context, TaskContext taskContext) {
+        mContext = context;
+        mTaskContext = taskContext;
+    }
+
+    @Override
+    public void run() {
+        try {
+            final SharedPreferences prefs =
+                    mContext.getSharedPreferences(UIHelp.PREFS_NAME, 0);
+            final long now = System.currentTimeMillis();
+            final long lastRefresh = prefs.getLong(PREF_LAST_REFRESH, 0);
+            // (If the clock went backwards, we should refresh.)
+            final boolean refresh = lastRefresh > now || now - lastRefresh > REFRESH_AGE;
+
+            final SharedPreferences.Editor edit = prefs.edit();
+            if (sync(refresh)) {
+                edit.putLong(RouteCatalog.PREF_LAST_SYNC, now);
+                if (refresh && mAllDetails) {
+                    edit.putLong(PREF_LAST_REFRESH, now);
+                }
+            } else {
+                // Route search still needs to ask the server,
+                // and the catalogue is downloaded again the next time
+                // it's loaded.
+                edit.remove(RouteCatalog.PREF_LAST_SYNC);
+            }
+            edit.commit();
+            // It's reloaded the next time it's needed.
+            RouteCatalog.invalidate();
+        } finally {
+            mTaskContext.taskComplete();
+        }
+    }
+
+    //
+    // Returns true if we have the whole catalogue.
+    // If refresh is set, the details of the routes we already have
+    // are requested again as well.
+    //
+    private boolean sync(boolean refresh) {
+        ObaAgenciesWithCoverageResponse agencies =
+                ObaAgenciesWithCoverageRequest.newRequest(mContext).call();
+        if (agencies.getCode() != ObaApi.OBA_OK) {
+            Log.w(TAG, "Unable to get agencies: " + agencies.getCode());
+            return false;
+        }
+        final LinkedHashSet<String> routeIds = new LinkedHashSet<String>();
+        for (ObaAgencyWithCoverage agency: agencies.getAgencies()) {
+            ObaRouteIdsForAgencyResponse response =
+                    ObaRouteIdsForAgencyRequest.newRequest(mContext, agency.getId()).call();
+            if (response.getCode() != ObaApi.OBA_OK) {
+                Log.w(TAG, "Unable to get routes for " + agency.getId() +
+                        ": " + response.getCode());
+                return false;
+            }
+            for (String id: response.getRouteIds()) {
+                routeIds.add(id);
+            }
+        }
+
+        // The details are requested in parallel.
+        final HashSet<String> known = getKnownRoutes();
+        final HashMap<String,ContentValues> details = new HashMap<String,ContentValues>();
+        final ArrayList<Runnable> requests = new ArrayList<Runnable>();
+        for (final String id: routeIds) {
+            if (!refresh && known.contains(id)) {
+                continue;
+            }
+            requests.add(new Runnable() {
+                @Override
+                public void run() {
+                    ContentValues values = getDetails(id);
+                    if (values != null) {
+                        synchronized (details) {
+                            details.put(id, values);
+                        }
+                    }
+                }
+            });
+        }
+        mTaskContext.runParallel(requests, "SYNC_ROUTE");
+
+        final long now = System.currentTimeMillis();
+        final ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(routeIds.size());
+        boolean complete = true;
+        for (String id: routeIds) {
+            ContentValues values = details.get(id);
+            if (values == null) {
+                if (!known.contains(id)) {
+                    // We couldn't get it, so we'll try again next time.
+                    complete = false;
+                    continue;
+                }
+                // We still have its old details.
+                values = new ContentValues();
+            }
+            values.put(Routes.CATALOG_TIME, now);
+            ops.add(ContentProviderOperation
+                    .newInsert(Uri.withAppendedPath(Routes.CONTENT_URI, id))
+                    .withValues(values)
+                    .build());
+        }
+        ObaContract.applyBatch(mContext.getContentResolver(), ops);
+        Log.i(TAG, String.format("%d routes, %d requested, %d failed",
+                routeIds.size(), requests.size(), requests.size() - details.size()));
+        mAllDetails = details.size() == requests.size();
+        return complete;
+    }
+
+    //
+    // The routes that we already have the names of.
+    //
+    private HashSet<String> getKnownRoutes() {
+        final HashSet<String> result = new HashSet<String>();
+        ContentResolver cr = mContext.getContentResolver();
+        Cursor c = cr.query(Routes.CONTENT_URI,
+                new String[] { Routes._ID },
+                Routes.SHORTNAME + " IS NOT NULL OR " + Routes.LONGNAME + " IS NOT NULL",
+                null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    result.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return result;
+    }
+
+    private ContentValues getDetails(String id) {
+        ObaRouteResponse response = ObaRouteRequest.newRequest(mContext, id).call();
+        if (response.getCode() != ObaApi.OBA_OK) {
+            return null;
+        }
+        ContentValues values = new ContentValues();
+        values.put(Routes.SHORTNAME, response.getShortName());
+        values.put(Routes.LONGNAME, response.getLongName());
+        values.put(Routes.URL, response.getUrl());
+        return values;
+    }
+}
@@ -19,17 +19,26 @@ import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.provider.ObaContract.TripAlerts;
 import com.joulespersecond.seattlebusbot.TripService;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.text.format.Time;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 /**
  * This is the runnable that implements scheduling of trips.
  * It can schedule one or many trips, depending on the URI.
  *
+ * It reads the trips and all of the existing alerts once each,
+ * works out the next alert of every trip in one pass, and inserts
+ * the new alerts in a single batch. Then, rather than an alarm per
+ * alert, it sets the one alarm (shared with PollerTask) for whichever
+ * alert is next; the poller keeps setting it from there.
+ *
  * @author paulw
  *
  */
@@ -37,6 +46,7 @@ public final class SchedulerTask implements Runnable {
     //private static final String TAG = "SchedulerTask";
 
     private static final long ONE_MINUTE = 60 * 1000;
+    private static final long ONE_DAY = 24 * 60 * ONE_MINUTE;
     private static final long LOOKAHEAD_DURATION_MS = 5 * ONE_MINUTE;
 
     private static final String[] PROJECTION = {
@@ -52,11 +62,32 @@ public final class SchedulerTask implements Runnable {
     private static final int COL_DEPARTURE = 3;
     private static final int COL_DAYS = 4;
 
+    private static final String[] ALERT_PROJECTION = {
+        TripAlerts.TRIP_ID,
+        TripAlerts.STOP_ID,
+        TripAlerts.START_TIME,
+        TripAlerts.STATE,
+        TripAlerts.NEXT_POLL
+    };
+    private static final int COL_ALERT_TRIP_ID = 0;
+    private static final int COL_ALERT_STOP_ID = 1;
+    private static final int COL_ALERT_START_TIME = 2;
+    private static final int COL_ALERT_STATE = 3;
+    private static final int COL_ALERT_NEXT_POLL = 4;
+
     private final Context mContext;
     private final ContentResolver mCR;
     private final TaskContext mTaskContext;
     private final Uri mUri;
 
+    // The state of the existing alerts, by trip, stop and start time.
+    private final HashMap<String,Integer> mAlertStates = new HashMap<String,Integer>();
+    // The new alerts and the trips to delete.
+    private final ArrayList<ContentProviderOperation> mOps =
+            new ArrayList<ContentProviderOperation>();
+    // The time of the alarm for the next alert.
+    private long mNextAlarm = Long.MAX_VALUE;
+
     public SchedulerTask(Context context, TaskContext taskContext, Uri uri) {
         mContext = context;
         mCR = mContext.getContentResolver();
@@ -66,68 +97,113 @@ public final class SchedulerTask implements Runnable {
 
     @Override
     public void run() {
-        cleanupOldAlerts();
-        Cursor c = mCR.query(mUri, PROJECTION, null, null, null);
-
         try {
             Time tNow = new Time();
             tNow.setToNow();
             final long now = tNow.toMillis(false);
 
+            cleanupOldAlerts(now);
+            loadAlerts(now);
+
+            Cursor c = mCR.query(mUri, PROJECTION, null, null, null);
             if (c != null) {
-                while (c.moveToNext()) {
-                    schedule1(c, tNow, now);
+                try {
+                    final Days days = new Days(tNow);
+                    while (c.moveToNext()) {
+                        schedule1(c, days);
+                    }
+                } finally {
+                    c.close();
                 }
             }
-        } finally {
-            if (c != null) {
-                c.close();
+            if (!mOps.isEmpty()) {
+                ObaContract.applyBatch(mCR, mOps);
+            }
+            if (mNextAlarm != Long.MAX_VALUE) {
+                TripService.pollTrip(mContext, TripAlerts.CONTENT_URI, mNextAlarm);
             }
+        } finally {
             mTaskContext.taskComplete();
         }
     }
 
-    // This schedules an alarm to go off when we need it to start polling,
+    //
+    // Removes any alerts that are more than a day in the past,
+    // so the table (and loadAlerts) stays small between maintenance runs.
+    //
+    private void cleanupOldAlerts(long now) {
+        mCR.delete(TripAlerts.CONTENT_URI,
+                TripAlerts.getOldSelection(now - ONE_DAY),
+                null);
+    }
+
+    //
+    // Reads the state of all of the alerts, and finds the next time
+    // one of them needs to be polled: either the start time of one
+    // that is scheduled, or the next poll of one that is polling.
+    //
+    private void loadAlerts(long now) {
+        Cursor c = mCR.query(TripAlerts.CONTENT_URI, ALERT_PROJECTION,
+                null, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                final long startTime = c.getLong(COL_ALERT_START_TIME);
+                final int state = c.getInt(COL_ALERT_STATE);
+                mAlertStates.put(getAlertKey(c.getString(COL_ALERT_TRIP_ID),
+                            c.getString(COL_ALERT_STOP_ID), startTime),
+                        state);
+                if (state == TripAlerts.STATE_SCHEDULED) {
+                    mNextAlarm = Math.min(mNextAlarm, startTime);
+                } else if (state == TripAlerts.STATE_POLLING) {
+                    mNextAlarm = Math.min(mNextAlarm, c.isNull(COL_ALERT_NEXT_POLL) ?
+                            now : c.getLong(COL_ALERT_NEXT_POLL));
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String getAlertKey(String tripId, String stopId, long startTime) {
+        return tripId + "/" + stopId + "/" + startTime;
+    }
+
+    // This finds the time we need to start polling for the trip,
     // and instantiates an TripAlert in the database if needed.
 
-    private void schedule1(Cursor c, Time tNow, long now) {
+    private void schedule1(Cursor c, Days days) {
         final String tripId = c.getString(COL_ID);
         final String stopId = c.getString(COL_STOP_ID);
-        final Uri tripUri = ObaContract.Trips.buildUri(tripId, stopId);
 
         final int departureMins = c.getInt(COL_DEPARTURE);
         final long reminderMS = c.getInt(COL_REMINDER) * ONE_MINUTE;
         if (reminderMS == 0) {
             return;
         }
-        final int days = c.getInt(COL_DAYS);
-        if (days == 0) {
-            Time tmp = new Time();
-            tmp.set(0, departureMins, 0, tNow.monthDay, tNow.month, tNow.year);
-            tmp.normalize(false);
-            long remindTime = tmp.toMillis(false) - reminderMS;
+        final int daysBits = c.getInt(COL_DAYS);
+        if (daysBits == 0) {
+            long remindTime = days.getTime(0, departureMins) - reminderMS;
             long triggerTime = remindTime - LOOKAHEAD_DURATION_MS;
 
-            if (!scheduleAlert(tripUri, tripId, stopId, triggerTime)) {
+            if (!scheduleAlert(tripId, stopId, triggerTime)) {
                 // If we failed to schedule a one-off alert, then it's
                 // probably been cancelled or in the past and we should
                 // just delete it.
-                mCR.delete(tripUri, null, null);
+                mOps.add(ContentProviderOperation
+                        .newDelete(ObaContract.Trips.buildUri(tripId, stopId))
+                        .build());
             }
         } else {
-            final int currentWeekDay = tNow.weekDay;
             for (int i = 0; i < 7; ++i) {
-                final int day = (currentWeekDay + i) % 7;
-                final int bit = ObaContract.Trips.getDayBit(day);
-                if ((days & bit) == bit) {
-                    Time tmp = new Time();
-                    tmp.set(0, departureMins, 0, tNow.monthDay + i, tNow.month,
-                            tNow.year);
-                    tmp.normalize(false);
-                    long remindTime = tmp.toMillis(false) - reminderMS;
+                final int bit = ObaContract.Trips.getDayBit(days.getWeekDay(i));
+                if ((daysBits & bit) == bit) {
+                    long remindTime = days.getTime(i, departureMins) - reminderMS;
                     long triggerTime = remindTime - LOOKAHEAD_DURATION_MS;
 
-                    if (scheduleAlert(tripUri, tripId, stopId, triggerTime)) {
+                    if (scheduleAlert(tripId, stopId, triggerTime)) {
                         return;
                     }
                 }
@@ -135,64 +211,73 @@ public final class SchedulerTask implements Runnable {
         }
     }
 
-    private boolean scheduleAlert(Uri uri,
-            String tripId,
+    private boolean scheduleAlert(String tripId,
             String stopId,
             long triggerTime) {
-
-        Time tmp = new Time();
-        tmp.set(triggerTime);
-        //Log.d(TAG, "Scheduling poll: " + uri.toString() + "  "
+        //Time tmp = new Time();
+        //tmp.set(triggerTime);
+        //Log.d(TAG, "Scheduling poll: " + tripId + "  "
         //        + tmp.format2445());
 
         // Check to see if this alert has already been cancelled.
-        Uri alertUri = null;
-
-        Cursor cAlert = mCR.query(TripAlerts.CONTENT_URI,
-                new String[] { TripAlerts._ID, TripAlerts.STATE },
-                String.format("%s=? AND %s=? AND %s=?",
-                        TripAlerts.TRIP_ID,
-                        TripAlerts.STOP_ID,
-                        TripAlerts.START_TIME),
-                new String[] { tripId, stopId, String.valueOf(triggerTime) },
-                null);
+        final Integer state = mAlertStates.get(getAlertKey(tripId, stopId, triggerTime));
+        if (state != null) {
+            // If it exists and isn't cancelled, it's already part
+            // of the next alarm (or it's being polled.)
+            return state != TripAlerts.STATE_CANCELLED;
+        }
+        // Insert a new trip alert.
+        mOps.add(ContentProviderOperation.newInsert(TripAlerts.CONTENT_URI)
+                .withValue(TripAlerts.TRIP_ID, tripId)
+                .withValue(TripAlerts.STOP_ID, stopId)
+                .withValue(TripAlerts.START_TIME, triggerTime)
+                .build());
+        mNextAlarm = Math.min(mNextAlarm, triggerTime);
+        return true;
+    }
 
-        if (cAlert != null) {
-            try {
-                if (cAlert.moveToNext()) {
-                    if (cAlert.getInt(1) == TripAlerts.STATE_CANCELLED) {
-                        return false;
-                    }
-                    alertUri = TripAlerts.buildUri(cAlert.getInt(0));
+    //
+    // The start of today and each of the next week's days, so the
+    // departure times can be found by adding the minutes, rather
+    // than normalizing a Time for every day of every trip.
+    // On the days the clocks change (and for departures past midnight)
+    // it falls back to letting Time work it out.
+    //
+    private static final class Days {
+        private final Time mTime = new Time();
+        private final long[] mStart = new long[8];
+        private final int mWeekDay;
+        private final int mMonthDay;
+        private final int mMonth;
+        private final int mYear;
 
-                }
-            } finally {
-                cAlert.close();
+        Days(Time now) {
+            mWeekDay = now.weekDay;
+            mMonthDay = now.monthDay;
+            mMonth = now.month;
+            mYear = now.year;
+            for (int i = 0; i < mStart.length; ++i) {
+                mStart[i] = normalize(i, 0);
             }
         }
-        if (alertUri == null) {
-            // Insert a new trip alert.
-            ContentValues values = new ContentValues();
-            values.put(TripAlerts.TRIP_ID, tripId);
-            values.put(TripAlerts.STOP_ID, stopId);
-            values.put(TripAlerts.START_TIME, triggerTime);
-            alertUri = mCR.insert(TripAlerts.CONTENT_URI, values);
-        }
 
-        // Should we schedule it in every case here??? What about when it's
-        // already polling???
-        TripService.pollTrip(mContext, alertUri, triggerTime);
-        return true;
-    }
+        int getWeekDay(int day) {
+            return (mWeekDay + day) % 7;
+        }
 
-    /**
-     * Remove any alerts that are more than 24 hours in the past.
-     */
-    private void cleanupOldAlerts() {
-        long then = System.currentTimeMillis() - ONE_MINUTE * 60 * 24;
+        long getTime(int day, int departureMins) {
+            final long start = mStart[day];
+            final long time = start + departureMins * ONE_MINUTE;
+            if (mStart[day + 1] - start == ONE_DAY && time < mStart[day + 1]) {
+                return time;
+            }
+            return normalize(day, departureMins);
+        }
 
-        mCR.delete(TripAlerts.CONTENT_URI,
-                TripAlerts.START_TIME + " < " + then,
-                null);
+        private long normalize(int day, int departureMins) {
+            mTime.set(0, departureMins, 0, mMonthDay + day, mMonth, mYear);
+            mTime.normalize(false);
+            return mTime.toMillis(false);
+        }
     }
 }
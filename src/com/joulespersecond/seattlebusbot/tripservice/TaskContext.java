@@ -2,10 +2,16 @@ package com.joulespersecond.seattlebusbot.tripservice;
 
 import android.app.Notification;
 
+import java.util.List;
+
 public interface TaskContext {
     public void setNotification(int id, Notification notification);
     public void cancelNotification(int id);
     public Notification getNotification(int id);
 
+    // Runs the tasks, a few at a time, and waits for them.
+    // Their metrics are kept under the name.
+    public void runParallel(List<? extends Runnable> tasks, String name);
+
     public void taskComplete();
 }
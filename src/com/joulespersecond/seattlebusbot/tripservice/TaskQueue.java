@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.tripservice;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The work queue of the trip service.
+ *
+ * Tasks are run in order of priority (lower values first), then in
+ * the order they were submitted, on a small number of threads.
+ * A task with the same key as one that hasn't started yet replaces it,
+ * rather than running twice. Exclusive tasks (those that read and
+ * write the alerts and their alarm) never run at the same time as
+ * each other, but everything else can run alongside them.
+ *
+ * It reports the queue depth and how long tasks wait and run
+ * to TripMetrics, and tells its listener whenever the last
+ * outstanding task has finished.
+ *
+ * @author paulw
+ *
+ */
+public final class TaskQueue {
+    private static final String TAG = "TaskQueue";
+
+    private final class Task implements Runnable {
+        final String name;
+        final String key;
+        final int priority;
+        final boolean exclusive;
+        final long seq;
+        Runnable runnable;
+        long submitTime;
+
+        Task(String name, String key, int priority, boolean exclusive, Runnable runnable) {
+            this.name = name;
+            this.key = key;
+            this.priority = priority;
+            this.exclusive = exclusive;
+            this.seq = mNextSeq++;
+            this.runnable = runnable;
+            this.submitTime = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void run() {
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                runnable.run();
+            } finally {
+                final boolean idle =
+                        finished(this, start - submitTime, SystemClock.elapsedRealtime() - start);
+                // This is called without our lock, so the listener
+                // can take its own (and submit more tasks.)
+                if (idle && mIdleListener != null) {
+                    mIdleListener.run();
+                }
+            }
+        }
+    }
+
+    private static final Comparator<Task> ORDER = new Comparator<Task>() {
+        @Override
+        public int compare(Task lhs, Task rhs) {
+            if (lhs.priority != rhs.priority) {
+                return (lhs.priority < rhs.priority) ? -1 : 1;
+            }
+            return (lhs.seq < rhs.seq) ? -1 : (lhs.seq == rhs.seq ? 0 : 1);
+        }
+    };
+
+    private final int mMaxThreads;
+    private final Runnable mIdleListener;
+    private final ExecutorService mExecutor;
+    private final TreeSet<Task> mPending = new TreeSet<Task>(ORDER);
+    private final HashMap<String,Task> mPendingByKey = new HashMap<String,Task>();
+    private long mNextSeq = 0;
+    private int mRunning = 0;
+    private boolean mExclusiveRunning = false;
+    private boolean mShutdown = false;
+
+    /**
+     * @param maxThreads The most tasks that run at once.
+     * @param idleListener Called (on the task's thread) when a task finishes
+     *      and there are no other tasks pending or running, or null.
+     */
+    public TaskQueue(int maxThreads, Runnable idleListener) {
+        mMaxThreads = maxThreads;
+        mIdleListener = idleListener;
+        mExecutor = Executors.newFixedThreadPool(maxThreads);
+    }
+
+    /**
+     * Submits a task.
+     *
+     * @param name The name the task's metrics are kept under.
+     * @param key If there is already a pending task with this key,
+     *      this task replaces it. If this is null, the task is always added.
+     * @param priority The priority, lower values run first.
+     * @param exclusive If true, the task doesn't run at the same time
+     *      as any other exclusive task.
+     * @param runnable The task.
+     */
+    public synchronized void submit(String name,
+            String key,
+            int priority,
+            boolean exclusive,
+            Runnable runnable) {
+        if (mShutdown) {
+            return;
+        }
+        if (key != null) {
+            final Task pending = mPendingByKey.get(key);
+            if (pending != null) {
+                // The newest one wins, since it has the latest
+                // information (and the latest start ID.)
+                pending.runnable = runnable;
+                TripMetrics.increment(TripMetrics.QUEUE_COLLAPSED);
+                return;
+            }
+        }
+        final Task task = new Task(name, key, priority, exclusive, runnable);
+        mPending.add(task);
+        if (key != null) {
+            mPendingByKey.put(key, task);
+        }
+        dispatch();
+    }
+
+    /**
+     * Runs the tasks, with up to maxThreads of them at once, and waits
+     * for them to finish. This is meant to be called from a task:
+     * the calling thread runs them as well, so they are guaranteed to
+     * finish even if every other thread is busy.
+     */
+    public void runParallel(final List<? extends Runnable> tasks, String name, int priority) {
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < tasks.size()) {
+                    tasks.get(i).run();
+                }
+            }
+        };
+        // The number of helpers that are running, or -1 once we're done
+        // (so helpers that start after that don't do anything.)
+        final int[] active = new int[1];
+        final int helpers = Math.min(mMaxThreads, tasks.size()) - 1;
+        for (int i = 0; i < helpers; ++i) {
+            submit(name, null, priority, false, new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (active) {
+                        if (active[0] < 0) {
+                            return;
+                        }
+                        ++active[0];
+                    }
+                    try {
+                        worker.run();
+                    } finally {
+                        synchronized (active) {
+                            --active[0];
+                            active.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+        worker.run();
+        synchronized (active) {
+            while (active[0] > 0) {
+                try {
+                    active.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            active[0] = -1;
+        }
+    }
+
+    /**
+     * Drops the pending tasks and lets the running ones finish.
+     * If they don't finish in time, they are interrupted.
+     * This doesn't wait, so it can be called from the main thread.
+     */
+    public void shutdown(final long timeoutMS) {
+        synchronized (this) {
+            mShutdown = true;
+            mPending.clear();
+            mPendingByKey.clear();
+        }
+        mExecutor.shutdown();
+        if (mExecutor.isTerminated()) {
+            return;
+        }
+        final Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mExecutor.awaitTermination(timeoutMS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    // Interrupt them anyway.
+                }
+                Log.w(TAG, "Tasks didn't finish, interrupted");
+                mExecutor.shutdownNow();
+            }
+        }, "TaskQueue shutdown");
+        waiter.setDaemon(true);
+        waiter.start();
+    }
+
+    public synchronized int getDepth() {
+        return mPending.size();
+    }
+
+    /**
+     * @return true if there are no tasks pending or running.
+     */
+    public synchronized boolean isIdle() {
+        return mPending.isEmpty() && mRunning == 0;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println(String.format("Queue: %d pending, %d running",
+                mPending.size(), mRunning));
+    }
+
+    //
+    // Starts as many of the pending tasks as there are free threads,
+    // skipping exclusive tasks while another one is running.
+    //
+    private void dispatch() {
+        final Iterator<Task> it = mPending.iterator();
+        while (mRunning < mMaxThreads && it.hasNext()) {
+            final Task task = it.next();
+            if (task.exclusive) {
+                if (mExclusiveRunning) {
+                    continue;
+                }
+                mExclusiveRunning = true;
+            }
+            it.remove();
+            if (task.key != null) {
+                mPendingByKey.remove(task.key);
+            }
+            ++mRunning;
+            mExecutor.execute(task);
+        }
+        TripMetrics.setQueueDepth(mPending.size());
+    }
+
+    //
+    // Returns true if that was the last outstanding task.
+    //
+    private synchronized boolean finished(Task task, long waitMS, long runMS) {
+        --mRunning;
+        if (task.exclusive) {
+            mExclusiveRunning = false;
+        }
+        TripMetrics.recordTask(task.name, waitMS, runMS);
+        if (mShutdown) {
+            return false;
+        }
+        dispatch();
+        return isIdle();
+    }
+}
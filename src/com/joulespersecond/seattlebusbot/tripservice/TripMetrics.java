@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.tripservice;
+
+import android.content.Context;
+import android.text.format.Time;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The metrics of the reminder pipeline: how long the trip service's
+ * tasks wait and run, how deep its queue gets, how many network
+ * requests and alarms it makes, how many polls each alert takes
+ * and how late its notifications are.
+ *
+ * These are kept in memory for the life of the process, and can be
+ * seen in the debug screen (DebugMetricsActivity), the service's dump,
+ * or written to a file.
+ *
+ * @author paulw
+ *
+ */
+public final class TripMetrics {
+    // Counters
+    public static final String NETWORK_ARRIVALS = "network.arrivals";
+    public static final String NETWORK_TRIP_DETAILS = "network.trip_details";
+    public static final String NETWORK_ERRORS = "network.errors";
+    public static final String ALARMS_SET = "alarms.poll";
+    public static final String QUEUE_COLLAPSED = "queue.collapsed";
+    public static final String NOTIFICATIONS = "notifications";
+
+    public static final String DUMP_FILE = "trip_metrics.txt";
+
+    // Bucket upper bounds for times, in milliseconds.
+    private static final long[] TIME_BUCKETS = {
+        10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000
+    };
+    // Bucket upper bounds for the number of polls per alert.
+    private static final long[] COUNT_BUCKETS = {
+        1, 2, 3, 5, 10, 20, 30, 50
+    };
+
+    private static final class Histogram {
+        private final long[] mBounds;
+        // The last one is for everything over the last bound.
+        private final int[] mCounts;
+        private int mCount;
+        private long mSum;
+        private long mMax;
+
+        Histogram(long[] bounds) {
+            mBounds = bounds;
+            mCounts = new int[bounds.length + 1];
+        }
+
+        void add(long value) {
+            int i = 0;
+            while (i < mBounds.length && value > mBounds[i]) {
+                ++i;
+            }
+            mCounts[i]++;
+            mCount++;
+            mSum += value;
+            mMax = Math.max(mMax, value);
+        }
+
+        void dump(PrintWriter pw, String name) {
+            pw.print(String.format("  %s: n=%d avg=%d max=%d [",
+                    name, mCount, (mCount > 0) ? mSum / mCount : 0, mMax));
+            for (int i = 0; i < mCounts.length; ++i) {
+                if (mCounts[i] == 0) {
+                    continue;
+                }
+                if (i < mBounds.length) {
+                    pw.print(String.format(" <=%d:%d", mBounds[i], mCounts[i]));
+                } else {
+                    pw.print(String.format(" >%d:%d", mBounds[i - 1], mCounts[i]));
+                }
+            }
+            pw.println(" ]");
+        }
+    }
+
+    private static final TreeMap<String,Histogram> sHistograms = new TreeMap<String,Histogram>();
+    private static final TreeMap<String,Integer> sCounters = new TreeMap<String,Integer>();
+    private static int sQueueDepth;
+    private static int sMaxQueueDepth;
+    private static long sNextAlarm;
+    private static long sStartTime = System.currentTimeMillis();
+
+    // Cannot be instantiated
+    private TripMetrics() {
+    }
+
+    /**
+     * Records how long a trip service task waited in the queue,
+     * and how long it took to run.
+     */
+    public static synchronized void recordTask(String name, long waitMS, long runMS) {
+        getHistogram("task." + name + ".wait", TIME_BUCKETS).add(waitMS);
+        getHistogram("task." + name + ".run", TIME_BUCKETS).add(runMS);
+    }
+
+    public static synchronized void setQueueDepth(int depth) {
+        sQueueDepth = depth;
+        sMaxQueueDepth = Math.max(sMaxQueueDepth, depth);
+    }
+
+    public static synchronized void increment(String counter) {
+        final Integer value = sCounters.get(counter);
+        sCounters.put(counter, (value != null) ? value + 1 : 1);
+    }
+
+    /**
+     * Records that the poll alarm has been set.
+     */
+    public static synchronized void alarmSet(long triggerTime) {
+        increment(ALARMS_SET);
+        sNextAlarm = triggerTime;
+    }
+
+    /**
+     * Records the number of polls (and so network requests)
+     * an alert took, once it's over.
+     */
+    public static synchronized void recordAlertPolls(int polls) {
+        getHistogram("alert.polls", COUNT_BUCKETS).add(polls);
+    }
+
+    /**
+     * Records how much later than the reminder time a notification
+     * was first shown: the reminder time, less the time until
+     * the bus was predicted to leave when we notified.
+     */
+    public static synchronized void recordLeadTimeError(long lateMS) {
+        increment(NOTIFICATIONS);
+        getHistogram("notify.late", TIME_BUCKETS).add(Math.max(0, lateMS));
+    }
+
+    public static synchronized void reset() {
+        sHistograms.clear();
+        sCounters.clear();
+        sMaxQueueDepth = sQueueDepth;
+        sStartTime = System.currentTimeMillis();
+    }
+
+    public static synchronized void dump(PrintWriter pw) {
+        final long now = System.currentTimeMillis();
+        Time t = new Time();
+        t.set(sStartTime);
+        pw.println("Since " + t.format2445() +
+                " (" + (now - sStartTime) / 1000 + "s)");
+        pw.println(String.format("Queue depth: %d (max %d)", sQueueDepth, sMaxQueueDepth));
+        if (sNextAlarm > now) {
+            pw.println(String.format("Next poll alarm: in %ds", (sNextAlarm - now) / 1000));
+        } else {
+            pw.println("Next poll alarm: none");
+        }
+        pw.println("Counters:");
+        for (Map.Entry<String,Integer> entry: sCounters.entrySet()) {
+            pw.println(String.format("  %s: %d", entry.getKey(), entry.getValue()));
+        }
+        pw.println("Histograms (ms, or count for alert.polls):");
+        for (Map.Entry<String,Histogram> entry: sHistograms.entrySet()) {
+            entry.getValue().dump(pw, entry.getKey());
+        }
+    }
+
+    public static String dumpToString() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    /**
+     * Writes the dump to the app's files directory.
+     *
+     * @return The file that was written.
+     */
+    public static File writeDumpFile(Context context) throws IOException {
+        FileOutputStream out = context.openFileOutput(DUMP_FILE, 0);
+        try {
+            PrintWriter pw = new PrintWriter(out);
+            dump(pw);
+            pw.flush();
+        } finally {
+            out.close();
+        }
+        return context.getFileStreamPath(DUMP_FILE);
+    }
+
+    private static Histogram getHistogram(String name, long[] bounds) {
+        Histogram result = sHistograms.get(name);
+        if (result == null) {
+            result = new Histogram(bounds);
+            sHistograms.put(name, result);
+        }
+        return result;
+    }
+}
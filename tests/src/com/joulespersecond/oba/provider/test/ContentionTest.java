@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.provider.test;
+
+import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.provider.ObaProvider;
+import com.joulespersecond.oba.provider.ObaContract.TripAlerts;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * List reads running at the same time as reminder writes.
+ * With write-ahead logging, a read must not wait for a write transaction.
+ * The benchmark doesn't assert anything about the timings, since they
+ * depend on the device, but logs them so they can be compared.
+ */
+public class ContentionTest extends ProviderTestCase2<ObaProvider> {
+    private static final String TAG = "ContentionTest";
+
+    private static final int NUM_STOPS = 200;
+    private static final int NUM_ALERTS = 20;
+    private static final int ITERATIONS = 200;
+    // How long a read can take while a write transaction is open.
+    private static final long READ_TIMEOUT = 5;
+
+    public ContentionTest() {
+        super(ObaProvider.class, ObaContract.AUTHORITY);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public void testReadDuringWriteTransaction() throws InterruptedException {
+        // Write-ahead logging is only available on Honeycomb+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        final ContentResolver cr = getMockContentResolver();
+        insertStops(cr);
+        TripAlerts.insertIfNotExists(cr, "1_0", "1_0", 0);
+
+        // Hold a write transaction on another connection to the same database.
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(
+                getMockContext().getDatabasePath(ObaContract.DATABASE_NAME).getPath(),
+                null, SQLiteDatabase.OPEN_READWRITE);
+        db.beginTransaction();
+        try {
+            db.execSQL("UPDATE " + TripAlerts.PATH + " SET " +
+                    TripAlerts.STATE + "=" + TripAlerts.STATE);
+
+            final CountDownLatch done = new CountDownLatch(1);
+            final Throwable[] error = new Throwable[1];
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        readStops(cr, 1);
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            reader.start();
+            assertTrue("The read waited for the write transaction",
+                    done.await(READ_TIMEOUT, TimeUnit.SECONDS));
+            assertNull(error[0]);
+        } finally {
+            db.endTransaction();
+            db.close();
+        }
+    }
+
+    @LargeTest
+    public void testReadsDuringWrites() throws InterruptedException {
+        final ContentResolver cr = getMockContentResolver();
+        insertStops(cr);
+
+        final Uri[] alerts = new Uri[NUM_ALERTS];
+        for (int i = 0; i < NUM_ALERTS; ++i) {
+            alerts[i] = TripAlerts.insertIfNotExists(cr, "1_" + i, "1_" + i, i);
+        }
+
+        // Read alone, to get a baseline.
+        final long baseline = readStops(cr, ITERATIONS);
+
+        final long[] writeTime = new long[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; ++i) {
+                    TripAlerts.setState(cr, alerts[i % NUM_ALERTS],
+                            (i % 2) == 0 ? TripAlerts.STATE_POLLING : TripAlerts.STATE_SCHEDULED);
+                }
+                writeTime[0] = System.nanoTime() - start;
+            }
+        };
+        writer.start();
+        final long contended = readStops(cr, ITERATIONS);
+        writer.join();
+
+        Log.i(TAG, String.format("Reads: %d us alone, %d us with writes; writes: %d us",
+                baseline / 1000 / ITERATIONS,
+                contended / 1000 / ITERATIONS,
+                writeTime[0] / 1000 / ITERATIONS));
+    }
+
+    private static void insertStops(ContentResolver cr) {
+        ContentValues[] stops = new ContentValues[NUM_STOPS];
+        for (int i = 0; i < NUM_STOPS; ++i) {
+            ContentValues values = new ContentValues();
+            values.put(ObaContract.Stops._ID, "1_" + i);
+            values.put(ObaContract.Stops.CODE, String.valueOf(i));
+            values.put(ObaContract.Stops.NAME, "Stop " + i);
+            values.put(ObaContract.Stops.DIRECTION, "N");
+            values.put(ObaContract.Stops.USE_COUNT, i);
+            values.put(ObaContract.Stops.ACCESS_TIME, System.currentTimeMillis());
+            values.put(ObaContract.Stops.LATITUDE, 47.6);
+            values.put(ObaContract.Stops.LONGITUDE, -122.3);
+            stops[i] = values;
+        }
+        cr.bulkInsert(ObaContract.Stops.CONTENT_URI, stops);
+    }
+
+    // Returns the total time in nanoseconds
+    private static long readStops(ContentResolver cr, int iterations) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            Cursor c = cr.query(ObaContract.Stops.CONTENT_URI.buildUpon()
+                        .appendQueryParameter("limit", "20").build(),
+                    new String[] { ObaContract.Stops._ID, ObaContract.Stops.UI_NAME },
+                    ObaContract.Stops.USE_COUNT + " > 0",
+                    null,
+                    ObaContract.Stops.ACCESS_TIME + " desc, " +
+                        ObaContract.Stops.USE_COUNT + " desc");
+            assertNotNull(c);
+            // Make sure the rows are actually read.
+            assertEquals(20, c.getCount());
+            c.close();
+        }
+        return System.nanoTime() - start;
+    }
+}
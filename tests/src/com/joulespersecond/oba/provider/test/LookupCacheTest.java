@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.provider.test;
+
+import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.provider.ObaLookupCache;
+import com.joulespersecond.oba.provider.ObaProvider;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import java.util.Arrays;
+
+public class LookupCacheTest extends ProviderTestCase2<ObaProvider> {
+    public LookupCacheTest() {
+        super(ObaProvider.class, ObaContract.AUTHORITY);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public void testRoutes() {
+        ContentResolver cr = getMockContentResolver();
+        ObaLookupCache cache = new ObaLookupCache(cr);
+
+        assertEquals("", cache.getRouteShortName("1_10"));
+
+        // A write is seen right away, without waiting for the notification.
+        setShortName(cr, "1_10", "10");
+        assertEquals("10", cache.getRouteShortName("1_10"));
+        setShortName(cr, "1_10", "10X");
+        assertEquals("10X", cache.getRouteShortName("1_10"));
+
+        // As is one that's only been buffered.
+        ContentValues values = new ContentValues();
+        values.put(ObaContract.Routes.SHORTNAME, "11");
+        ObaContract.Routes.insertOrUpdate(getMockContext(), "1_11", values, true);
+        assertEquals("11", cache.getRouteShortName("1_11"));
+
+        // The notifications can still invalidate the rows.
+        cache.invalidate(ObaContract.Routes.CONTENT_URI.buildUpon()
+                .appendQueryParameter("changed", "1_10")
+                .appendQueryParameter("changed", "1_11")
+                .build());
+        assertEquals("10X", cache.getRouteShortName("1_10"));
+        cache.invalidate(ObaContract.Routes.CONTENT_URI);
+        assertEquals("11", cache.getRouteShortName("1_11"));
+    }
+
+    public void testTrips() {
+        ContentResolver cr = getMockContentResolver();
+        ObaLookupCache cache = new ObaLookupCache(cr);
+
+        assertNull(cache.getTripReminder("1_12345", "1_10914"));
+
+        ContentValues values = new ContentValues();
+        values.put(ObaContract.Trips._ID, "1_12345");
+        values.put(ObaContract.Trips.STOP_ID, "1_10914");
+        values.put(ObaContract.Trips.ROUTE_ID, "1_10");
+        values.put(ObaContract.Trips.DEPARTURE, 0);
+        values.put(ObaContract.Trips.REMINDER, 10);
+        cr.insert(ObaContract.Trips.CONTENT_URI, values);
+
+        final Uri uri = ObaContract.Trips.buildUri("1_12345", "1_10914");
+        assertEquals(Integer.valueOf(10), cache.getTripReminder("1_12345", "1_10914"));
+        assertEquals("1_10", cache.getTripRouteId("1_12345", "1_10914"));
+
+        // Editing the reminder and then looking it up (as scheduling does)
+        // sees the new value.
+        values = new ContentValues();
+        values.put(ObaContract.Trips.REMINDER, 5);
+        cr.update(uri, values, null, null);
+        assertEquals(Integer.valueOf(5), cache.getTripReminder("1_12345", "1_10914"));
+
+        assertEquals(Arrays.asList("1_12345/1_10914"), ObaContract.getChangedIds(uri));
+    }
+
+    private static void setShortName(ContentResolver cr, String id, String shortName) {
+        ContentValues values = new ContentValues();
+        values.put(ObaContract.Routes.SHORTNAME, shortName);
+        cr.insert(Uri.withAppendedPath(ObaContract.Routes.CONTENT_URI, id), values);
+    }
+}
@@ -21,6 +21,9 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.test.ProviderTestCase2;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.joulespersecond.oba.provider.ObaContract;
 import com.joulespersecond.oba.provider.ObaProvider;
 
@@ -145,4 +148,312 @@ public class ProviderTest extends ProviderTestCase2<ObaProvider> {
         c.close();
     }
 
+    public void testBulkInsert() {
+        ContentResolver cr = getMockContentResolver();
+        ContentValues[] values = new ContentValues[3];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = new ContentValues();
+            values[i].put(ObaContract.StopRouteFilters.STOP_ID, "1_11060-TEST");
+            values[i].put(ObaContract.StopRouteFilters.ROUTE_ID, "1_" + i);
+        }
+        int result = cr.bulkInsert(ObaContract.StopRouteFilters.CONTENT_URI, values);
+        assertEquals(3, result);
+
+        ArrayList<String> filter =
+                ObaContract.StopRouteFilters.get(getMockContext(), "1_11060-TEST");
+        assertEquals(3, filter.size());
+    }
+
+    public void testStopRouteFilters() {
+        final String stopId = "1_11060-TEST";
+        ArrayList<String> filter = new ArrayList<String>();
+        filter.add("1_10");
+        filter.add("1_43");
+        filter.add("1_49");
+        ObaContract.StopRouteFilters.set(getMockContext(), stopId, filter);
+
+        ArrayList<String> result =
+                ObaContract.StopRouteFilters.get(getMockContext(), stopId);
+        assertEquals(3, result.size());
+        assertTrue(result.containsAll(filter));
+
+        // Setting it again should replace, not append.
+        filter.remove(0);
+        ObaContract.StopRouteFilters.set(getMockContext(), stopId, filter);
+        result = ObaContract.StopRouteFilters.get(getMockContext(), stopId);
+        assertEquals(2, result.size());
+        assertFalse(result.contains("1_10"));
+
+        // Clearing it
+        ObaContract.StopRouteFilters.set(getMockContext(), stopId,
+                new ArrayList<String>());
+        result = ObaContract.StopRouteFilters.get(getMockContext(), stopId);
+        assertEquals(0, result.size());
+    }
+
+    public void testInsertOrUpdate() {
+        ContentResolver cr = getMockContentResolver();
+        final String stopId = "1_11060-TEST";
+        ContentValues values = new ContentValues();
+        values.put(ObaContract.Stops.CODE, "11060");
+        values.put(ObaContract.Stops.NAME, "Broadway & E Denny Way");
+        values.put(ObaContract.Stops.DIRECTION, "S");
+        values.put(ObaContract.Stops.LATITUDE, 47.617676);
+        values.put(ObaContract.Stops.LONGITUDE, -122.314523);
+
+        Uri uri = ObaContract.Stops.insertOrUpdate(getMockContext(), stopId, values, true);
+        assertEquals(Uri.withAppendedPath(ObaContract.Stops.CONTENT_URI, stopId), uri);
+
+        // Set a user name, which should survive the next update.
+        ContentValues userValues = new ContentValues();
+        userValues.put(ObaContract.Stops.USER_NAME, "Home");
+        assertEquals(1, cr.update(uri, userValues, null, null));
+
+        values.put(ObaContract.Stops.NAME, "Broadway & Denny");
+        ObaContract.Stops.insertOrUpdate(getMockContext(), stopId, values, true);
+
+        Cursor c = cr.query(uri,
+                new String[] {
+                    ObaContract.Stops.USE_COUNT,
+                    ObaContract.Stops.NAME,
+                    ObaContract.Stops.USER_NAME,
+                    ObaContract.Stops.ACCESS_TIME
+                },
+                null, null, null);
+        assertNotNull(c);
+        assertEquals(1, c.getCount());
+        c.moveToNext();
+        assertEquals(2, c.getInt(0));
+        assertEquals("Broadway & Denny", c.getString(1));
+        assertEquals("Home", c.getString(2));
+        assertTrue(c.getLong(3) > 0);
+        c.close();
+
+        // Updating without marking as used shouldn't change the count.
+        ObaContract.Stops.insertOrUpdate(getMockContext(), stopId, values, false);
+        c = cr.query(uri, new String[] { ObaContract.Stops.USE_COUNT }, null, null, null);
+        assertNotNull(c);
+        c.moveToNext();
+        assertEquals(2, c.getInt(0));
+        c.close();
+    }
+
+    public void testRouteCatalogTime() {
+        ContentResolver cr = getMockContentResolver();
+        final String routeId = "1_49-TEST";
+        final long catalogTime = 1330000000000L;
+        ContentValues values = new ContentValues();
+        values.put(ObaContract.Routes.SHORTNAME, "49");
+        values.put(ObaContract.Routes.LONGNAME, "University District");
+        values.put(ObaContract.Routes.CATALOG_TIME, catalogTime);
+
+        Uri uri = ObaContract.Routes.insertOrUpdate(getMockContext(), routeId, values, false);
+        Cursor c = cr.query(uri, new String[] { ObaContract.Routes.CATALOG_TIME },
+                null, null, null);
+        assertNotNull(c);
+        assertEquals(1, c.getCount());
+        c.moveToNext();
+        assertEquals(catalogTime, c.getLong(0));
+        c.close();
+
+        // Updating without it (as the arrivals screen does)
+        // should keep it.
+        values.remove(ObaContract.Routes.CATALOG_TIME);
+        values.put(ObaContract.Routes.LONGNAME, "U-District");
+        ObaContract.Routes.insertOrUpdate(getMockContext(), routeId, values, true);
+        c = cr.query(uri,
+                new String[] {
+                    ObaContract.Routes.CATALOG_TIME,
+                    ObaContract.Routes.LONGNAME
+                },
+                null, null, null);
+        assertNotNull(c);
+        c.moveToNext();
+        assertFalse(c.isNull(0));
+        assertEquals(catalogTime, c.getLong(0));
+        assertEquals("U-District", c.getString(1));
+        c.close();
+    }
+
+    public void testChangedIds() {
+        List<String> ids = ObaContract.getChangedIds(
+                Uri.withAppendedPath(ObaContract.Stops.CONTENT_URI, "1_10914"));
+        assertNotNull(ids);
+        assertEquals(1, ids.size());
+        assertEquals("1_10914", ids.get(0));
+
+        ids = ObaContract.getChangedIds(ObaContract.Trips.buildUri("1_12345", "1_10914"));
+        assertNotNull(ids);
+        assertEquals("1_12345/1_10914", ids.get(0));
+
+        ids = ObaContract.getChangedIds(ObaContract.Stops.CONTENT_URI.buildUpon()
+                .appendQueryParameter("changed", "1_1")
+                .appendQueryParameter("changed", "1_2")
+                .build());
+        assertNotNull(ids);
+        assertEquals(2, ids.size());
+
+        // Unknown
+        assertNull(ObaContract.getChangedIds(ObaContract.Stops.CONTENT_URI));
+    }
+
+    public void testSearch() {
+        ContentResolver cr = getMockContentResolver();
+        final String stopId = "1_11060-TEST";
+        ContentValues values = new ContentValues();
+        values.put(ObaContract.Stops.CODE, "11060");
+        values.put(ObaContract.Stops.NAME, "Broadway & E Denny Way");
+        values.put(ObaContract.Stops.DIRECTION, "S");
+        values.put(ObaContract.Stops.LATITUDE, 47.617676);
+        values.put(ObaContract.Stops.LONGITUDE, -122.314523);
+        ObaContract.Stops.insertOrUpdate(getMockContext(), stopId, values, true);
+
+        // Prefixes of words, in any order, and the stop code.
+        assertSearchCount(cr, "broad den", 1);
+        assertSearchCount(cr, "denny broadway", 1);
+        assertSearchCount(cr, "1106", 1);
+        assertSearchCount(cr, "pine", 0);
+        // Characters that mean something to MATCH are ignored.
+        assertSearchCount(cr, "\"broad*\" OR -", 1);
+        assertSearchCount(cr, "&", 0);
+
+        // Updating the stop (which replaces the row) updates the index.
+        values.put(ObaContract.Stops.NAME, "Broadway & Pine St");
+        ObaContract.Stops.insertOrUpdate(getMockContext(), stopId, values, true);
+        assertSearchCount(cr, "denny", 0);
+        assertSearchCount(cr, "pine", 1);
+
+        // So does setting the user name.
+        ContentValues userValues = new ContentValues();
+        userValues.put(ObaContract.Stops.USER_NAME, "Work");
+        cr.update(Uri.withAppendedPath(ObaContract.Stops.CONTENT_URI, stopId),
+                userValues, null, null);
+        assertSearchCount(cr, "work", 1);
+
+        // And deleting it removes it.
+        cr.delete(Uri.withAppendedPath(ObaContract.Stops.CONTENT_URI, stopId), null, null);
+        assertSearchCount(cr, "pine", 0);
+
+        // Routes
+        final String routeId = "1_10-TEST";
+        ContentValues routeValues = new ContentValues();
+        routeValues.put(ObaContract.Routes.SHORTNAME, "10");
+        routeValues.put(ObaContract.Routes.LONGNAME, "Capitol Hill");
+        ObaContract.Routes.insertOrUpdate(getMockContext(), routeId, routeValues, true);
+
+        Cursor c = cr.query(ObaContract.Routes.buildSearchUri("capitol"),
+                new String[] { ObaContract.Routes._ID },
+                null, null, null);
+        assertNotNull(c);
+        assertEquals(1, c.getCount());
+        c.moveToNext();
+        assertEquals(routeId, c.getString(0));
+        c.close();
+    }
+
+    public void testUsage() {
+        ContentResolver cr = getMockContentResolver();
+        final String stopId = "1_29261-TEST";
+        final Uri uri = Uri.withAppendedPath(ObaContract.Stops.CONTENT_URI, stopId);
+        ContentValues values = new ContentValues();
+        values.put(ObaContract.Stops.CODE, "29261");
+        values.put(ObaContract.Stops.NAME, "15th Ave NE & NE 40th St");
+        values.put(ObaContract.Stops.DIRECTION, "N");
+        values.put(ObaContract.Stops.LATITUDE, 47.655);
+        values.put(ObaContract.Stops.LONGITUDE, -122.312);
+
+        // The first use creates the stop.
+        ObaContract.Stops.insertOrUpdate(getMockContext(), stopId, values, true);
+        Cursor c = cr.query(uri,
+                new String[] { ObaContract.Stops.FAVORITE, ObaContract.Stops.USE_COUNT },
+                null, null, null);
+        assertNotNull(c);
+        assertEquals(1, c.getCount());
+        c.moveToNext();
+        assertEquals(1, c.getInt(1));
+        c.close();
+
+        // The next ones are merged into reads of the row.
+        ObaContract.Stops.insertOrUpdate(getMockContext(), stopId, values, true);
+        ObaContract.Stops.insertOrUpdate(getMockContext(), stopId, values, true);
+        c = cr.query(uri,
+                new String[] {
+                    ObaContract.Stops.FAVORITE,
+                    ObaContract.Stops.USE_COUNT,
+                    ObaContract.Stops.ACCESS_TIME
+                },
+                null, null, null);
+        assertNotNull(c);
+        c.moveToNext();
+        assertEquals(3, c.getInt(1));
+        assertTrue(c.getLong(2) > 0);
+        c.close();
+
+        // And a query of the table sees them as well.
+        ObaContract.Stops.insertOrUpdate(getMockContext(), stopId, values, true);
+        c = cr.query(ObaContract.Stops.CONTENT_URI,
+                new String[] { ObaContract.Stops._ID, ObaContract.Stops.USE_COUNT },
+                ObaContract.Stops.USE_COUNT + " > 3",
+                null, null);
+        assertNotNull(c);
+        assertEquals(1, c.getCount());
+        c.moveToNext();
+        assertEquals(stopId, c.getString(0));
+        assertEquals(4, c.getInt(1));
+        c.close();
+
+        // Marking as unused isn't undone by pending usage.
+        ObaContract.Stops.insertOrUpdate(getMockContext(), stopId, values, true);
+        ObaContract.Stops.markAsUnused(getMockContext(), uri);
+        c = cr.query(uri, new String[] { ObaContract.Stops.USE_COUNT }, null, null, null);
+        assertNotNull(c);
+        c.moveToNext();
+        assertEquals(0, c.getInt(0));
+        c.close();
+    }
+
+    public void testMaintain() {
+        ContentResolver cr = getMockContentResolver();
+        final int count = 500;
+        ContentValues[] stops = new ContentValues[count];
+        for (int i = 0; i < count; ++i) {
+            ContentValues values = new ContentValues();
+            values.put(ObaContract.Stops._ID, "1_" + i + "-TEST");
+            values.put(ObaContract.Stops.CODE, String.valueOf(i));
+            values.put(ObaContract.Stops.NAME, "Maintenance Test Stop Number " + i);
+            values.put(ObaContract.Stops.DIRECTION, "N");
+            values.put(ObaContract.Stops.USE_COUNT, 1);
+            values.put(ObaContract.Stops.LATITUDE, 47.6);
+            values.put(ObaContract.Stops.LONGITUDE, -122.3);
+            stops[i] = values;
+        }
+        assertEquals(count, cr.bulkInsert(ObaContract.Stops.CONTENT_URI, stops));
+        // Delete all but the last one, so most of the database is free.
+        cr.delete(ObaContract.Stops.CONTENT_URI,
+                ObaContract.Stops._ID + " != ?",
+                new String[] { "1_" + (count - 1) + "-TEST" });
+
+        assertTrue(ObaContract.maintain(getMockContext()));
+        // Nothing left to compact.
+        assertFalse(ObaContract.maintain(getMockContext()));
+
+        // The search index still finds the stop.
+        Cursor c = cr.query(ObaContract.Stops.buildSearchUri("maintenance " + (count - 1)),
+                new String[] { ObaContract.Stops._ID },
+                null, null, null);
+        assertNotNull(c);
+        assertEquals(1, c.getCount());
+        c.moveToNext();
+        assertEquals("1_" + (count - 1) + "-TEST", c.getString(0));
+        c.close();
+    }
+
+    private void assertSearchCount(ContentResolver cr, String text, int count) {
+        Cursor c = cr.query(ObaContract.Stops.buildSearchUri(text),
+                new String[] { ObaContract.Stops._ID },
+                null, null, null);
+        assertNotNull(c);
+        assertEquals(text, count, c.getCount());
+        c.close();
+    }
 }
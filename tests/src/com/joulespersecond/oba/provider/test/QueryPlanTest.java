@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.provider.test;
+
+import com.joulespersecond.oba.provider.ObaContract;
+import com.joulespersecond.oba.provider.ObaProvider;
+import com.joulespersecond.seattlebusbot.QueryUtils;
+import com.joulespersecond.seattlebusbot.UIHelp;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+/**
+ * Runs EXPLAIN QUERY PLAN on each of the queries the app makes,
+ * and fails if any of them need a full table scan, or a full scan
+ * of an index on the stops or routes tables.
+ *
+ * The selections come from the same helpers the app uses,
+ * so this tests the queries it actually makes.
+ * Queries that return every row in a table (such as the trip list)
+ * necessarily scan the table, so they aren't included here.
+ * If you add a new query with a selection, add it here as well.
+ */
+public class QueryPlanTest extends ProviderTestCase2<ObaProvider> {
+    public QueryPlanTest() {
+        super(ObaProvider.class, ObaContract.AUTHORITY);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    // The tables that can have thousands of rows.
+    private static final String[] LARGE_TABLES = {
+        ObaContract.Stops.PATH,
+        ObaContract.Routes.PATH
+    };
+
+    // QueryUtils.newRecentQuery
+    public void testRecentStops() {
+        assertNoTableScan(ObaContract.Stops.CONTENT_URI.buildUpon()
+                    .appendQueryParameter("limit", "20").build(),
+                new String[] { ObaContract.Stops._ID, ObaContract.Stops.UI_NAME },
+                QueryUtils.getRecentSelection(ObaContract.Stops.ACCESS_TIME,
+                        ObaContract.Stops.USE_COUNT),
+                null,
+                QueryUtils.getRecentSortOrder(ObaContract.Stops.ACCESS_TIME,
+                        ObaContract.Stops.USE_COUNT));
+    }
+
+    public void testRecentRoutes() {
+        assertNoTableScan(ObaContract.Routes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter("limit", "20").build(),
+                new String[] { ObaContract.Routes._ID, ObaContract.Routes.SHORTNAME },
+                QueryUtils.getRecentSelection(ObaContract.Routes.ACCESS_TIME,
+                        ObaContract.Routes.USE_COUNT),
+                null,
+                QueryUtils.getRecentSortOrder(ObaContract.Routes.ACCESS_TIME,
+                        ObaContract.Routes.USE_COUNT));
+    }
+
+    // MyStarredStopsFragment
+    public void testStarredStops() {
+        assertNoTableScan(ObaContract.Stops.CONTENT_URI,
+                new String[] { ObaContract.Stops._ID, ObaContract.Stops.UI_NAME },
+                QueryUtils.getStarredSelection(),
+                null,
+                ObaContract.Stops.USE_COUNT + " desc");
+    }
+
+    // UIHelp.StopUserInfoMap
+    public void testStopUserInfo() {
+        assertNoTableScan(ObaContract.Stops.CONTENT_URI,
+                new String[] {
+                    ObaContract.Stops._ID,
+                    ObaContract.Stops.FAVORITE,
+                    ObaContract.Stops.USER_NAME
+                },
+                UIHelp.StopUserInfoMap.getSelection(),
+                null,
+                null);
+    }
+
+    // UIHelp.StopUserInfoMap, reloading the stops that changed
+    public void testStopUserInfoChanged() {
+        assertNoTableScan(ObaContract.Stops.CONTENT_URI,
+                new String[] {
+                    ObaContract.Stops._ID,
+                    ObaContract.Stops.FAVORITE,
+                    ObaContract.Stops.USER_NAME
+                },
+                UIHelp.StopUserInfoMap.getSelection(2),
+                new String[] { "1_10914", "1_10915" },
+                null);
+    }
+
+    // ArrivalsListFragment, ObaContract.Stops.insertOrUpdate, etc.
+    public void testStopById() {
+        assertNoTableScan(Uri.withAppendedPath(ObaContract.Stops.CONTENT_URI, "1_10914"),
+                new String[] { ObaContract.Stops.FAVORITE, ObaContract.Stops.USER_NAME },
+                null, null, null);
+    }
+
+    // TripService.getRouteShortName
+    public void testRouteById() {
+        assertNoTableScan(Uri.withAppendedPath(ObaContract.Routes.CONTENT_URI, "1_10"),
+                new String[] { ObaContract.Routes.SHORTNAME },
+                null, null, null);
+    }
+
+    // TripInfoActivity, PollerTask.getReminderMS, NotifierTask
+    public void testTripById() {
+        assertNoTableScan(ObaContract.Trips.buildUri("1_12345", "1_10914"),
+                new String[] { ObaContract.Trips.REMINDER },
+                null, null, null);
+    }
+
+    // SchedulerTask.scheduleAlert, TripAlerts.insertIfNotExists
+    public void testTripAlertByTrip() {
+        assertNoTableScan(ObaContract.TripAlerts.CONTENT_URI,
+                new String[] { ObaContract.TripAlerts._ID, ObaContract.TripAlerts.STATE },
+                ObaContract.TripAlerts.FIND_WHERE,
+                new String[] { "1_12345", "1_10914", "1000" },
+                null);
+    }
+
+    // PollerTask, NotifierTask
+    public void testTripAlertById() {
+        assertNoTableScan(ObaContract.TripAlerts.buildUri(1),
+                new String[] { ObaContract.TripAlerts.STATE },
+                null, null, null);
+    }
+
+    // MaintenanceTask.prune, SchedulerTask.cleanupOldAlerts
+    public void testOldTripAlerts() {
+        assertNoTableScan(ObaContract.TripAlerts.CONTENT_URI,
+                new String[] { ObaContract.TripAlerts._ID },
+                ObaContract.TripAlerts.getOldSelection(1000),
+                null,
+                null);
+    }
+
+    // PollerTask, the alerts that are active
+    public void testActiveTripAlerts() {
+        assertNoTableScan(ObaContract.TripAlerts.CONTENT_URI,
+                new String[] {
+                    ObaContract.TripAlerts._ID,
+                    ObaContract.TripAlerts.TRIP_ID,
+                    ObaContract.TripAlerts.STOP_ID,
+                    ObaContract.TripAlerts.START_TIME,
+                    ObaContract.TripAlerts.STATE,
+                    ObaContract.TripAlerts.NEXT_POLL,
+                    ObaContract.TripAlerts.POLL_COUNT,
+                    ObaContract.TripAlerts.STOP_DISTANCE,
+                    ObaContract.TripAlerts.VEHICLE_DISTANCE,
+                    ObaContract.TripAlerts.VEHICLE_TIME
+                },
+                ObaContract.TripAlerts.getActiveSelection(1000),
+                null,
+                null);
+    }
+
+    // TripAlerts.getNextStartTime
+    public void testNextTripAlert() {
+        assertNoTableScan(ObaContract.TripAlerts.CONTENT_URI.buildUpon()
+                    .appendQueryParameter("limit", "1").build(),
+                new String[] { ObaContract.TripAlerts.START_TIME },
+                ObaContract.TripAlerts.getNextSelection(1000),
+                null,
+                ObaContract.TripAlerts.START_TIME);
+    }
+
+    // ObaContract.StopRouteFilters.get
+    public void testStopRouteFilter() {
+        assertNoTableScan(ObaContract.StopRouteFilters.CONTENT_URI,
+                new String[] { ObaContract.StopRouteFilters.ROUTE_ID },
+                ObaContract.StopRouteFilters.FILTER_WHERE,
+                new String[] { "1_10914" },
+                null);
+    }
+
+    // MySearchStopsFragment, MySearchRoutesFragment
+    public void testSearchStops() {
+        assertNoTableScan(ObaContract.Stops.buildSearchUri("broad"),
+                new String[] { ObaContract.Stops._ID, ObaContract.Stops.NAME },
+                null, null, null);
+    }
+
+    public void testSearchRoutes() {
+        assertNoTableScan(ObaContract.Routes.buildSearchUri("10"),
+                new String[] { ObaContract.Routes._ID, ObaContract.Routes.SHORTNAME },
+                null, null, null);
+    }
+
+    private void assertNoTableScan(Uri uri,
+            String[] projection,
+            String selection,
+            String[] selectionArgs,
+            String sortOrder) {
+        ContentResolver cr = getMockContentResolver();
+        Uri explain = uri.buildUpon()
+                .appendQueryParameter(ObaContract.EXPLAIN_PARAM, "1")
+                .build();
+        Cursor c = cr.query(explain, projection, selection, selectionArgs, sortOrder);
+        assertNotNull(c);
+        try {
+            assertTrue(c.getCount() > 0);
+            // The detail is always the last column,
+            // no matter what version of SQLite we are running.
+            final int detailCol = c.getColumnCount() - 1;
+            while (c.moveToNext()) {
+                final String detail = c.getString(detailCol);
+                assertFalse("Table scan: " + detail + " for " + uri, isTableScan(detail));
+                assertFalse("Index scan: " + detail + " for " + uri, isLargeIndexScan(detail));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static boolean isTableScan(String detail) {
+        if (detail.startsWith("SEARCH")) {
+            return false;
+        }
+        // The full-text index: "SCAN TABLE stops_fts VIRTUAL TABLE INDEX ..."
+        if (detail.contains("VIRTUAL TABLE INDEX")) {
+            return false;
+        }
+        // A full index scan: "SCAN TABLE stops USING INDEX ..."
+        // (see isLargeIndexScan.)
+        // Older versions: "TABLE stops WITH INDEX ...", which doesn't say
+        // whether the index is searched or scanned.
+        if (detail.contains(" INDEX ")) {
+            return false;
+        }
+        return detail.startsWith("SCAN") || detail.startsWith("TABLE");
+    }
+
+    //
+    // Newer versions say "SCAN stops USING [COVERING] INDEX ..."
+    // (or "SCAN TABLE stops ...") when they read the whole index,
+    // which is nearly as slow as reading the whole table.
+    //
+    private static boolean isLargeIndexScan(String detail) {
+        if (!detail.startsWith("SCAN ") || !detail.contains(" INDEX ")) {
+            return false;
+        }
+        if (detail.contains("VIRTUAL TABLE INDEX")) {
+            return false;
+        }
+        String table = detail.substring("SCAN ".length());
+        if (table.startsWith("TABLE ")) {
+            table = table.substring("TABLE ".length());
+        }
+        final int end = table.indexOf(' ');
+        if (end >= 0) {
+            table = table.substring(0, end);
+        }
+        for (String large: LARGE_TABLES) {
+            if (large.equals(table)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
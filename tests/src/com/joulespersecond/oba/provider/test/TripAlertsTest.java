@@ -88,4 +88,51 @@ public class TripAlertsTest extends ProviderTestCase2<ObaProvider> {
 
         cr.delete(uri, null, null);
     }
+
+    public void testGetNextStartTime() {
+        ContentResolver cr = getMockContentResolver();
+        assertEquals(0, TripAlerts.getNextStartTime(cr, 0));
+
+        final Uri uri1 = TripAlerts.insertIfNotExists(cr, "1_12345", "1_STOP", 3000);
+        final Uri uri2 = TripAlerts.insertIfNotExists(cr, "1_12346", "1_STOP", 2000);
+        final Uri uri3 = TripAlerts.insertIfNotExists(cr, "1_12347", "1_STOP", 1000);
+        assertEquals(1000, TripAlerts.getNextStartTime(cr, 0));
+        assertEquals(2000, TripAlerts.getNextStartTime(cr, 1000));
+        assertEquals(0, TripAlerts.getNextStartTime(cr, 3000));
+
+        // Only scheduled alerts count.
+        TripAlerts.setState(cr, uri2, TripAlerts.STATE_CANCELLED);
+        assertEquals(3000, TripAlerts.getNextStartTime(cr, 1000));
+
+        cr.delete(uri1, null, null);
+        cr.delete(uri2, null, null);
+        cr.delete(uri3, null, null);
+    }
+
+    public void testSetPolled() {
+        ContentResolver cr = getMockContentResolver();
+        final Uri uri = TripAlerts.insertIfNotExists(cr, "1_12345", "1_STOP", 1000);
+        assertNotNull(uri);
+
+        final String[] PROJECTION = { TripAlerts.NEXT_POLL, TripAlerts.POLL_COUNT };
+
+        // It hasn't been polled yet.
+        Cursor c = cr.query(uri, PROJECTION, null, null, null);
+        assertNotNull(c);
+        c.moveToNext();
+        assertTrue(c.isNull(0));
+        assertEquals(0, c.getInt(1));
+        c.close();
+
+        TripAlerts.setPolled(cr, uri, 61000, 1);
+
+        c = cr.query(uri, PROJECTION, null, null, null);
+        assertNotNull(c);
+        c.moveToNext();
+        assertEquals(61000, c.getLong(0));
+        assertEquals(1, c.getInt(1));
+        c.close();
+
+        cr.delete(uri, null, null);
+    }
 }
@@ -19,6 +19,7 @@ import java.util.List;
 
 import com.joulespersecond.oba.elements.ObaShape;
 import com.joulespersecond.oba.elements.ObaStop;
+import com.joulespersecond.oba.elements.ObaStopGroup;
 import com.joulespersecond.oba.elements.ObaStopGrouping;
 import com.joulespersecond.oba.request.ObaStopsForRouteRequest;
 import com.joulespersecond.oba.request.ObaStopsForRouteResponse;
@@ -40,6 +41,21 @@ public class StopsForRouteRequestTest extends ObaTestCase {
         final ObaStopGrouping[] groupings = response.getStopGroupings();
         assertNotNull(groupings);
 
+        // Every stop in a group can be found in it.
+        for (ObaStopGrouping grouping: groupings) {
+            for (ObaStopGroup group: grouping.getStopGroups()) {
+                final String[] stopIds = group.getStopIds();
+                for (int i = 0; i < stopIds.length; ++i) {
+                    final ObaStopGroup found = response.getGroupForStop(stopIds[i]);
+                    assertNotNull(found);
+                    final int position = response.getPositionInGroup(stopIds[i]);
+                    assertEquals(stopIds[i], found.getStopIds()[position]);
+                }
+            }
+        }
+        assertNull(response.getGroupForStop("1_nonexistent"));
+        assertEquals(-1, response.getPositionInGroup("1_nonexistent"));
+
         final ObaShape[] shapes = response.getShapes();
         assertNotNull(shapes);
         assertTrue(shapes.length > 0);
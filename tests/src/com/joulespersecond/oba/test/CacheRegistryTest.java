@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.oba.test;
+
+import com.joulespersecond.oba.CacheRegistry;
+import com.joulespersecond.oba.ObaApi;
+
+import android.test.AndroidTestCase;
+
+public class CacheRegistryTest extends AndroidTestCase {
+    private TestCache mTransient;
+    private TestCache mNetwork;
+    private TestCache mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        CacheRegistry.init(getContext());
+        mTransient = new TestCache(1);
+        mNetwork = new TestCache(10);
+        mDatabase = new TestCache(100);
+        CacheRegistry.register("transient", CacheRegistry.PRIORITY_TRANSIENT, mTransient);
+        CacheRegistry.register("network", CacheRegistry.PRIORITY_NETWORK, mNetwork);
+        CacheRegistry.register("database", CacheRegistry.PRIORITY_DATABASE, mDatabase);
+    }
+
+    public void testTrim() {
+        CacheRegistry.trim(CacheRegistry.TRIM_MEMORY_UI_HIDDEN);
+        assertTrue(mTransient.cleared);
+        assertFalse(mNetwork.cleared);
+        assertFalse(mDatabase.cleared);
+
+        CacheRegistry.trim(CacheRegistry.TRIM_MEMORY_BACKGROUND);
+        assertTrue(mNetwork.cleared);
+        assertFalse(mDatabase.cleared);
+
+        CacheRegistry.trim(CacheRegistry.TRIM_MEMORY_COMPLETE);
+        assertTrue(mDatabase.cleared);
+    }
+
+    public void testRunningTrim() {
+        CacheRegistry.trim(CacheRegistry.TRIM_MEMORY_RUNNING_LOW);
+        assertTrue(mTransient.cleared);
+        assertTrue(mNetwork.cleared);
+        assertFalse(mDatabase.cleared);
+
+        CacheRegistry.trim(CacheRegistry.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertTrue(mDatabase.cleared);
+    }
+
+    public void testClearCache() {
+        ObaApi.clearCache();
+        assertTrue(mTransient.cleared);
+        assertTrue(mNetwork.cleared);
+        assertTrue(mDatabase.cleared);
+    }
+
+    public void testOverBudget() {
+        assertTrue(CacheRegistry.getTotalSize() >= 111);
+        // Within budget, nothing is dropped.
+        CacheRegistry.onGrow(mNetwork);
+        assertFalse(mTransient.cleared);
+
+        // Over budget, everything but the cache that grew is dropped.
+        TestCache big = new TestCache(Long.MAX_VALUE / 2);
+        CacheRegistry.register("big", CacheRegistry.PRIORITY_NETWORK, big);
+        CacheRegistry.onGrow(big);
+        assertTrue(mTransient.cleared);
+        assertTrue(mNetwork.cleared);
+        assertTrue(mDatabase.cleared);
+        assertFalse(big.cleared);
+        big.clear();
+    }
+
+    public void testDump() {
+        final String dump = CacheRegistry.dumpToString();
+        assertTrue(dump.contains("network (priority 1): 10 bytes"));
+    }
+
+    private static final class TestCache implements CacheRegistry.Cache {
+        private long mSize;
+        boolean cleared = false;
+
+        TestCache(long size) {
+            mSize = size;
+        }
+
+        @Override
+        public long estimateSize() {
+            return mSize;
+        }
+
+        @Override
+        public void clear() {
+            mSize = 0;
+            cleared = true;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2012 Paul Watts (paulcwatts@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joulespersecond.seattlebusbot.test;
+
+import com.joulespersecond.oba.elements.ObaRoute;
+import com.joulespersecond.seattlebusbot.RouteTrie;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RouteTrieTest extends AndroidTestCase {
+    private RouteTrie mTrie;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTrie = new RouteTrie(Arrays.asList(
+                new Route("1_10", "10", "Capitol Hill/Downtown"),
+                new Route("1_100", "100", null),
+                new Route("1_11", "11", "Madison Park"),
+                new Route("1_1", "1", "Kinnear"),
+                new Route("40_100479", "545", "Redmond - Seattle"),
+                new Route("1_102576", "E Line", "RapidRide E Line")));
+    }
+
+    public void testShortNames() {
+        assertEquals(6, mTrie.size());
+        // Shorter names first
+        assertEquals(Arrays.asList("1_1", "1_10", "1_100", "1_11"),
+                getIds(mTrie.search("1", 10)));
+        assertEquals(Arrays.asList("1_10", "1_100"), getIds(mTrie.search("10", 10)));
+        assertEquals(Arrays.asList("1_1", "1_10"), getIds(mTrie.search("1", 2)));
+        assertEquals(Arrays.asList("40_100479"), getIds(mTrie.search(" 545 ", 10)));
+        assertEquals(Arrays.asList(), getIds(mTrie.search("2", 10)));
+    }
+
+    public void testLongNames() {
+        assertEquals(Arrays.asList("1_11"), getIds(mTrie.search("madison", 10)));
+        assertEquals(Arrays.asList("1_11"), getIds(mTrie.search("PARK", 10)));
+        assertEquals(Arrays.asList("40_100479"), getIds(mTrie.search("seat", 10)));
+        // Every word needs to match.
+        assertEquals(Arrays.asList("1_10"), getIds(mTrie.search("downtown capitol", 10)));
+        assertEquals(Arrays.asList(), getIds(mTrie.search("downtown madison", 10)));
+        // The short name matches first, and each route is only returned once.
+        assertEquals(Arrays.asList("1_102576"), getIds(mTrie.search("e", 10)));
+        assertEquals(Arrays.asList("1_102576"), getIds(mTrie.search("rapidride e", 10)));
+    }
+
+    public void testEmpty() {
+        assertEquals(Arrays.asList(), getIds(mTrie.search("", 10)));
+        assertEquals(Arrays.asList(), getIds(mTrie.search("1", 0)));
+
+        RouteTrie empty = new RouteTrie(new ArrayList<ObaRoute>());
+        assertEquals(0, empty.size());
+        assertEquals(Arrays.asList(), getIds(empty.search("1", 10)));
+    }
+
+    private static List<String> getIds(List<ObaRoute> routes) {
+        ArrayList<String> result = new ArrayList<String>();
+        for (ObaRoute route: routes) {
+            result.add(route.getId());
+        }
+        return result;
+    }
+
+    private static final class Route implements ObaRoute {
+        private final String mId;
+        private final String mShortName;
+        private final String mLongName;
+
+        Route(String id, String shortName, String longName) {
+            mId = id;
+            mShortName = shortName;
+            mLongName = longName;
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        public String getShortName() {
+            return mShortName;
+        }
+
+        public String getLongName() {
+            return mLongName;
+        }
+
+        public String getDescription() {
+            return "";
+        }
+
+        public int getType() {
+            return TYPE_BUS;
+        }
+
+        public String getUrl() {
+            return null;
+        }
+
+        public int getColor() {
+            return 0;
+        }
+
+        public int getTextColor() {
+            return 0;
+        }
+
+        public String getAgencyId() {
+            return mId.substring(0, mId.indexOf('_'));
+        }
+    }
+}